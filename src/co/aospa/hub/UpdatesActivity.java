@@ -105,6 +105,8 @@ public class UpdatesActivity extends AppCompatActivity {
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        // The list and the changelog are fetched as soon as the service is bound
+        Utils.warmUpConnections(this);
         setContentView(R.layout.activity_updates);
 
         Toolbar toolbar = (Toolbar) findViewById(R.id.toolbar);
@@ -268,6 +270,11 @@ public class UpdatesActivity extends AppCompatActivity {
             findViewById(R.id.changelog_strip).setVisibility(View.VISIBLE);
             getChangelog();
             UpdateInfo update = sortedUpdates.get(0);
+            if (update.getPersistentStatus() != UpdateStatus.Persistent.VERIFIED &&
+                    !mUpdaterController.isDownloading(update.getDownloadId())) {
+                // Its download is likely to be started next
+                Utils.warmUpConnections(this, update.getDownloadUrl());
+            }
             boolean activeLayout;
             switch (update.getPersistentStatus()) {
                 case UpdateStatus.Persistent.UNKNOWN:
@@ -320,6 +327,7 @@ public class UpdatesActivity extends AppCompatActivity {
                     .setUrl(url)
                     .setDestination(changelogTmp)
                     .setDownloadCallback(callback)
+                    .setTransport(Utils.getDownloadTransport(this, null))
                     .build();
         } catch (IOException exception) {
             Log.e(TAG, "Could not build download client");
@@ -401,6 +409,7 @@ public class UpdatesActivity extends AppCompatActivity {
                     .setUrl(url)
                     .setDestination(jsonFileTmp)
                     .setDownloadCallback(callback)
+                    .setTransport(Utils.getDownloadTransport(this, null))
                     .build();
         } catch (IOException exception) {
             Log.e(TAG, "Could not build download client");
@@ -438,6 +447,12 @@ public class UpdatesActivity extends AppCompatActivity {
                 mIdleGroupIcon.setVisibility(View.VISIBLE);
                 setButtonAction(mControlButton, Action.RETRY_DOWNLOAD, downloadId, true);
                 break;
+            case PAUSED_NO_SPACE:
+                mHeaderMsg.setText(R.string.snack_download_no_space);
+                mProgressView.setVisibility(View.INVISIBLE);
+                mIdleGroupIcon.setVisibility(View.VISIBLE);
+                setButtonAction(mControlButton, Action.RETRY_DOWNLOAD, downloadId, true);
+                break;
             case VERIFICATION_FAILED:
                 mHeaderMsg.setText(R.string.snack_download_verification_failed);
                 mProgressView.setVisibility(View.INVISIBLE);
@@ -478,16 +493,26 @@ public class UpdatesActivity extends AppCompatActivity {
                 view.findViewById(R.id.preferences_auto_updates_check_interval);
         Switch autoDelete = view.findViewById(R.id.preferences_auto_delete_updates);
         Switch dataWarning = view.findViewById(R.id.preferences_mobile_data_warning);
+        Switch multipath = view.findViewById(R.id.preferences_multipath_downloads);
+        Switch abStreaming = view.findViewById(R.id.preferences_ab_streaming);
+        Switch abInstallWhileDownloading =
+                view.findViewById(R.id.preferences_ab_install_while_downloading);
         Switch abPerfMode = view.findViewById(R.id.preferences_ab_perf_mode);
         Switch updateRecovery = view.findViewById(R.id.preferences_update_recovery);
 
         if (!Utils.isABDevice()) {
+            abStreaming.setVisibility(View.GONE);
+            abInstallWhileDownloading.setVisibility(View.GONE);
             abPerfMode.setVisibility(View.GONE);
         }
 
         SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
         autoCheckInterval.setSelection(Utils.getUpdateCheckSetting(this));
         dataWarning.setChecked(prefs.getBoolean(Constants.PREF_MOBILE_DATA_WARNING, true));
+        multipath.setChecked(prefs.getBoolean(Constants.PREF_MULTIPATH_DOWNLOADS, false));
+        abStreaming.setChecked(prefs.getBoolean(Constants.PREF_AB_STREAMING, false));
+        abInstallWhileDownloading.setChecked(
+                prefs.getBoolean(Constants.PREF_AB_INSTALL_WHILE_DOWNLOADING, false));
         abPerfMode.setChecked(prefs.getBoolean(Constants.PREF_AB_PERF_MODE, false));
 
         if (getResources().getBoolean(R.bool.config_hideRecoveryUpdate)) {
@@ -527,6 +552,12 @@ public class UpdatesActivity extends AppCompatActivity {
                                     autoCheckInterval.getSelectedItemPosition())
                             .putBoolean(Constants.PREF_MOBILE_DATA_WARNING,
                                     dataWarning.isChecked())
+                            .putBoolean(Constants.PREF_MULTIPATH_DOWNLOADS,
+                                    multipath.isChecked())
+                            .putBoolean(Constants.PREF_AB_STREAMING,
+                                    abStreaming.isChecked())
+                            .putBoolean(Constants.PREF_AB_INSTALL_WHILE_DOWNLOADING,
+                                    abInstallWhileDownloading.isChecked())
                             .putBoolean(Constants.PREF_AB_PERF_MODE,
                                     abPerfMode.isChecked())
                             .apply();
@@ -538,6 +569,9 @@ public class UpdatesActivity extends AppCompatActivity {
                         UpdatesCheckReceiver.cancelUpdatesCheck(this);
                     }
 
+                    mUpdaterService.getUpdaterController().setMultipathEnabled(
+                            multipath.isChecked());
+
                     if (Utils.isABDevice()) {
                         boolean enableABPerfMode = abPerfMode.isChecked();
                         mUpdaterService.getUpdaterController().setPerformanceMode(enableABPerfMode);
@@ -599,7 +633,7 @@ public class UpdatesActivity extends AppCompatActivity {
         UpdateInfo update = mUpdaterController.getUpdate(downloadId);
         int resId;
         try {
-            if (Utils.isABUpdate(update.getFile())) {
+            if (mUpdaterController.getPackageMetadata(downloadId).isAB()) {
                 resId = R.string.apply_update_dialog_message_ab;
             } else {
                 resId = R.string.apply_update_dialog_message;
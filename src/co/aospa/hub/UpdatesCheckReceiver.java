@@ -30,7 +30,9 @@ import android.util.Log;
 import androidx.core.app.NotificationCompat;
 
 import org.json.JSONException;
+import co.aospa.hub.download.ConnectionPool;
 import co.aospa.hub.download.DownloadClient;
+import co.aospa.hub.download.TlsSessionCache;
 import co.aospa.hub.misc.Constants;
 import co.aospa.hub.misc.Utils;
 
@@ -76,20 +78,27 @@ public class UpdatesCheckReceiver extends BroadcastReceiver {
         final File json = Utils.getCachedUpdateList(context);
         final File jsonNew = new File(json.getAbsolutePath() + UUID.randomUUID());
         String url = Utils.getServerURL(context);
+        // The list is fetched through the connection pool, so its connection shows in the
+        // stats of the pool. The time to the response also covers fetches through a proxy.
+        final long startMillis = SystemClock.elapsedRealtime();
         DownloadClient.DownloadCallback callback = new DownloadClient.DownloadCallback() {
             @Override
             public void onFailure(boolean cancelled) {
                 Log.e(TAG, "Could not download updates list, scheduling new check");
+                logConnectTime(context);
                 scheduleUpdatesCheck(context);
             }
 
             @Override
             public void onResponse(int statusCode, String url,
                     DownloadClient.Headers headers) {
+                Log.d(TAG, "List server answered in " +
+                        (SystemClock.elapsedRealtime() - startMillis) + " ms");
             }
 
             @Override
             public void onSuccess(File destination) {
+                logConnectTime(context);
                 try {
                     if (json.exists() && Utils.checkForNewUpdates(json, jsonNew)) {
                         showNotification(context);
@@ -114,6 +123,7 @@ public class UpdatesCheckReceiver extends BroadcastReceiver {
                     .setUrl(url)
                     .setDestination(jsonNew)
                     .setDownloadCallback(callback)
+                    .setTransport(Utils.getDownloadTransport(context, null))
                     .build();
             downloadClient.start();
         } catch (IOException e) {
@@ -122,6 +132,14 @@ public class UpdatesCheckReceiver extends BroadcastReceiver {
         }
     }
 
+    private static void logConnectTime(Context context) {
+        ConnectionPool pool = Utils.getConnectionPool(context);
+        Log.d(TAG, "Connections opened in " + pool.getAverageConnectMillis() +
+                " ms on average, " + pool.getConnectCount() + " opened, " +
+                TlsSessionCache.getResumedCount() + " TLS sessions resumed, " +
+                TlsSessionCache.getFullCount() + " full handshakes");
+    }
+
     private static void showNotification(Context context) {
         NotificationManager notificationManager =
                 (NotificationManager) context.getSystemService(Context.NOTIFICATION_SERVICE);
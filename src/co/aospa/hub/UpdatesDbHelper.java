@@ -21,16 +21,19 @@ import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.provider.BaseColumns;
+import android.text.TextUtils;
 
+import co.aospa.hub.download.MirrorStats;
+import co.aospa.hub.model.PackageMetadata;
 import co.aospa.hub.model.Update;
 
 import java.io.File;
 import java.util.ArrayList;
 import java.util.List;
 
-public class UpdatesDbHelper extends SQLiteOpenHelper {
+public class UpdatesDbHelper extends SQLiteOpenHelper implements MirrorStats.Storage {
 
-    public static final int DATABASE_VERSION = 1;
+    public static final int DATABASE_VERSION = 5;
     public static final String DATABASE_NAME = "updates.db";
 
     public static class UpdateEntry implements BaseColumns {
@@ -42,6 +45,29 @@ public class UpdatesDbHelper extends SQLiteOpenHelper {
         public static final String COLUMN_NAME_TYPE = "type";
         public static final String COLUMN_NAME_VERSION = "version";
         public static final String COLUMN_NAME_SIZE = "size";
+        public static final String COLUMN_NAME_ETAG = "etag";
+        public static final String COLUMN_NAME_LAST_MODIFIED = "last_modified";
+        public static final String COLUMN_NAME_VALIDATOR_URL = "validator_url";
+        public static final String COLUMN_NAME_VERIFIED_FINGERPRINT = "verified_fingerprint";
+    }
+
+    public static class MirrorEntry implements BaseColumns {
+        public static final String TABLE_NAME = "mirrors";
+        public static final String COLUMN_NAME_HOST = "host";
+        public static final String COLUMN_NAME_TTFB = "ttfb";
+        public static final String COLUMN_NAME_THROUGHPUT = "throughput";
+        public static final String COLUMN_NAME_FAILURES = "failures";
+        public static final String COLUMN_NAME_TIMESTAMP = "timestamp";
+    }
+
+    public static class PackageEntry implements BaseColumns {
+        public static final String TABLE_NAME = "packages";
+        public static final String COLUMN_NAME_DOWNLOAD_ID = "download_id";
+        public static final String COLUMN_NAME_FILE_SIZE = "file_size";
+        public static final String COLUMN_NAME_LAST_MODIFIED = "last_modified";
+        public static final String COLUMN_NAME_AB = "ab";
+        public static final String COLUMN_NAME_PAYLOAD_OFFSET = "payload_offset";
+        public static final String COLUMN_NAME_PAYLOAD_PROPERTIES = "payload_properties";
     }
 
     private static final String SQL_CREATE_ENTRIES =
@@ -53,26 +79,92 @@ public class UpdatesDbHelper extends SQLiteOpenHelper {
                     UpdateEntry.COLUMN_NAME_TIMESTAMP + " INTEGER," +
                     UpdateEntry.COLUMN_NAME_TYPE + " TEXT," +
                     UpdateEntry.COLUMN_NAME_VERSION + " TEXT," +
-                    UpdateEntry.COLUMN_NAME_SIZE + " INTEGER)";
+                    UpdateEntry.COLUMN_NAME_SIZE + " INTEGER," +
+                    UpdateEntry.COLUMN_NAME_ETAG + " TEXT," +
+                    UpdateEntry.COLUMN_NAME_LAST_MODIFIED + " TEXT," +
+                    UpdateEntry.COLUMN_NAME_VALIDATOR_URL + " TEXT," +
+                    UpdateEntry.COLUMN_NAME_VERIFIED_FINGERPRINT + " TEXT)";
+
+    private static final String[] SQL_ADD_VALIDATORS = {
+            "ALTER TABLE " + UpdateEntry.TABLE_NAME + " ADD COLUMN " +
+                    UpdateEntry.COLUMN_NAME_ETAG + " TEXT",
+            "ALTER TABLE " + UpdateEntry.TABLE_NAME + " ADD COLUMN " +
+                    UpdateEntry.COLUMN_NAME_LAST_MODIFIED + " TEXT",
+            "ALTER TABLE " + UpdateEntry.TABLE_NAME + " ADD COLUMN " +
+                    UpdateEntry.COLUMN_NAME_VALIDATOR_URL + " TEXT",
+    };
+
+    private static final String SQL_ADD_VERIFIED_FINGERPRINT =
+            "ALTER TABLE " + UpdateEntry.TABLE_NAME + " ADD COLUMN " +
+                    UpdateEntry.COLUMN_NAME_VERIFIED_FINGERPRINT + " TEXT";
 
     private static final String SQL_DELETE_ENTRIES =
             "DROP TABLE IF EXISTS " + UpdateEntry.TABLE_NAME;
 
+    private static final String SQL_CREATE_MIRRORS =
+            "CREATE TABLE " + MirrorEntry.TABLE_NAME + " (" +
+                    MirrorEntry._ID + " INTEGER PRIMARY KEY," +
+                    MirrorEntry.COLUMN_NAME_HOST + " TEXT NOT NULL UNIQUE," +
+                    MirrorEntry.COLUMN_NAME_TTFB + " INTEGER," +
+                    MirrorEntry.COLUMN_NAME_THROUGHPUT + " INTEGER," +
+                    MirrorEntry.COLUMN_NAME_FAILURES + " REAL," +
+                    MirrorEntry.COLUMN_NAME_TIMESTAMP + " INTEGER)";
+
+    private static final String SQL_DELETE_MIRRORS =
+            "DROP TABLE IF EXISTS " + MirrorEntry.TABLE_NAME;
+
+    private static final String SQL_CREATE_PACKAGES =
+            "CREATE TABLE " + PackageEntry.TABLE_NAME + " (" +
+                    PackageEntry._ID + " INTEGER PRIMARY KEY," +
+                    PackageEntry.COLUMN_NAME_DOWNLOAD_ID + " TEXT NOT NULL UNIQUE," +
+                    PackageEntry.COLUMN_NAME_FILE_SIZE + " INTEGER," +
+                    PackageEntry.COLUMN_NAME_LAST_MODIFIED + " INTEGER," +
+                    PackageEntry.COLUMN_NAME_AB + " INTEGER," +
+                    PackageEntry.COLUMN_NAME_PAYLOAD_OFFSET + " INTEGER," +
+                    PackageEntry.COLUMN_NAME_PAYLOAD_PROPERTIES + " TEXT)";
+
+    private static final String SQL_DELETE_PACKAGES =
+            "DROP TABLE IF EXISTS " + PackageEntry.TABLE_NAME;
+
+    // Metadata of packages whose update is gone
+    private static final String SQL_DELETE_ORPHAN_PACKAGES =
+            "DELETE FROM " + PackageEntry.TABLE_NAME + " WHERE " +
+                    PackageEntry.COLUMN_NAME_DOWNLOAD_ID + " NOT IN (SELECT " +
+                    UpdateEntry.COLUMN_NAME_DOWNLOAD_ID + " FROM " + UpdateEntry.TABLE_NAME + ")";
+
     public UpdatesDbHelper(Context context) {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
     }
 
     public void onCreate(SQLiteDatabase db) {
         db.execSQL(SQL_CREATE_ENTRIES);
+        db.execSQL(SQL_CREATE_MIRRORS);
+        db.execSQL(SQL_CREATE_PACKAGES);
     }
 
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        db.execSQL(SQL_DELETE_ENTRIES);
-        onCreate(db);
+        // Keep the updates, they might be downloaded already
+        if (oldVersion < 2) {
+            db.execSQL(SQL_CREATE_MIRRORS);
+        }
+        if (oldVersion < 3) {
+            for (String sql : SQL_ADD_VALIDATORS) {
+                db.execSQL(sql);
+            }
+        }
+        if (oldVersion < 4) {
+            db.execSQL(SQL_CREATE_PACKAGES);
+        }
+        if (oldVersion < 5) {
+            db.execSQL(SQL_ADD_VERIFIED_FINGERPRINT);
+        }
     }
 
     public void onDowngrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        onUpgrade(db, oldVersion, newVersion);
+        db.execSQL(SQL_DELETE_ENTRIES);
+        db.execSQL(SQL_DELETE_MIRRORS);
+        db.execSQL(SQL_DELETE_PACKAGES);
+        onCreate(db);
     }
 
     public long addUpdate(Update update) {
@@ -97,19 +189,26 @@ public class UpdatesDbHelper extends SQLiteOpenHelper {
         values.put(UpdateEntry.COLUMN_NAME_TYPE, update.getType());
         values.put(UpdateEntry.COLUMN_NAME_VERSION, update.getVersion());
         values.put(UpdateEntry.COLUMN_NAME_SIZE, update.getFileSize());
+        values.put(UpdateEntry.COLUMN_NAME_ETAG, update.getETag());
+        values.put(UpdateEntry.COLUMN_NAME_LAST_MODIFIED, update.getLastModified());
+        values.put(UpdateEntry.COLUMN_NAME_VALIDATOR_URL, update.getValidatorUrl());
     }
 
     public boolean removeUpdate(String downloadId) {
         SQLiteDatabase db = getWritableDatabase();
         String selection = UpdateEntry.COLUMN_NAME_DOWNLOAD_ID + " = ?";
         String[] selectionArgs = {downloadId};
-        return db.delete(UpdateEntry.TABLE_NAME, selection, selectionArgs) != 0;
+        boolean removed = db.delete(UpdateEntry.TABLE_NAME, selection, selectionArgs) != 0;
+        db.execSQL(SQL_DELETE_ORPHAN_PACKAGES);
+        return removed;
     }
 
     public boolean removeUpdate(long rowId) {
         SQLiteDatabase db = getWritableDatabase();
         String selection = UpdateEntry._ID + " = " + rowId;
-        return db.delete(UpdateEntry.TABLE_NAME, selection, null) != 0;
+        boolean removed = db.delete(UpdateEntry.TABLE_NAME, selection, null) != 0;
+        db.execSQL(SQL_DELETE_ORPHAN_PACKAGES);
+        return removed;
     }
 
     public boolean changeUpdateStatus(Update update) {
@@ -131,6 +230,36 @@ public class UpdatesDbHelper extends SQLiteOpenHelper {
         return db.update(UpdateEntry.TABLE_NAME, values, selection, selectionArgs) != 0;
     }
 
+    /**
+     * @param fingerprint the fingerprint of the file when it was verified, null if it
+     *                    needs to be verified again
+     */
+    public boolean setVerifiedFingerprint(String downloadId, String fingerprint) {
+        SQLiteDatabase db = getWritableDatabase();
+        ContentValues values = new ContentValues();
+        values.put(UpdateEntry.COLUMN_NAME_VERIFIED_FINGERPRINT, fingerprint);
+        String selection = UpdateEntry.COLUMN_NAME_DOWNLOAD_ID + " = ?";
+        String[] selectionArgs = {downloadId};
+        return db.update(UpdateEntry.TABLE_NAME, values, selection, selectionArgs) != 0;
+    }
+
+    public String getVerifiedFingerprint(String downloadId) {
+        SQLiteDatabase db = getReadableDatabase();
+        String[] projection = {UpdateEntry.COLUMN_NAME_VERIFIED_FINGERPRINT};
+        String selection = UpdateEntry.COLUMN_NAME_DOWNLOAD_ID + " = ?";
+        String[] selectionArgs = {downloadId};
+        Cursor cursor = db.query(UpdateEntry.TABLE_NAME, projection, selection, selectionArgs,
+                null, null, null);
+        String fingerprint = null;
+        if (cursor != null) {
+            if (cursor.moveToFirst()) {
+                fingerprint = cursor.getString(0);
+            }
+            cursor.close();
+        }
+        return fingerprint;
+    }
+
     public Update getUpdate(long rowId) {
         String selection = UpdateEntry._ID + " = " + rowId;
         return getUpdate(selection, null);
@@ -161,6 +290,9 @@ public class UpdatesDbHelper extends SQLiteOpenHelper {
                 UpdateEntry.COLUMN_NAME_VERSION,
                 UpdateEntry.COLUMN_NAME_STATUS,
                 UpdateEntry.COLUMN_NAME_SIZE,
+                UpdateEntry.COLUMN_NAME_ETAG,
+                UpdateEntry.COLUMN_NAME_LAST_MODIFIED,
+                UpdateEntry.COLUMN_NAME_VALIDATOR_URL,
         };
         String sort = UpdateEntry.COLUMN_NAME_TIMESTAMP + " DESC";
         Cursor cursor = db.query(UpdateEntry.TABLE_NAME, projection, selection, selectionArgs,
@@ -184,10 +316,115 @@ public class UpdatesDbHelper extends SQLiteOpenHelper {
                 update.setPersistentStatus(cursor.getInt(index));
                 index = cursor.getColumnIndex(UpdateEntry.COLUMN_NAME_SIZE);
                 update.setFileSize(cursor.getLong(index));
+                index = cursor.getColumnIndex(UpdateEntry.COLUMN_NAME_ETAG);
+                update.setETag(cursor.getString(index));
+                index = cursor.getColumnIndex(UpdateEntry.COLUMN_NAME_LAST_MODIFIED);
+                update.setLastModified(cursor.getString(index));
+                index = cursor.getColumnIndex(UpdateEntry.COLUMN_NAME_VALIDATOR_URL);
+                update.setValidatorUrl(cursor.getString(index));
                 updates.add(update);
             }
             cursor.close();
         }
         return updates;
     }
+
+    public void savePackageMetadata(String downloadId, PackageMetadata metadata) {
+        SQLiteDatabase db = getWritableDatabase();
+        ContentValues values = new ContentValues();
+        values.put(PackageEntry.COLUMN_NAME_DOWNLOAD_ID, downloadId);
+        values.put(PackageEntry.COLUMN_NAME_FILE_SIZE, metadata.getFileSize());
+        values.put(PackageEntry.COLUMN_NAME_LAST_MODIFIED, metadata.getLastModified());
+        values.put(PackageEntry.COLUMN_NAME_AB, metadata.isAB() ? 1 : 0);
+        values.put(PackageEntry.COLUMN_NAME_PAYLOAD_OFFSET, metadata.getPayloadOffset());
+        String[] properties = metadata.getPayloadProperties();
+        values.put(PackageEntry.COLUMN_NAME_PAYLOAD_PROPERTIES,
+                properties != null ? TextUtils.join("\n", properties) : null);
+        db.insertWithOnConflict(PackageEntry.TABLE_NAME, null, values,
+                SQLiteDatabase.CONFLICT_REPLACE);
+    }
+
+    public PackageMetadata getPackageMetadata(String downloadId) {
+        SQLiteDatabase db = getReadableDatabase();
+        String[] projection = {
+                PackageEntry.COLUMN_NAME_FILE_SIZE,
+                PackageEntry.COLUMN_NAME_LAST_MODIFIED,
+                PackageEntry.COLUMN_NAME_AB,
+                PackageEntry.COLUMN_NAME_PAYLOAD_OFFSET,
+                PackageEntry.COLUMN_NAME_PAYLOAD_PROPERTIES,
+        };
+        String selection = PackageEntry.COLUMN_NAME_DOWNLOAD_ID + " = ?";
+        String[] selectionArgs = {downloadId};
+        Cursor cursor = db.query(PackageEntry.TABLE_NAME, projection, selection, selectionArgs,
+                null, null, null);
+        PackageMetadata metadata = null;
+        if (cursor != null) {
+            if (cursor.moveToFirst()) {
+                String properties = cursor.getString(cursor.getColumnIndex(
+                        PackageEntry.COLUMN_NAME_PAYLOAD_PROPERTIES));
+                metadata = new PackageMetadata(
+                        cursor.getLong(cursor.getColumnIndex(
+                                PackageEntry.COLUMN_NAME_FILE_SIZE)),
+                        cursor.getLong(cursor.getColumnIndex(
+                                PackageEntry.COLUMN_NAME_LAST_MODIFIED)),
+                        cursor.getInt(cursor.getColumnIndex(PackageEntry.COLUMN_NAME_AB)) != 0,
+                        cursor.getLong(cursor.getColumnIndex(
+                                PackageEntry.COLUMN_NAME_PAYLOAD_OFFSET)),
+                        properties != null ? properties.split("\n", -1) : null);
+            }
+            cursor.close();
+        }
+        return metadata;
+    }
+
+    @Override
+    public void saveMirrorStats(List<MirrorStats.Entry> entries) {
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (MirrorStats.Entry entry : entries) {
+                ContentValues values = new ContentValues();
+                values.put(MirrorEntry.COLUMN_NAME_HOST, entry.getHost());
+                values.put(MirrorEntry.COLUMN_NAME_TTFB, entry.getTtfb());
+                values.put(MirrorEntry.COLUMN_NAME_THROUGHPUT, entry.getThroughput());
+                values.put(MirrorEntry.COLUMN_NAME_FAILURES, entry.getFailures());
+                values.put(MirrorEntry.COLUMN_NAME_TIMESTAMP, entry.getTimestamp());
+                db.insertWithOnConflict(MirrorEntry.TABLE_NAME, null, values,
+                        SQLiteDatabase.CONFLICT_REPLACE);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    @Override
+    public List<MirrorStats.Entry> getMirrorStats() {
+        SQLiteDatabase db = getReadableDatabase();
+        String[] projection = {
+                MirrorEntry.COLUMN_NAME_HOST,
+                MirrorEntry.COLUMN_NAME_TTFB,
+                MirrorEntry.COLUMN_NAME_THROUGHPUT,
+                MirrorEntry.COLUMN_NAME_FAILURES,
+                MirrorEntry.COLUMN_NAME_TIMESTAMP,
+        };
+        Cursor cursor = db.query(MirrorEntry.TABLE_NAME, projection, null, null,
+                null, null, null);
+        List<MirrorStats.Entry> entries = new ArrayList<>();
+        if (cursor != null) {
+            while (cursor.moveToNext()) {
+                entries.add(new MirrorStats.Entry(
+                        cursor.getString(cursor.getColumnIndex(MirrorEntry.COLUMN_NAME_HOST)),
+                        cursor.getLong(cursor.getColumnIndex(MirrorEntry.COLUMN_NAME_TTFB)),
+                        cursor.getLong(cursor.getColumnIndex(
+                                MirrorEntry.COLUMN_NAME_THROUGHPUT)),
+                        cursor.getDouble(cursor.getColumnIndex(
+                                MirrorEntry.COLUMN_NAME_FAILURES)),
+                        cursor.getLong(cursor.getColumnIndex(
+                                MirrorEntry.COLUMN_NAME_TIMESTAMP))));
+            }
+            cursor.close();
+        }
+        return entries;
+    }
 }
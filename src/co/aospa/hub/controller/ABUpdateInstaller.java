@@ -17,6 +17,7 @@ package co.aospa.hub.controller;
 
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.net.Network;
 import android.os.UpdateEngine;
 import android.os.UpdateEngineCallback;
 import android.text.TextUtils;
@@ -24,20 +25,22 @@ import android.util.Log;
 
 import androidx.preference.PreferenceManager;
 
+import co.aospa.hub.download.LocalFileServer;
+import co.aospa.hub.download.RemoteZip;
 import co.aospa.hub.misc.Constants;
-import co.aospa.hub.misc.Utils;
+import co.aospa.hub.model.PackageMetadata;
 import co.aospa.hub.model.Update;
 import co.aospa.hub.model.UpdateStatus;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipFile;
 
 class ABUpdateInstaller {
 
@@ -56,6 +59,7 @@ class ABUpdateInstaller {
     private boolean mBound;
 
     private boolean mFinalizing;
+    private LocalFileServer mLocalFileServer;
     private int mProgress;
 
     private final UpdateEngineCallback mUpdateEngineCallback = new UpdateEngineCallback() {
@@ -108,7 +112,14 @@ class ABUpdateInstaller {
                 installationDone(false);
                 Update update = mUpdaterController.getActualUpdate(mDownloadId);
                 update.setInstallProgress(0);
-                update.setStatus(UpdateStatus.INSTALLATION_FAILED);
+                if (mUpdaterController.isDownloading(mDownloadId)) {
+                    // Installed while downloading, it can be installed again once downloaded
+                    Log.e(TAG, "Installation failed with error " + errorCode +
+                            ", finishing the download");
+                    update.setStatus(UpdateStatus.DOWNLOADING);
+                } else {
+                    update.setStatus(UpdateStatus.INSTALLATION_FAILED);
+                }
                 mUpdaterController.notifyUpdateChange(mDownloadId);
             }
         }
@@ -142,10 +153,36 @@ class ABUpdateInstaller {
         return TextUtils.equals(waitingId, downloadId);
     }
 
+    /**
+     * The payload of a package still on the server, as update_engine needs it
+     */
+    static class RemotePayload {
+        final String mUrl;
+        // The size of the whole package
+        final long mLength;
+        final long mOffset;
+        final long mSize;
+        final String[] mHeaders;
+
+        RemotePayload(String url, long length, long offset, long size,
+                String[] headers) {
+            mUrl = url;
+            mLength = length;
+            mOffset = offset;
+            mSize = size;
+            mHeaders = headers;
+        }
+    }
+
     private ABUpdateInstaller(Context context, UpdaterController updaterController) {
+        this(context, updaterController, new UpdateEngine());
+    }
+
+    ABUpdateInstaller(Context context, UpdaterController updaterController,
+            UpdateEngine updateEngine) {
         mUpdaterController = updaterController;
         mContext = context.getApplicationContext();
-        mUpdateEngine = new UpdateEngine();
+        mUpdateEngine = updateEngine;
     }
 
     static synchronized ABUpdateInstaller getInstance(Context context,
@@ -173,24 +210,13 @@ class ABUpdateInstaller {
             return false;
         }
 
-        long offset;
-        String[] headerKeyValuePairs;
+        PackageMetadata metadata;
         try {
-            ZipFile zipFile = new ZipFile(file);
-            offset = Utils.getZipEntryOffset(zipFile, Constants.AB_PAYLOAD_BIN_PATH);
-            ZipEntry payloadPropEntry = zipFile.getEntry(Constants.AB_PAYLOAD_PROPERTIES_PATH);
-            try (InputStream is = zipFile.getInputStream(payloadPropEntry);
-                 InputStreamReader isr = new InputStreamReader(is);
-                 BufferedReader br = new BufferedReader(isr)) {
-                List<String> lines = new ArrayList<>();
-                for (String line; (line = br.readLine()) != null;) {
-                    lines.add(line);
-                }
-                headerKeyValuePairs = new String[lines.size()];
-                headerKeyValuePairs = lines.toArray(headerKeyValuePairs);
+            metadata = mUpdaterController.getPackageMetadata(mDownloadId);
+            if (!metadata.isAB()) {
+                throw new IOException("Not an A/B package");
             }
-            zipFile.close();
-        } catch (IOException | IllegalArgumentException e) {
+        } catch (IOException e) {
             Log.e(TAG, "Could not prepare " + file, e);
             mUpdaterController.getActualUpdate(mDownloadId)
                     .setStatus(UpdateStatus.INSTALLATION_FAILED);
@@ -198,13 +224,107 @@ class ABUpdateInstaller {
             return false;
         }
 
+        String zipFileUri = "file://" + file.getAbsolutePath();
+        return applyPayload(zipFileUri, metadata.getPayloadOffset(), 0,
+                metadata.getPayloadProperties());
+    }
+
+    /**
+     * Install a package that is still on the server. update_engine downloads the
+     * payload itself with range requests and writes it straight to the other slot,
+     * the package is never stored on the device.
+     */
+    public boolean install(String downloadId, RemotePayload payload, Network network) {
+        if (isInstallingUpdate(mContext)) {
+            Log.e(TAG, "Already installing an update");
+            return false;
+        }
+
+        mDownloadId = downloadId;
+        Log.d(TAG, "Streaming " + payload.mSize + " bytes at offset " + payload.mOffset +
+                " of " + payload.mUrl);
+        List<String> headers = new ArrayList<>(Arrays.asList(payload.mHeaders));
+        if (network != null) {
+            headers.add("NETWORK_ID=" + network.getNetworkHandle());
+        }
+        return applyPayload(payload.mUrl, payload.mOffset, payload.mSize,
+                headers.toArray(new String[0]));
+    }
+
+    /**
+     * Install a package while it's being downloaded. update_engine reads the payload
+     * from a loopback server, which makes it wait for the bytes not downloaded yet.
+     * The file is kept, so it can still be installed once downloaded if this fails.
+     *
+     * @param file the file the package is being downloaded to
+     * @param source what was written to the file so far
+     */
+    public boolean install(String downloadId, RemotePayload payload, File file,
+            LocalFileServer.Source source) {
+        if (isInstallingUpdate(mContext)) {
+            Log.e(TAG, "Already installing an update");
+            return false;
+        }
+
+        mDownloadId = downloadId;
+        LocalFileServer server = new LocalFileServer(file, payload.mLength, source);
+        String url;
+        try {
+            url = server.start();
+        } catch (IOException e) {
+            Log.e(TAG, "Could not serve " + file, e);
+            return false;
+        }
+        Log.d(TAG, "Installing " + file + " while downloading it");
+        if (!applyPayload(url, payload.mOffset, payload.mSize, payload.mHeaders)) {
+            server.stop();
+            return false;
+        }
+        mLocalFileServer = server;
+        return true;
+    }
+
+    /**
+     * Locate the payload of a package on the server and read its properties
+     */
+    static RemotePayload getRemotePayload(RemoteZip zip, String url) throws IOException {
+        RemoteZip.Entry payloadEntry = zip.getEntry(Constants.AB_PAYLOAD_BIN_PATH);
+        RemoteZip.Entry payloadPropEntry = zip.getEntry(Constants.AB_PAYLOAD_PROPERTIES_PATH);
+        if (payloadEntry == null || payloadPropEntry == null) {
+            throw new IOException("Not an A/B package");
+        }
+        if (!payloadEntry.isStored()) {
+            throw new IOException(Constants.AB_PAYLOAD_BIN_PATH + " is compressed");
+        }
+        String[] headers;
+        try (InputStream is = new ByteArrayInputStream(zip.readEntry(payloadPropEntry))) {
+            headers = readPayloadProperties(is);
+        }
+        return new RemotePayload(url, zip.getLength(), zip.getDataOffset(payloadEntry),
+                payloadEntry.getSize(), headers);
+    }
+
+    static String[] readPayloadProperties(InputStream is) throws IOException {
+        try (InputStreamReader isr = new InputStreamReader(is);
+             BufferedReader br = new BufferedReader(isr)) {
+            List<String> lines = new ArrayList<>();
+            for (String line; (line = br.readLine()) != null;) {
+                lines.add(line);
+            }
+            String[] headerKeyValuePairs = new String[lines.size()];
+            return lines.toArray(headerKeyValuePairs);
+        }
+    }
+
+    private boolean applyPayload(String url, long offset, long size,
+            String[] headerKeyValuePairs) {
         if (!mBound) {
             mBound = mUpdateEngine.bind(mUpdateEngineCallback);
             if (!mBound) {
                 Log.e(TAG, "Could not bind");
-                mUpdaterController.getActualUpdate(downloadId)
+                mUpdaterController.getActualUpdate(mDownloadId)
                         .setStatus(UpdateStatus.INSTALLATION_FAILED);
-                mUpdaterController.notifyUpdateChange(downloadId);
+                mUpdaterController.notifyUpdateChange(mDownloadId);
                 return false;
             }
         }
@@ -213,8 +333,16 @@ class ABUpdateInstaller {
                 .getBoolean(Constants.PREF_AB_PERF_MODE, false);
         mUpdateEngine.setPerformanceMode(enableABPerfMode);
 
-        String zipFileUri = "file://" + file.getAbsolutePath();
-        mUpdateEngine.applyPayload(zipFileUri, offset, 0, headerKeyValuePairs);
+        try {
+            mUpdateEngine.applyPayload(url, offset, size, headerKeyValuePairs);
+        } catch (RuntimeException e) {
+            // ServiceSpecificException when the payload is refused, or the service died
+            Log.e(TAG, "update_engine refused the payload", e);
+            mUpdaterController.getActualUpdate(mDownloadId)
+                    .setStatus(UpdateStatus.INSTALLATION_FAILED);
+            mUpdaterController.notifyUpdateChange(mDownloadId);
+            return false;
+        }
 
         mUpdaterController.getActualUpdate(mDownloadId).setStatus(UpdateStatus.INSTALLING);
         mUpdaterController.notifyUpdateChange(mDownloadId);
@@ -250,6 +378,10 @@ class ABUpdateInstaller {
     }
 
     private void installationDone(boolean needsReboot) {
+        if (mLocalFileServer != null) {
+            mLocalFileServer.stop();
+            mLocalFileServer = null;
+        }
         SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(mContext);
         String id = needsReboot ? prefs.getString(PREF_INSTALLING_AB_ID, null) : null;
         PreferenceManager.getDefaultSharedPreferences(mContext).edit()
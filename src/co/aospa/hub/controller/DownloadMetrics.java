@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2026 Paranoid Android
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.aospa.hub.controller;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+import co.aospa.hub.misc.Constants;
+
+/**
+ * Counts how the downloads end and how long they take, so that the effect of stalls
+ * and mirror failures on users can be followed across updates.
+ */
+public class DownloadMetrics {
+
+    private static final String TAG = "DownloadMetrics";
+
+    private final SharedPreferences mPreferences;
+
+    DownloadMetrics(Context context) {
+        mPreferences = PreferenceManager.getDefaultSharedPreferences(context);
+    }
+
+    private void increment(String key, long value) {
+        mPreferences.edit().putLong(key, mPreferences.getLong(key, 0) + value).apply();
+    }
+
+    /**
+     * Called every time a download starts or resumes
+     */
+    synchronized void recordRun() {
+        increment(Constants.PREF_DOWNLOAD_RUNS, 1);
+    }
+
+    /**
+     * Called when a download is paused because of an error
+     */
+    synchronized void recordError() {
+        increment(Constants.PREF_DOWNLOAD_ERRORS, 1);
+        Log.d(TAG, "Download failed, " + this);
+    }
+
+    synchronized void recordStall() {
+        increment(Constants.PREF_DOWNLOAD_STALLS, 1);
+    }
+
+    /**
+     * @param millis the time spent downloading, pauses excluded
+     */
+    synchronized void recordCompletion(long millis) {
+        increment(Constants.PREF_DOWNLOAD_COMPLETIONS, 1);
+        increment(Constants.PREF_DOWNLOAD_COMPLETION_MILLIS, millis);
+        Log.d(TAG, "Download completed in " + millis + " ms, " + this);
+    }
+
+    private static String getSocketOptionsKey(int receiveBufferSize, boolean tcpNoDelay) {
+        return "rcvbuf" + receiveBufferSize + "_nodelay" + tcpNoDelay;
+    }
+
+    /**
+     * Add the transfer of a completed download to the throughput of the socket options
+     * it was made with
+     *
+     * @param receiveBufferSize the receive buffer size in bytes, 0 for the system default
+     * @param tcpNoDelay whether Nagle's algorithm was disabled
+     * @param bytes the bytes downloaded by this process, what was already downloaded
+     * when it was resumed excluded
+     * @param millis the time spent downloading them, pauses excluded
+     */
+    synchronized void recordThroughput(int receiveBufferSize, boolean tcpNoDelay, long bytes,
+            long millis) {
+        String key = getSocketOptionsKey(receiveBufferSize, tcpNoDelay);
+        increment(Constants.PREF_DOWNLOAD_SOCKET_BYTES + key, bytes);
+        increment(Constants.PREF_DOWNLOAD_SOCKET_MILLIS + key, millis);
+        Log.d(TAG, "Downloaded at " + getThroughput(receiveBufferSize, tcpNoDelay) +
+                " B/s on average with rcvbuf=" + receiveBufferSize + ",nodelay=" + tcpNoDelay);
+    }
+
+    /**
+     * @return the average throughput of the downloads made with the given socket
+     * options in bytes per second, 0 if there's none
+     */
+    public synchronized long getThroughput(int receiveBufferSize, boolean tcpNoDelay) {
+        String key = getSocketOptionsKey(receiveBufferSize, tcpNoDelay);
+        long bytes = mPreferences.getLong(Constants.PREF_DOWNLOAD_SOCKET_BYTES + key, 0);
+        long millis = mPreferences.getLong(Constants.PREF_DOWNLOAD_SOCKET_MILLIS + key, 0);
+        return millis > 0 ? bytes * 1000 / millis : 0;
+    }
+
+    public synchronized long getRunCount() {
+        return mPreferences.getLong(Constants.PREF_DOWNLOAD_RUNS, 0);
+    }
+
+    public synchronized long getStallCount() {
+        return mPreferences.getLong(Constants.PREF_DOWNLOAD_STALLS, 0);
+    }
+
+    /**
+     * @return the fraction of the runs that ended in PAUSED_ERROR
+     */
+    public synchronized double getErrorRate() {
+        long runs = getRunCount();
+        long errors = mPreferences.getLong(Constants.PREF_DOWNLOAD_ERRORS, 0);
+        return runs > 0 ? (double) errors / runs : 0;
+    }
+
+    /**
+     * @return the average time spent downloading an update, pauses excluded
+     */
+    public synchronized long getAverageCompletionMillis() {
+        long completions = mPreferences.getLong(Constants.PREF_DOWNLOAD_COMPLETIONS, 0);
+        long millis = mPreferences.getLong(Constants.PREF_DOWNLOAD_COMPLETION_MILLIS, 0);
+        return completions > 0 ? millis / completions : 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return getRunCount() + " runs, error rate " + getErrorRate() + ", " + getStallCount() +
+                " stalls, completed in " + getAverageCompletionMillis() + " ms on average";
+    }
+}
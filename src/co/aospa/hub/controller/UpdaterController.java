@@ -17,20 +17,42 @@ package co.aospa.hub.controller;
 
 import android.content.Context;
 import android.content.Intent;
+import android.content.SharedPreferences;
 import android.database.sqlite.SQLiteDatabase;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.net.NetworkRequest;
+import android.os.Handler;
+import android.os.Looper;
 import android.os.PowerManager;
 import android.os.SystemClock;
 import android.util.Log;
 
 import androidx.localbroadcastmanager.content.LocalBroadcastManager;
+import androidx.preference.PreferenceManager;
 
+import co.aospa.hub.R;
 import co.aospa.hub.UpdatesDbHelper;
+import co.aospa.hub.download.ByteBudget;
 import co.aospa.hub.download.DownloadClient;
+import co.aospa.hub.download.DownloadSocketFactory;
+import co.aospa.hub.download.MirrorStats;
+import co.aospa.hub.download.RateLimiter;
+import co.aospa.hub.download.RemoteZip;
+import co.aospa.hub.download.SegmentMap;
+import co.aospa.hub.download.TlsSessionCache;
+import co.aospa.hub.download.Transport;
+import co.aospa.hub.misc.Constants;
+import co.aospa.hub.misc.FileFingerprint;
+import co.aospa.hub.misc.MappedZip;
 import co.aospa.hub.misc.Utils;
+import co.aospa.hub.model.PackageMetadata;
 import co.aospa.hub.model.Update;
 import co.aospa.hub.model.UpdateInfo;
 import co.aospa.hub.model.UpdateStatus;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
@@ -38,6 +60,7 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
 import java.util.Set;
 
 public class UpdaterController {
@@ -54,17 +77,44 @@ public class UpdaterController {
 
     private static final int MAX_REPORT_INTERVAL_MS = 1000;
 
+    // Downloads paused by an error are resumed automatically this many times in a row
+    private static final int MAX_RETRIES = 8;
+    private static final long RETRY_BASE_DELAY_MS = 15 * 1000;
+    private static final long RETRY_MAX_DELAY_MS = 15 * 60 * 1000;
+
     private final Context mContext;
     private final LocalBroadcastManager mBroadcastManager;
     private final UpdatesDbHelper mUpdatesDbHelper;
+    private final MirrorStats mMirrorStats;
+    private final DownloadMetrics mDownloadMetrics;
+    private final RateLimiter mRateLimiter = new RateLimiter();
 
     private final PowerManager.WakeLock mWakeLock;
 
     private final File mDownloadRoot;
 
+    // The retries are scheduled and run on the main thread
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final Random mRandom = new Random();
+    private final Set<String> mWaitingForNetwork = new HashSet<>();
+
+    // The default network, new downloads are bound to it
+    private Network mNetwork;
+
+    // Mobile data used along with the default network, requested while downloading
+    private boolean mMultipathEnabled;
+    private ConnectivityManager.NetworkCallback mCellularCallback;
+    private Network mCellularNetwork;
+
     private int mActiveDownloads = 0;
     private Set<String> mVerifyingUpdates = new HashSet<>();
 
+    // Download rate limits in bytes per second, 0 for no limit
+    private boolean mForeground;
+    private long mForegroundRateLimit;
+    private long mBackgroundRateLimit;
+    private long mMeteredRateLimit;
+
     public static synchronized UpdaterController getInstance() {
         return sUpdaterController;
     }
@@ -79,11 +129,36 @@ public class UpdaterController {
     private UpdaterController(Context context) {
         mBroadcastManager = LocalBroadcastManager.getInstance(context);
         mUpdatesDbHelper = new UpdatesDbHelper(context);
+        mMirrorStats = new MirrorStats(mUpdatesDbHelper);
+        mDownloadMetrics = new DownloadMetrics(context);
         mDownloadRoot = Utils.getDownloadPath(context);
         PowerManager powerManager = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
         mWakeLock = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, "Updater");
         mWakeLock.setReferenceCounted(false);
         mContext = context.getApplicationContext();
+        mForegroundRateLimit = context.getResources().getInteger(
+                R.integer.download_rate_limit_foreground) * 1024L;
+        mBackgroundRateLimit = context.getResources().getInteger(
+                R.integer.download_rate_limit_background) * 1024L;
+        mMeteredRateLimit = context.getResources().getInteger(
+                R.integer.download_rate_limit_metered) * 1024L;
+        mMultipathEnabled = PreferenceManager.getDefaultSharedPreferences(context)
+                .getBoolean(Constants.PREF_MULTIPATH_DOWNLOADS, false);
+
+        ConnectivityManager cm = (ConnectivityManager) context.getSystemService(
+                Context.CONNECTIVITY_SERVICE);
+        mNetwork = cm.getActiveNetwork();
+        cm.registerDefaultNetworkCallback(new ConnectivityManager.NetworkCallback() {
+            @Override
+            public void onAvailable(Network network) {
+                mHandler.post(() -> onNetworkAvailable(network));
+            }
+
+            @Override
+            public void onLost(Network network) {
+                mHandler.post(() -> onNetworkLost(network));
+            }
+        });
 
         Utils.cleanupDownloadsDir(context);
 
@@ -95,6 +170,29 @@ public class UpdaterController {
     private class DownloadEntry {
         final Update mUpdate;
         DownloadClient mDownloadClient;
+        // Time spent downloading and bytes downloaded in that time, pauses excluded
+        long mDownloadMillis;
+        long mDownloadBytes;
+        long mRunStartMillis;
+        long mRunStartBytes;
+        // Retries since the download last made progress
+        int mRetryCount;
+        int mRetryProgress = -1;
+        Runnable mRetry;
+        // The network the download is bound to
+        Network mNetwork;
+        // Whether the user chose to download it on a metered network
+        boolean mMeteredAllowed;
+        // Whether the download is resumed once stopped, after the default network changed
+        boolean mMoving;
+        // Whether the download also uses mobile data, and how much it may use
+        boolean mMultipath;
+        ByteBudget mCellularBudget;
+        // Whether the package is being checked on the server before downloading it
+        boolean mInspecting;
+        // Downloads it unchecked if the check takes too long, identifies the current check
+        Runnable mInspectionTimeout;
+        volatile PackageMetadata mPackageMetadata;
         private DownloadEntry(Update update) {
             mUpdate = update;
         }
@@ -133,6 +231,7 @@ public class UpdaterController {
     private void tryReleaseWakelock() {
         if (!hasActiveDownloads()) {
             mWakeLock.release();
+            mHandler.post(this::updateCellularRequest);
         }
     }
 
@@ -141,7 +240,11 @@ public class UpdaterController {
             return;
         }
         entry.mDownloadClient = downloadClient;
+        entry.mRunStartMillis = SystemClock.elapsedRealtime();
+        // Resumed downloads, possibly by an earlier process, have some bytes already
+        entry.mRunStartBytes = SegmentMap.getDownloadedBytes(entry.mUpdate.getFile());
         mActiveDownloads++;
+        mDownloadMetrics.recordRun();
     }
 
     private void removeDownloadClient(DownloadEntry entry) {
@@ -149,6 +252,9 @@ public class UpdaterController {
             return;
         }
         entry.mDownloadClient = null;
+        entry.mDownloadMillis += SystemClock.elapsedRealtime() - entry.mRunStartMillis;
+        entry.mDownloadBytes += Math.max(0,
+                SegmentMap.getDownloadedBytes(entry.mUpdate.getFile()) - entry.mRunStartBytes);
         mActiveDownloads--;
     }
 
@@ -169,7 +275,16 @@ public class UpdaterController {
                         Log.e(TAG, "Could not get content-length");
                     }
                 }
-                update.setStatus(UpdateStatus.DOWNLOADING);
+                if (statusCode / 100 == 2) {
+                    // Tells whether the file changed on the server when resuming
+                    update.setETag(headers.get("ETag"));
+                    update.setLastModified(headers.get("Last-Modified"));
+                    update.setValidatorUrl(url);
+                }
+                // An update installed while downloading shows the installation
+                if (!isInstallingUpdate(downloadId)) {
+                    update.setStatus(UpdateStatus.DOWNLOADING);
+                }
                 update.setPersistentStatus(UpdateStatus.Persistent.INCOMPLETE);
                 new Thread(() -> mUpdatesDbHelper.addUpdateWithOnConflict(update,
                         SQLiteDatabase.CONFLICT_REPLACE)).start();
@@ -178,11 +293,50 @@ public class UpdaterController {
 
             @Override
             public void onSuccess(File destination) {
-                Log.d(TAG, "Download complete");
+                Log.d(TAG, "Download complete, " + TlsSessionCache.getResumedCount() +
+                        " TLS sessions resumed and " + TlsSessionCache.getFullCount() +
+                        " full handshakes so far");
+                DownloadEntry entry = mDownloads.get(downloadId);
+                Update update = entry.mUpdate;
+                if (!isInstallingUpdate(downloadId)) {
+                    update.setStatus(UpdateStatus.VERIFYING);
+                }
+                removeDownloadClient(entry);
+                mDownloadMetrics.recordCompletion(entry.mDownloadMillis);
+                // Throttled and multipath downloads say little about the socket options
+                if (mRateLimiter.getRate() == 0 && !entry.mMultipath &&
+                        entry.mDownloadBytes > 0) {
+                    DownloadSocketFactory socketFactory =
+                            Utils.getDownloadSocketFactory(mContext);
+                    mDownloadMetrics.recordThroughput(socketFactory.getReceiveBufferSize(),
+                            socketFactory.getTcpNoDelay(), entry.mDownloadBytes,
+                            entry.mDownloadMillis);
+                }
+                entry.mDownloadMillis = 0;
+                entry.mDownloadBytes = 0;
+                verifyUpdateAsync(downloadId);
+                notifyUpdateChange(downloadId);
+                tryReleaseWakelock();
+            }
+
+            @Override
+            public void onInsufficientSpace(File destination, long size) {
+                Log.e(TAG, "Not enough space to download " + size + " bytes");
+                Update update = mDownloads.get(downloadId).mUpdate;
+                removeDownloadClient(mDownloads.get(downloadId));
+                update.setStatus(UpdateStatus.PAUSED_NO_SPACE);
+                notifyUpdateChange(downloadId);
+                tryReleaseWakelock();
+            }
+
+            @Override
+            public void onVerificationFailed(File destination) {
+                Log.e(TAG, "Download doesn't match the checksum");
                 Update update = mDownloads.get(downloadId).mUpdate;
                 update.setStatus(UpdateStatus.VERIFYING);
                 removeDownloadClient(mDownloads.get(downloadId));
-                verifyUpdateAsync(downloadId);
+                mVerifyingUpdates.add(downloadId);
+                new Thread(() -> setVerificationFailed(update)).start();
                 notifyUpdateChange(downloadId);
                 tryReleaseWakelock();
             }
@@ -193,15 +347,251 @@ public class UpdaterController {
                 if (cancelled) {
                     Log.d(TAG, "Download cancelled");
                     // Already notified
+                    mHandler.post(() -> onDownloadMoved(downloadId));
                 } else {
                     Log.e(TAG, "Download failed");
                     removeDownloadClient(mDownloads.get(downloadId));
                     update.setStatus(UpdateStatus.PAUSED_ERROR);
-                    notifyUpdateChange(downloadId);
+                    mDownloadMetrics.recordError();
+                    // Schedule first, so that the service knows it's still needed
+                    mHandler.post(() -> {
+                        scheduleRetry(downloadId);
+                        notifyUpdateChange(downloadId);
+                    });
                 }
                 tryReleaseWakelock();
             }
+
+            @Override
+            public void onStalled(String url) {
+                Log.e(TAG, "Download from " + url + " stalled");
+                mDownloadMetrics.recordStall();
+            }
+        };
+    }
+
+    private void scheduleRetry(String downloadId) {
+        DownloadEntry entry = mDownloads.get(downloadId);
+        if (entry == null || entry.mUpdate.getStatus() != UpdateStatus.PAUSED_ERROR) {
+            return;
+        }
+        if (entry.mUpdate.getProgress() > entry.mRetryProgress) {
+            // The download got further since the last failure, start counting again
+            entry.mRetryCount = 0;
+            entry.mRetryProgress = entry.mUpdate.getProgress();
+        }
+        if (entry.mRetryCount >= MAX_RETRIES) {
+            Log.e(TAG, "Not resuming " + downloadId + " after " + MAX_RETRIES + " retries");
+            return;
+        }
+        long delay = Math.min(RETRY_MAX_DELAY_MS, RETRY_BASE_DELAY_MS << entry.mRetryCount);
+        // Spread the retries of the devices that failed at the same time
+        delay = delay / 2 + (long) (mRandom.nextDouble() * (delay / 2));
+        entry.mRetryCount++;
+        entry.mRetry = () -> {
+            entry.mRetry = null;
+            retryDownload(downloadId);
         };
+        Log.d(TAG, "Resuming " + downloadId + " in " + delay + " ms, retry " +
+                entry.mRetryCount + " of " + MAX_RETRIES);
+        mHandler.postDelayed(entry.mRetry, delay);
+    }
+
+    private void retryDownload(String downloadId) {
+        DownloadEntry entry = mDownloads.get(downloadId);
+        if (entry == null) {
+            return;
+        }
+        UpdateStatus status = entry.mUpdate.getStatus();
+        if (status != UpdateStatus.PAUSED_ERROR && status != UpdateStatus.PAUSED) {
+            return;
+        }
+        if (!Utils.isNetworkAvailable(mContext)) {
+            Log.d(TAG, "Waiting for a network to resume " + downloadId);
+            mWaitingForNetwork.add(downloadId);
+            return;
+        }
+        if (!entry.mMeteredAllowed && !Utils.isDownloadAllowed(mContext, mNetwork)) {
+            Log.d(TAG, "Waiting for an unmetered network to resume " + downloadId);
+            mWaitingForNetwork.add(downloadId);
+            return;
+        }
+        if (!resumeDownload(downloadId)) {
+            scheduleRetry(downloadId);
+        }
+    }
+
+    private void cancelRetry(String downloadId) {
+        DownloadEntry entry = mDownloads.get(downloadId);
+        if (entry.mRetry != null) {
+            mHandler.removeCallbacks(entry.mRetry);
+            entry.mRetry = null;
+        }
+        mWaitingForNetwork.remove(downloadId);
+        entry.mMoving = false;
+        cancelInspection(entry);
+    }
+
+    private void cancelInspection(DownloadEntry entry) {
+        if (entry.mInspectionTimeout != null) {
+            mHandler.removeCallbacks(entry.mInspectionTimeout);
+            entry.mInspectionTimeout = null;
+        }
+        entry.mInspecting = false;
+    }
+
+    private void onNetworkAvailable(Network network) {
+        if (network.equals(mNetwork)) {
+            return;
+        }
+        Log.d(TAG, "Default network changed to " + network);
+        mNetwork = network;
+        // The connections of the previous network are about to go away
+        Utils.getConnectionPool(mContext).evictAll();
+        updateRateLimit();
+        boolean allowed = Utils.isDownloadAllowed(mContext, network);
+        for (Map.Entry<String, DownloadEntry> download : mDownloads.entrySet()) {
+            DownloadEntry entry = download.getValue();
+            if (entry.mDownloadClient != null && !network.equals(entry.mNetwork)) {
+                moveDownload(download.getKey(), entry, allowed || entry.mMeteredAllowed);
+            }
+        }
+        List<String> downloadIds = new ArrayList<>(mWaitingForNetwork);
+        mWaitingForNetwork.clear();
+        for (String downloadId : downloadIds) {
+            Log.d(TAG, "Network available, resuming " + downloadId);
+            retryDownload(downloadId);
+        }
+    }
+
+    private void onNetworkLost(Network network) {
+        if (network.equals(mNetwork)) {
+            Log.d(TAG, "Default network " + network + " lost");
+            mNetwork = null;
+        }
+    }
+
+    /**
+     * Keep mobile data up alongside the default network while downloading, if the user
+     * allowed downloads to use both
+     */
+    private void updateCellularRequest() {
+        boolean needed = mMultipathEnabled && hasActiveDownloads();
+        ConnectivityManager cm = (ConnectivityManager) mContext.getSystemService(
+                Context.CONNECTIVITY_SERVICE);
+        if (needed && mCellularCallback == null) {
+            Log.d(TAG, "Requesting mobile data for multipath downloads");
+            mCellularCallback = new ConnectivityManager.NetworkCallback() {
+                @Override
+                public void onAvailable(Network network) {
+                    mHandler.post(() -> onCellularAvailable(this, network));
+                }
+
+                @Override
+                public void onLost(Network network) {
+                    mHandler.post(() -> onCellularLost(this, network));
+                }
+            };
+            NetworkRequest request = new NetworkRequest.Builder()
+                    .addCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET)
+                    .addTransportType(NetworkCapabilities.TRANSPORT_CELLULAR)
+                    .build();
+            cm.requestNetwork(request, mCellularCallback);
+        } else if (!needed && mCellularCallback != null) {
+            Log.d(TAG, "Releasing mobile data");
+            cm.unregisterNetworkCallback(mCellularCallback);
+            mCellularCallback = null;
+            mCellularNetwork = null;
+        }
+    }
+
+    private void onCellularAvailable(ConnectivityManager.NetworkCallback callback,
+            Network network) {
+        if (callback != mCellularCallback || network.equals(mCellularNetwork)) {
+            return;
+        }
+        mCellularNetwork = network;
+        if (!isMultipathUsable()) {
+            return;
+        }
+        // The running downloads pick up the second network when resumed
+        for (Map.Entry<String, DownloadEntry> download : mDownloads.entrySet()) {
+            DownloadEntry entry = download.getValue();
+            if (entry.mDownloadClient != null && !entry.mMultipath) {
+                moveDownload(download.getKey(), entry, true);
+            }
+        }
+    }
+
+    private void onCellularLost(ConnectivityManager.NetworkCallback callback,
+            Network network) {
+        // The connections over it fail and the default network takes over their segments
+        if (callback == mCellularCallback && network.equals(mCellularNetwork)) {
+            mCellularNetwork = null;
+        }
+    }
+
+    private boolean isMultipathUsable() {
+        return mMultipathEnabled && mCellularNetwork != null && mNetwork != null &&
+                !mCellularNetwork.equals(mNetwork);
+    }
+
+    /**
+     * Let downloads use mobile data alongside the default network, up to
+     * R.integer.download_multipath_cellular_cap per update. The running downloads
+     * start using it once it's up.
+     */
+    public void setMultipathEnabled(boolean enabled) {
+        mMultipathEnabled = enabled;
+        updateCellularRequest();
+    }
+
+    /**
+     * Stop a download and resume it with the current networks from where it stopped
+     * once its client is done. If the default network changed to a metered one the user
+     * didn't allow, it waits for another network instead.
+     */
+    private void moveDownload(String downloadId, DownloadEntry entry, boolean allowed) {
+        entry.mDownloadClient.cancel();
+        removeDownloadClient(entry);
+        if (allowed) {
+            Log.d(TAG, "Moving " + downloadId + " to the current networks");
+            entry.mMoving = true;
+        } else {
+            Log.d(TAG, "Pausing " + downloadId + " until an unmetered network is available");
+            entry.mUpdate.setStatus(UpdateStatus.PAUSED);
+            entry.mUpdate.setEta(0);
+            entry.mUpdate.setSpeed(0);
+            mWaitingForNetwork.add(downloadId);
+            notifyUpdateChange(downloadId);
+        }
+        tryReleaseWakelock();
+    }
+
+    private void onDownloadMoved(String downloadId) {
+        DownloadEntry entry = mDownloads.get(downloadId);
+        if (entry == null || !entry.mMoving) {
+            return;
+        }
+        entry.mMoving = false;
+        if (!resumeDownload(downloadId)) {
+            scheduleRetry(downloadId);
+        }
+    }
+
+    /**
+     * @return whether downloads paused by an error will be resumed automatically
+     */
+    public boolean hasPendingRetries() {
+        if (!mWaitingForNetwork.isEmpty()) {
+            return true;
+        }
+        for (DownloadEntry entry : mDownloads.values()) {
+            if (entry.mRetry != null) {
+                return true;
+            }
+        }
+        return false;
     }
 
     private DownloadClient.ProgressListener getProgressListener(final String downloadId) {
@@ -231,7 +621,9 @@ public class UpdaterController {
                     update.setProgress(progress);
                     update.setEta(eta);
                     update.setSpeed(speed);
-                    notifyDownloadProgress(downloadId);
+                    if (!isInstallingUpdate(downloadId)) {
+                        notifyDownloadProgress(downloadId);
+                    }
                 }
             }
         };
@@ -242,22 +634,51 @@ public class UpdaterController {
         new Thread(() -> {
             Update update = mDownloads.get(downloadId).mUpdate;
             File file = update.getFile();
-            if (file.exists() && verifyPackage(file)) {
+            // Taken before checking the file, a change while it's checked must not be
+            // considered verified
+            FileFingerprint fingerprint = getFingerprint(file);
+            // The checksum only covers the transfer, the signature is always checked.
+            // Don't read the whole file once more if it's the file verified last time.
+            if (file.exists() && (isVerifiedFile(downloadId, fingerprint) ||
+                    verifyPackage(file))) {
                 file.setReadable(true, false);
                 update.setPersistentStatus(UpdateStatus.Persistent.VERIFIED);
                 mUpdatesDbHelper.changeUpdateStatus(update);
-                update.setStatus(UpdateStatus.VERIFIED);
+                mUpdatesDbHelper.setVerifiedFingerprint(downloadId,
+                        fingerprint != null ? fingerprint.toString() : null);
+                // Read now, so that installing doesn't need to go through the zip
+                try {
+                    mDownloads.get(downloadId).mPackageMetadata =
+                            readPackageMetadata(downloadId, file);
+                } catch (IOException e) {
+                    Log.e(TAG, "Could not read the metadata of " + file, e);
+                }
+                mVerifyingUpdates.remove(downloadId);
+                // Kept for a later installation if the one in progress fails
+                if (!isInstallingUpdate(downloadId)) {
+                    update.setStatus(UpdateStatus.VERIFIED);
+                    notifyUpdateChange(downloadId);
+                }
             } else {
-                update.setPersistentStatus(UpdateStatus.Persistent.UNKNOWN);
-                mUpdatesDbHelper.removeUpdate(downloadId);
-                update.setProgress(0);
-                update.setStatus(UpdateStatus.VERIFICATION_FAILED);
+                setVerificationFailed(update);
             }
-            mVerifyingUpdates.remove(downloadId);
-            notifyUpdateChange(downloadId);
         }).start();
     }
 
+    private void setVerificationFailed(Update update) {
+        String downloadId = update.getDownloadId();
+        File file = update.getFile();
+        if (file.exists() && !file.delete()) {
+            Log.e(TAG, "Could not delete " + file.getAbsolutePath());
+        }
+        update.setPersistentStatus(UpdateStatus.Persistent.UNKNOWN);
+        mUpdatesDbHelper.removeUpdate(downloadId);
+        update.setProgress(0);
+        update.setStatus(UpdateStatus.VERIFICATION_FAILED);
+        mVerifyingUpdates.remove(downloadId);
+        notifyUpdateChange(downloadId);
+    }
+
     private boolean verifyPackage(File file) {
         try {
             android.os.RecoverySystem.verifyPackage(file, null, null);
@@ -275,6 +696,27 @@ public class UpdaterController {
         }
     }
 
+    private FileFingerprint getFingerprint(File file) {
+        try {
+            return FileFingerprint.of(file);
+        } catch (IOException e) {
+            Log.e(TAG, "Could not identify " + file, e);
+            return null;
+        }
+    }
+
+    /**
+     * @return whether the file was verified already and is unchanged since
+     */
+    private boolean isVerifiedFile(String downloadId, FileFingerprint fingerprint) {
+        if (fingerprint == null || !fingerprint.equals(FileFingerprint.parse(
+                mUpdatesDbHelper.getVerifiedFingerprint(downloadId)))) {
+            return false;
+        }
+        Log.d(TAG, downloadId + " was verified already");
+        return true;
+    }
+
     private boolean fixUpdateStatus(Update update) {
         switch (update.getPersistentStatus()) {
             case UpdateStatus.Persistent.VERIFIED:
@@ -282,17 +724,56 @@ public class UpdaterController {
                 if (update.getFile() == null || !update.getFile().exists()) {
                     update.setStatus(UpdateStatus.UNKNOWN);
                     return false;
-                } else if (update.getFileSize() > 0) {
-                    update.setStatus(UpdateStatus.PAUSED);
-                    int progress = Math.round(
-                            update.getFile().length() * 100 / update.getFileSize());
-                    update.setProgress(progress);
+                } else if (update.getPersistentStatus() == UpdateStatus.Persistent.VERIFIED) {
+                    // Until checkVerifiedFileAsync() tells whether the file changed
+                    update.setStatus(UpdateStatus.VERIFYING);
+                    update.setProgress(100);
+                } else {
+                    setPaused(update);
                 }
                 break;
         }
         return true;
     }
 
+    private void setPaused(Update update) {
+        if (update.getFileSize() > 0) {
+            update.setStatus(UpdateStatus.PAUSED);
+            int progress = Math.round(
+                    SegmentMap.getDownloadedBytes(update.getFile()) * 100 /
+                            update.getFileSize());
+            update.setProgress(progress);
+        }
+    }
+
+    /**
+     * Restore an update verified before to VERIFIED if its file is unchanged since,
+     * pause it otherwise so that it's verified again once resumed
+     */
+    private void checkVerifiedFileAsync(Update update) {
+        String downloadId = update.getDownloadId();
+        mVerifyingUpdates.add(downloadId);
+        new Thread(() -> {
+            boolean verified = isVerifiedFile(downloadId, getFingerprint(update.getFile()));
+            mHandler.post(() -> {
+                mVerifyingUpdates.remove(downloadId);
+                DownloadEntry entry = mDownloads.get(downloadId);
+                if (entry == null || entry.mUpdate != update ||
+                        update.getStatus() != UpdateStatus.VERIFYING) {
+                    // Deleted or downloaded again meanwhile
+                    return;
+                }
+                if (verified) {
+                    update.setStatus(UpdateStatus.VERIFIED);
+                } else {
+                    update.setStatus(UpdateStatus.UNKNOWN);
+                    setPaused(update);
+                }
+                notifyUpdateChange(downloadId);
+            });
+        }).start();
+    }
+
     public void setUpdatesNotAvailableOnline(List<String> downloadIds) {
         for (String downloadId : downloadIds) {
             DownloadEntry update = mDownloads.get(downloadId);
@@ -330,6 +811,7 @@ public class UpdaterController {
             Update updateAdded = mDownloads.get(updateInfo.getDownloadId()).mUpdate;
             updateAdded.setAvailableOnline(availableOnline && updateAdded.getAvailableOnline());
             updateAdded.setDownloadUrl(updateInfo.getDownloadUrl());
+            updateAdded.setSha256(updateInfo.getSha256());
             return false;
         }
         Update update = new Update(updateInfo);
@@ -341,49 +823,309 @@ public class UpdaterController {
         }
         update.setAvailableOnline(availableOnline);
         mDownloads.put(update.getDownloadId(), new DownloadEntry(update));
+        if (update.getStatus() == UpdateStatus.VERIFYING) {
+            checkVerifiedFileAsync(update);
+        }
         return true;
     }
 
+    private DownloadClient buildDownloadClient(Update update) throws IOException {
+        final String downloadId = update.getDownloadId();
+        int stallTimeout = mContext.getResources().getInteger(
+                R.integer.download_stall_timeout) * 1000;
+        long minThroughput = mContext.getResources().getInteger(
+                R.integer.download_min_throughput) * 1024L;
+        DownloadClient.Builder builder = new DownloadClient.Builder()
+                .setUrl(update.getDownloadUrl())
+                .setDestination(update.getFile())
+                .setDownloadCallback(getDownloadCallback(downloadId))
+                .setProgressListener(getProgressListener(downloadId))
+                .setUseDuplicateLinks(true)
+                .setSegmentCount(mContext.getResources().getInteger(
+                        R.integer.download_segment_count))
+                .setStripeDuplicateLinks(mContext.getResources().getBoolean(
+                        R.bool.config_stripeDuplicateLinks))
+                .setMirrorStats(mMirrorStats)
+                .setSha256(update.getSha256())
+                .setTransport(Utils.getDownloadTransport(mContext, mNetwork))
+                .setResumeValidators(update.getValidatorUrl(), update.getETag(),
+                        update.getLastModified())
+                .setRateLimiter(mRateLimiter)
+                .setStallDetection(stallTimeout, minThroughput);
+        DownloadEntry entry = mDownloads.get(downloadId);
+        entry.mMultipath = isMultipathUsable();
+        if (entry.mMultipath) {
+            if (entry.mCellularBudget == null) {
+                entry.mCellularBudget = new ByteBudget(mContext.getResources().getInteger(
+                        R.integer.download_multipath_cellular_cap) * 1024L * 1024L);
+            }
+            Log.d(TAG, "Also downloading " + downloadId + " over mobile data, " +
+                    entry.mCellularBudget.getUsed() + " bytes used so far");
+            builder.setSecondaryTransport(
+                    Utils.getDownloadTransport(mContext, mCellularNetwork),
+                    entry.mCellularBudget);
+        }
+        return builder.build();
+    }
+
+    private static long getLowerRateLimit(long a, long b) {
+        if (a == 0 || b == 0) {
+            return Math.max(a, b);
+        }
+        return Math.min(a, b);
+    }
+
+    private void updateRateLimit() {
+        long rate = mForeground ? mForegroundRateLimit : mBackgroundRateLimit;
+        ConnectivityManager cm = (ConnectivityManager) mContext.getSystemService(
+                Context.CONNECTIVITY_SERVICE);
+        if (cm != null && cm.isActiveNetworkMetered()) {
+            rate = getLowerRateLimit(rate, mMeteredRateLimit);
+        }
+        if (rate != mRateLimiter.getRate()) {
+            Log.d(TAG, "Limiting downloads to " + rate + " B/s");
+            mRateLimiter.setRate(rate);
+        }
+    }
+
+    /**
+     * Tell whether the user is looking at the downloads, to pick the rate limit
+     * of the ones running
+     */
+    public void setForeground(boolean foreground) {
+        mForeground = foreground;
+        updateRateLimit();
+    }
+
+    /**
+     * Change the rate limits of the downloads, the running ones included. The limit
+     * on metered networks applies on top of the other two.
+     *
+     * @param foreground the limit while the user is in the app, in bytes per second
+     * @param background the limit otherwise, in bytes per second
+     * @param metered the limit on metered networks, in bytes per second
+     */
+    public void setRateLimits(long foreground, long background, long metered) {
+        mForegroundRateLimit = foreground;
+        mBackgroundRateLimit = background;
+        mMeteredRateLimit = metered;
+        updateRateLimit();
+    }
+
     public boolean startDownload(String downloadId) {
         Log.d(TAG, "Starting " + downloadId);
-        if (!mDownloads.containsKey(downloadId) || isDownloading(downloadId)) {
+        if (!mDownloads.containsKey(downloadId) || isDownloading(downloadId) ||
+                mDownloads.get(downloadId).mInspecting) {
             return false;
         }
-        Update update = mDownloads.get(downloadId).mUpdate;
+        cancelRetry(downloadId);
+        DownloadEntry entry = mDownloads.get(downloadId);
+        Update update = entry.mUpdate;
+        update.setStatus(UpdateStatus.STARTING);
+        notifyUpdateChange(downloadId);
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(mContext);
+        boolean installable = Utils.isABDevice() && !isInstallingUpdate();
+        boolean streaming = installable && prefs.getBoolean(Constants.PREF_AB_STREAMING, false);
+        boolean installWhileDownloading = installable &&
+                prefs.getBoolean(Constants.PREF_AB_INSTALL_WHILE_DOWNLOADING, false);
+        if (!streaming && !installWhileDownloading &&
+                !mContext.getResources().getBoolean(R.bool.config_checkPackageCompatibility)) {
+            startDownloadClient(downloadId);
+            return true;
+        }
+        // Read the metadata of the package from the server first, so that a package meant
+        // for another device or build is rejected before any of it is downloaded. The
+        // payload is located along the way when it's installed while downloading it.
+        entry.mInspecting = true;
+        Runnable timeout = new Runnable() {
+            @Override
+            public void run() {
+                if (mDownloads.get(downloadId) != entry) {
+                    // Removed from the list
+                    return;
+                }
+                Log.w(TAG, "Could not inspect " + downloadId + " in time, downloading it");
+                entry.mInspecting = false;
+                startDownloadClient(downloadId);
+            }
+        };
+        entry.mInspectionTimeout = timeout;
+        mHandler.postDelayed(timeout, mContext.getResources().getInteger(
+                R.integer.package_inspection_timeout) * 1000);
+        inspectPackageAsync(downloadId, streaming || installWhileDownloading,
+                (incompatibility, payload, network) -> {
+                    if (entry.mInspectionTimeout != timeout) {
+                        // Cancelled, or another check was started since
+                        return;
+                    }
+                    if (entry.mInspecting) {
+                        onPackageInspected(downloadId, incompatibility, payload, streaming,
+                                network);
+                    } else {
+                        // The download was started without waiting for the check
+                        entry.mInspectionTimeout = null;
+                        onPackageChecked(downloadId, entry.mUpdate.getFile(), incompatibility);
+                    }
+                });
+        return true;
+    }
+
+    private interface InspectionCallback {
+        void onInspected(String incompatibility, ABUpdateInstaller.RemotePayload payload,
+                Network network);
+    }
+
+    /**
+     * Read the metadata of a package from the server, calling back on the main thread.
+     * The package is considered compatible if it can't be read, it's still verified
+     * once downloaded.
+     *
+     * @param readPayload whether to locate the payload of A/B packages
+     */
+    private void inspectPackageAsync(String downloadId, boolean readPayload,
+            InspectionCallback callback) {
+        Transport transport = Utils.getDownloadTransport(mContext, mNetwork);
+        Network network = mNetwork;
+        String url = mDownloads.get(downloadId).mUpdate.getDownloadUrl();
+        new Thread(() -> {
+            String incompatibility = null;
+            ABUpdateInstaller.RemotePayload payload = null;
+            try {
+                RemoteZip zip = RemoteZip.open(transport, url);
+                incompatibility = Utils.getIncompatibility(zip);
+                if (incompatibility == null && readPayload) {
+                    payload = ABUpdateInstaller.getRemotePayload(zip, url);
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "Could not inspect " + downloadId, e);
+            }
+            final String reason = incompatibility;
+            final ABUpdateInstaller.RemotePayload remotePayload = payload;
+            mHandler.post(() -> callback.onInspected(reason, remotePayload, network));
+        }).start();
+    }
+
+    private void onPackageChecked(String downloadId, File file, String incompatibility) {
+        DownloadEntry entry = mDownloads.get(downloadId);
+        if (incompatibility == null || entry == null || !file.equals(entry.mUpdate.getFile())) {
+            return;
+        }
+        Update update = entry.mUpdate;
+        switch (update.getStatus()) {
+            case STARTING:
+            case DOWNLOADING:
+            case PAUSED:
+            case PAUSED_ERROR:
+            case PAUSED_NO_SPACE:
+                break;
+            default:
+                // Deleted, or downloaded already and left to the verification
+                return;
+        }
+        Log.e(TAG, "Stopping the download of " + downloadId + ": " + incompatibility);
+        cancelRetry(downloadId);
+        if (entry.mDownloadClient != null) {
+            entry.mDownloadClient.cancel();
+            removeDownloadClient(entry);
+        }
+        update.setPersistentStatus(UpdateStatus.Persistent.UNKNOWN);
+        deleteUpdateAsync(update);
+        update.setProgress(0);
+        update.setStatus(UpdateStatus.VERIFICATION_FAILED);
+        notifyUpdateChange(downloadId);
+    }
+
+    private void onPackageInspected(String downloadId, String incompatibility,
+            ABUpdateInstaller.RemotePayload payload, boolean streaming, Network network) {
+        DownloadEntry entry = mDownloads.get(downloadId);
+        if (entry == null || !entry.mInspecting) {
+            return;
+        }
+        cancelInspection(entry);
+        Update update = entry.mUpdate;
+        if (incompatibility != null) {
+            Log.e(TAG, "Not downloading " + downloadId + ": " + incompatibility);
+            update.setStatus(UpdateStatus.VERIFICATION_FAILED);
+            notifyUpdateChange(downloadId);
+            return;
+        }
+        ABUpdateInstaller installer = ABUpdateInstaller.getInstance(mContext, this);
+        if (payload != null && streaming) {
+            if (installer.install(downloadId, payload, network)) {
+                return;
+            }
+            Log.e(TAG, "Could not stream " + downloadId + ", downloading it");
+            payload = null;
+            update.setStatus(UpdateStatus.STARTING);
+            notifyUpdateChange(downloadId);
+        }
+        if (!startDownloadClient(downloadId) || payload == null) {
+            return;
+        }
+        File file = update.getFile();
+        if (!installer.install(downloadId, payload, file,
+                position -> getWrittenEnd(downloadId, file, position))) {
+            Log.e(TAG, "Could not install " + downloadId + " while downloading it");
+            update.setStatus(UpdateStatus.DOWNLOADING);
+            notifyUpdateChange(downloadId);
+        }
+    }
+
+    /**
+     * Download an update from the start
+     *
+     * @return whether the download started
+     */
+    private boolean startDownloadClient(String downloadId) {
+        DownloadEntry entry = mDownloads.get(downloadId);
+        Update update = entry.mUpdate;
         File destination = new File(mDownloadRoot, update.getName());
         if (destination.exists()) {
             destination = Utils.appendSequentialNumber(destination);
             Log.d(TAG, "Changing name with " + destination.getName());
         }
         update.setFile(destination);
+        // Downloaded from the start, so is the mobile data budget
+        entry.mCellularBudget = null;
         DownloadClient downloadClient;
         try {
-            downloadClient = new DownloadClient.Builder()
-                    .setUrl(update.getDownloadUrl())
-                    .setDestination(update.getFile())
-                    .setDownloadCallback(getDownloadCallback(downloadId))
-                    .setProgressListener(getProgressListener(downloadId))
-                    .setUseDuplicateLinks(true)
-                    .build();
+            downloadClient = buildDownloadClient(update);
         } catch (IOException exception) {
             Log.e(TAG, "Could not build download client");
             update.setStatus(UpdateStatus.PAUSED_ERROR);
             notifyUpdateChange(downloadId);
             return false;
         }
-        addDownloadClient(mDownloads.get(downloadId), downloadClient);
-        update.setStatus(UpdateStatus.STARTING);
-        notifyUpdateChange(downloadId);
+        addDownloadClient(entry, downloadClient);
+        entry.mNetwork = mNetwork;
+        // The UI warns before starting a download on a metered network
+        entry.mMeteredAllowed = !Utils.isDownloadAllowed(mContext, mNetwork);
+        updateRateLimit();
+        updateCellularRequest();
         downloadClient.start();
         mWakeLock.acquire();
         return true;
     }
 
+    /**
+     * @return the end of the bytes of the file written without gaps from position, while
+     * the update is downloaded and after
+     */
+    private long getWrittenEnd(String downloadId, File file, long position) {
+        DownloadEntry entry = mDownloads.get(downloadId);
+        DownloadClient downloadClient = entry != null ? entry.mDownloadClient : null;
+        if (downloadClient != null) {
+            return downloadClient.getWrittenEnd(position);
+        }
+        return SegmentMap.getWrittenEnd(file, position);
+    }
+
     public boolean resumeDownload(String downloadId) {
         Log.d(TAG, "Resuming " + downloadId);
         if (!mDownloads.containsKey(downloadId) || isDownloading(downloadId)) {
             return false;
         }
+        cancelRetry(downloadId);
         Update update = mDownloads.get(downloadId).mUpdate;
         File file = update.getFile();
         if (file == null || !file.exists()) {
@@ -392,7 +1134,8 @@ public class UpdaterController {
             notifyUpdateChange(downloadId);
             return false;
         }
-        if (file.exists() && update.getFileSize() > 0 && file.length() >= update.getFileSize()) {
+        if (file.exists() && update.getFileSize() > 0 &&
+                SegmentMap.getDownloadedBytes(file) >= update.getFileSize()) {
             Log.d(TAG, "File already downloaded, starting verification");
             update.setStatus(UpdateStatus.VERIFYING);
             verifyUpdateAsync(downloadId);
@@ -400,22 +1143,23 @@ public class UpdaterController {
         } else {
             DownloadClient downloadClient;
             try {
-                downloadClient = new DownloadClient.Builder()
-                        .setUrl(update.getDownloadUrl())
-                        .setDestination(update.getFile())
-                        .setDownloadCallback(getDownloadCallback(downloadId))
-                        .setProgressListener(getProgressListener(downloadId))
-                        .setUseDuplicateLinks(true)
-                        .build();
+                downloadClient = buildDownloadClient(update);
             } catch (IOException exception) {
                 Log.e(TAG, "Could not build download client");
                 update.setStatus(UpdateStatus.PAUSED_ERROR);
                 notifyUpdateChange(downloadId);
                 return false;
             }
-            addDownloadClient(mDownloads.get(downloadId), downloadClient);
+            DownloadEntry entry = mDownloads.get(downloadId);
+            addDownloadClient(entry, downloadClient);
+            entry.mNetwork = mNetwork;
+            if (!Utils.isDownloadAllowed(mContext, mNetwork)) {
+                entry.mMeteredAllowed = true;
+            }
             update.setStatus(UpdateStatus.STARTING);
             notifyUpdateChange(downloadId);
+            updateRateLimit();
+            updateCellularRequest();
             downloadClient.resume();
             mWakeLock.acquire();
         }
@@ -424,6 +1168,13 @@ public class UpdaterController {
 
     public boolean pauseDownload(String downloadId) {
         Log.d(TAG, "Pausing " + downloadId);
+        if (mDownloads.containsKey(downloadId) && mDownloads.get(downloadId).mInspecting) {
+            // Nothing was downloaded yet
+            cancelInspection(mDownloads.get(downloadId));
+            mDownloads.get(downloadId).mUpdate.setStatus(UpdateStatus.UNKNOWN);
+            notifyUpdateChange(downloadId);
+            return true;
+        }
         if (!isDownloading(downloadId)) {
             return false;
         }
@@ -441,8 +1192,12 @@ public class UpdaterController {
     private void deleteUpdateAsync(final Update update) {
         new Thread(() -> {
             File file = update.getFile();
-            if (file.exists() && !file.delete()) {
-                Log.e(TAG, "Could not delete " + file.getAbsolutePath());
+            // Streamed updates have no file
+            if (file != null) {
+                if (file.exists() && !file.delete()) {
+                    Log.e(TAG, "Could not delete " + file.getAbsolutePath());
+                }
+                SegmentMap.remove(file);
             }
             mUpdatesDbHelper.removeUpdate(update.getDownloadId());
         }).start();
@@ -453,6 +1208,7 @@ public class UpdaterController {
         if (!mDownloads.containsKey(downloadId) || isDownloading(downloadId)) {
             return false;
         }
+        cancelRetry(downloadId);
         Update update = mDownloads.get(downloadId).mUpdate;
         update.setStatus(UpdateStatus.DELETED);
         update.setProgress(0);
@@ -492,6 +1248,49 @@ public class UpdaterController {
         return entry != null ? entry.mUpdate : null;
     }
 
+    /**
+     * @return the metadata of a downloaded package. It's read when the package is
+     * verified, the package is only read again if it changed since.
+     */
+    public PackageMetadata getPackageMetadata(String downloadId) throws IOException {
+        DownloadEntry entry = mDownloads.get(downloadId);
+        if (entry == null) {
+            throw new IOException("Unknown update " + downloadId);
+        }
+        File file = entry.mUpdate.getFile();
+        PackageMetadata metadata = entry.mPackageMetadata;
+        if (metadata == null || !metadata.matches(file)) {
+            metadata = mUpdatesDbHelper.getPackageMetadata(downloadId);
+        }
+        if (metadata == null || !metadata.matches(file)) {
+            Log.d(TAG, "No metadata cached for " + downloadId);
+            metadata = readPackageMetadata(downloadId, file);
+        }
+        entry.mPackageMetadata = metadata;
+        return metadata;
+    }
+
+    private PackageMetadata readPackageMetadata(String downloadId, File file)
+            throws IOException {
+        long fileSize = file.length();
+        long lastModified = file.lastModified();
+        PackageMetadata metadata;
+        try (MappedZip zip = MappedZip.open(file)) {
+            if (zip.hasEntry(Constants.AB_PAYLOAD_BIN_PATH) &&
+                    zip.hasEntry(Constants.AB_PAYLOAD_PROPERTIES_PATH)) {
+                byte[] properties = zip.read(Constants.AB_PAYLOAD_PROPERTIES_PATH);
+                metadata = new PackageMetadata(fileSize, lastModified, true,
+                        zip.getDataOffset(Constants.AB_PAYLOAD_BIN_PATH),
+                        ABUpdateInstaller.readPayloadProperties(
+                                new ByteArrayInputStream(properties)));
+            } else {
+                metadata = new PackageMetadata(fileSize, lastModified, false, -1, null);
+            }
+        }
+        mUpdatesDbHelper.savePackageMetadata(downloadId, metadata);
+        return metadata;
+    }
+
     public boolean isDownloading(String downloadId) {
         return mDownloads.containsKey(downloadId) &&
                 mDownloads.get(downloadId).mDownloadClient != null;
@@ -527,6 +1326,10 @@ public class UpdaterController {
         return ABUpdateInstaller.isWaitingForReboot(mContext, downloadId);
     }
 
+    public DownloadMetrics getDownloadMetrics() {
+        return mDownloadMetrics;
+    }
+
     public void setPerformanceMode(boolean enable) {
         if (!Utils.isABDevice()) {
             return;
@@ -158,12 +158,16 @@ public class UpdaterService extends Service {
     @Override
     public IBinder onBind(Intent intent) {
         mHasClients = true;
+        mUpdaterController.setForeground(true);
+        // The client is about to refresh the list
+        Utils.warmUpConnections(this);
         return mBinder;
     }
 
     @Override
     public boolean onUnbind(Intent intent) {
         mHasClients = false;
+        mUpdaterController.setForeground(false);
         tryStopSelf();
         return false;
     }
@@ -196,7 +200,7 @@ public class UpdaterService extends Service {
                 throw new IllegalArgumentException(update.getDownloadId() + " is not verified");
             }
             try {
-                if (Utils.isABUpdate(update.getFile())) {
+                if (mUpdaterController.getPackageMetadata(downloadId).isAB()) {
                     ABUpdateInstaller installer = ABUpdateInstaller.getInstance(this,
                             mUpdaterController);
                     installer.install(downloadId);
@@ -246,6 +250,7 @@ public class UpdaterService extends Service {
 
     private void tryStopSelf() {
         if (!mHasClients && !mUpdaterController.hasActiveDownloads() &&
+                !mUpdaterController.hasPendingRetries() &&
                 !mUpdaterController.isInstallingUpdate()) {
             Log.d(TAG, "Service no longer needed, stopping");
             stopSelf();
@@ -309,13 +314,16 @@ public class UpdaterService extends Service {
                 tryStopSelf();
                 break;
             }
-            case PAUSED_ERROR: {
+            case PAUSED_ERROR:
+            case PAUSED_NO_SPACE: {
                 stopForeground(STOP_FOREGROUND_DETACH);
                 int progress = update.getProgress();
                 // In case we pause before the first progress update
                 mNotificationBuilder.setProgress(progress > 0 ? 100 : 0, progress, false);
                 mNotificationBuilder.mActions.clear();
-                String text = getString(R.string.download_paused_error_notification);
+                String text = getString(update.getStatus() == UpdateStatus.PAUSED_NO_SPACE ?
+                        R.string.download_paused_no_space_notification :
+                        R.string.download_paused_error_notification);
                 mNotificationStyle.bigText(text);
                 mNotificationBuilder.setStyle(mNotificationStyle);
                 mNotificationBuilder.setSmallIcon(android.R.drawable.stat_sys_warning);
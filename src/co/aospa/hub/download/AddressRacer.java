@@ -0,0 +1,221 @@
+/*
+ * Copyright (C) 2026 Paranoid Android
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.aospa.hub.download;
+
+import android.net.Network;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.SocketFactory;
+
+/**
+ * Connects to the addresses of a host in parallel, IPv6 and IPv4 alternately, each
+ * attempt starting a little after the previous one (Happy Eyeballs, RFC 8305). A network
+ * where one of the families is broken then costs a short delay instead of a timeout.
+ */
+class AddressRacer {
+
+    private static final String TAG = "AddressRacer";
+
+    // Delay before trying the next address while the previous attempts are pending
+    private static final long ATTEMPT_DELAY_MS = 250;
+    // How long the address that connected first is tried first
+    private static final long PREFERRED_ADDRESS_MS = 10 * 60 * 1000;
+
+    private static class PreferredAddress {
+        final InetAddress mAddress;
+        final long mMillis;
+
+        PreferredAddress(InetAddress address, long millis) {
+            mAddress = address;
+            mMillis = millis;
+        }
+    }
+
+    private static final Map<String, PreferredAddress> sPreferred = new HashMap<>();
+
+    private final SocketFactory mSocketFactory;
+    private final List<Socket> mSockets = new ArrayList<>();
+    private final LinkedBlockingQueue<Object> mResults = new LinkedBlockingQueue<>();
+    private boolean mDone;
+
+    private AddressRacer(SocketFactory socketFactory) {
+        mSocketFactory = socketFactory;
+    }
+
+    /**
+     * @param network the network to resolve the host and connect on, null for the default
+     * @param socketFactory the factory of the unconnected sockets
+     * @param connectTimeout the timeout of each attempt in milliseconds, 0 for none
+     */
+    static Socket connect(String host, int port, Network network, SocketFactory socketFactory,
+            int connectTimeout) throws IOException {
+        InetAddress[] addresses = network != null ?
+                network.getAllByName(host) : InetAddress.getAllByName(host);
+        String key = network != null ? host + "@" + network : host;
+        long startMillis = SystemClock.elapsedRealtime();
+        Socket socket = new AddressRacer(socketFactory).race(sortAddresses(key, addresses), port, network,
+                connectTimeout);
+        InetAddress address = socket.getInetAddress();
+        synchronized (sPreferred) {
+            sPreferred.put(key, new PreferredAddress(address, SystemClock.elapsedRealtime()));
+        }
+        Log.d(TAG, "Connected to " + host + " at " + address.getHostAddress() + " in " +
+                (SystemClock.elapsedRealtime() - startMillis) + " ms");
+        return socket;
+    }
+
+    /**
+     * Put the address that won last time first, then alternate between the families
+     * starting with the family of the first address
+     */
+    private static List<InetAddress> sortAddresses(String key, InetAddress[] addresses) {
+        List<InetAddress> ipv6 = new ArrayList<>();
+        List<InetAddress> ipv4 = new ArrayList<>();
+        InetAddress first = addresses[0];
+        synchronized (sPreferred) {
+            PreferredAddress preferred = sPreferred.get(key);
+            if (preferred != null && SystemClock.elapsedRealtime() - preferred.mMillis <
+                    PREFERRED_ADDRESS_MS) {
+                for (InetAddress address : addresses) {
+                    if (address.equals(preferred.mAddress)) {
+                        first = address;
+                    }
+                }
+            }
+        }
+        for (InetAddress address : addresses) {
+            if (address != first) {
+                (address instanceof Inet6Address ? ipv6 : ipv4).add(address);
+            }
+        }
+        List<InetAddress> sorted = new ArrayList<>();
+        sorted.add(first);
+        boolean nextIpv6 = !(first instanceof Inet6Address);
+        while (!ipv6.isEmpty() || !ipv4.isEmpty()) {
+            List<InetAddress> family = nextIpv6 ? ipv6 : ipv4;
+            if (family.isEmpty()) {
+                family = nextIpv6 ? ipv4 : ipv6;
+            }
+            sorted.add(family.remove(0));
+            nextIpv6 = !nextIpv6;
+        }
+        return sorted;
+    }
+
+    private Socket race(List<InetAddress> addresses, int port, Network network,
+            int connectTimeout) throws IOException {
+        int next = 0;
+        int pending = 0;
+        try {
+            startAttempt(addresses.get(next++), port, network, connectTimeout);
+            pending++;
+            while (true) {
+                Object result;
+                if (next < addresses.size()) {
+                    result = mResults.poll(ATTEMPT_DELAY_MS, TimeUnit.MILLISECONDS);
+                } else {
+                    result = mResults.take();
+                }
+                if (result instanceof Socket) {
+                    return finish((Socket) result);
+                }
+                if (result != null) {
+                    pending--;
+                    if (pending == 0 && next == addresses.size()) {
+                        throw (IOException) result;
+                    }
+                }
+                // The delay is over or an attempt failed, no need to wait for the next one
+                if (next < addresses.size()) {
+                    startAttempt(addresses.get(next++), port, network, connectTimeout);
+                    pending++;
+                }
+            }
+        } catch (InterruptedException e) {
+            finish(null);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while connecting");
+        } catch (IOException e) {
+            finish(null);
+            throw e;
+        }
+    }
+
+    private void startAttempt(InetAddress address, int port, Network network,
+            int connectTimeout) throws IOException {
+        Socket socket = mSocketFactory.createSocket();
+        synchronized (this) {
+            mSockets.add(socket);
+        }
+        new Thread(() -> {
+            try {
+                if (network != null) {
+                    network.bindSocket(socket);
+                }
+                socket.connect(new InetSocketAddress(address, port), connectTimeout);
+                mResults.add(socket);
+            } catch (IOException e) {
+                closeQuietly(socket);
+                synchronized (this) {
+                    if (mDone) {
+                        return;
+                    }
+                }
+                Log.d(TAG, "Could not connect to " + address.getHostAddress() + ": " +
+                        e.getMessage());
+                mResults.add(e);
+            }
+        }, TAG).start();
+    }
+
+    /**
+     * Close every socket but the one that won, including those connecting later
+     */
+    private Socket finish(Socket winner) {
+        List<Socket> sockets;
+        synchronized (this) {
+            mDone = true;
+            sockets = new ArrayList<>(mSockets);
+        }
+        for (Socket socket : sockets) {
+            if (socket != winner) {
+                closeQuietly(socket);
+            }
+        }
+        return winner;
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2026 Paranoid Android
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.aospa.hub.download;
+
+/**
+ * Number of bytes a download may transfer through a path, e.g. over mobile data. It can
+ * be given to the successive clients of a download so that resuming doesn't reset it.
+ */
+public class ByteBudget {
+
+    private final long mLimit;
+    private long mUsed;
+
+    /**
+     * @param limit the number of bytes allowed, 0 for no limit
+     */
+    public ByteBudget(long limit) {
+        mLimit = Math.max(0, limit);
+    }
+
+    /**
+     * @return the number of bytes transferred, counting the reads in progress
+     */
+    public synchronized long getUsed() {
+        return mUsed;
+    }
+
+    /**
+     * Count the bytes an earlier client used, e.g. before the process was restarted
+     */
+    synchronized void restore(long used) {
+        mUsed = Math.max(mUsed, used);
+    }
+
+    synchronized boolean isExhausted() {
+        return mLimit > 0 && mUsed >= mLimit;
+    }
+
+    /**
+     * Reserve bytes before reading them
+     *
+     * @return how many of them can be read, 0 once the budget is exhausted
+     */
+    synchronized long reserve(long bytes) {
+        long allowed = mLimit > 0 ? Math.min(bytes, Math.max(0, mLimit - mUsed)) : bytes;
+        mUsed += allowed;
+        return allowed;
+    }
+
+    /**
+     * Give back the part of a reservation that wasn't read
+     */
+    synchronized void refund(long bytes) {
+        mUsed -= bytes;
+    }
+}
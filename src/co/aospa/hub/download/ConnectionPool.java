@@ -0,0 +1,510 @@
+/*
+ * Copyright (C) 2026 Paranoid Android
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.aospa.hub.download;
+
+import android.net.Network;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.net.SocketFactory;
+
+/**
+ * Keeps the connections of the update downloads alive, so that the requests of the
+ * segments and of the retries skip DNS, TCP and TLS setup. The HTTP/2 pool sends all
+ * the requests to a server as streams of a single connection when the server supports
+ * it. Proxies aren't supported, see Utils.getDownloadTransport().
+ */
+public class ConnectionPool implements Transport {
+
+    private static final String TAG = "ConnectionPool";
+
+    // Requests to a host wait for a connection to be released past this limit
+    private static final int MAX_CONNECTIONS_PER_HOST = 8;
+    private static final int MAX_IDLE_CONNECTIONS_PER_HOST = 4;
+    private static final long KEEP_ALIVE_MS = 30 * 1000;
+
+    private static ConnectionPool sInstance;
+    private static ConnectionPool sHttp2Instance;
+
+    private final boolean mHttp2;
+    private final Map<String, Deque<PooledConnection>> mIdleConnections = new HashMap<>();
+    private final Map<String, Integer> mActiveCounts = new HashMap<>();
+    private final Map<String, Http2Connection> mHttp2Connections = new HashMap<>();
+    private final Set<String> mHttp2Connecting = new HashSet<>();
+    // Servers that answered the offer of HTTP/2 with HTTP/1.1
+    private final Set<String> mHttp1Servers = new HashSet<>();
+    private boolean mCleanupRunning;
+    private SocketFactory mSocketFactory = SocketFactory.getDefault();
+
+    private long mConnectCount;
+    private long mConnectMillis;
+    private long mReuseCount;
+
+    /**
+     * @return the pool that sends the requests over HTTP/1.1
+     */
+    public static synchronized ConnectionPool getInstance() {
+        if (sInstance == null) {
+            sInstance = new ConnectionPool(false);
+        }
+        return sInstance;
+    }
+
+    /**
+     * @return the pool that multiplexes the requests to each server over HTTP/2, or
+     * sends them over HTTP/1.1 if the server or the device doesn't support it
+     */
+    public static synchronized ConnectionPool getHttp2Instance() {
+        if (sHttp2Instance == null) {
+            sHttp2Instance = new ConnectionPool(true);
+        }
+        return sHttp2Instance;
+    }
+
+    private ConnectionPool(boolean http2) {
+        mHttp2 = http2;
+    }
+
+    /**
+     * Create a connection that sends its requests through this pool. Only GET and
+     * HEAD requests without body are supported, proxies are ignored.
+     */
+    @Override
+    public HttpURLConnection openConnection(URL url) throws IOException {
+        return openConnection(url, null);
+    }
+
+    private HttpURLConnection openConnection(URL url, Network network) throws IOException {
+        String protocol = url.getProtocol();
+        if (!"http".equals(protocol) && !"https".equals(protocol)) {
+            throw new IOException("Unsupported protocol " + protocol);
+        }
+        return new PooledHttpURLConnection(url, network, this);
+    }
+
+    /**
+     * @return a transport that sends the requests through this pool, over the given
+     * network whether it's the default one or not
+     */
+    public Transport getTransport(Network network) {
+        return url -> openConnection(url, network);
+    }
+
+    /**
+     * Create the sockets of the new connections with the given factory. The factory
+     * must return unconnected sockets from createSocket().
+     */
+    public synchronized void setSocketFactory(SocketFactory socketFactory) {
+        mSocketFactory = socketFactory;
+    }
+
+    public synchronized SocketFactory getSocketFactory() {
+        return mSocketFactory;
+    }
+
+    /**
+     * @return the number of connections opened
+     */
+    public synchronized long getConnectCount() {
+        return mConnectCount;
+    }
+
+    /**
+     * @return the number of requests sent on a connection that was already open
+     */
+    public synchronized long getReuseCount() {
+        return mReuseCount;
+    }
+
+    /**
+     * @return the average time to open a connection, TLS handshake included
+     */
+    public synchronized long getAverageConnectMillis() {
+        return mConnectCount > 0 ? mConnectMillis / mConnectCount : 0;
+    }
+
+    /**
+     * @return an estimate of the time spent opening connections that reuse avoided
+     */
+    public synchronized long getSavedMillis() {
+        return mConnectCount > 0 ? mReuseCount * mConnectMillis / mConnectCount : 0;
+    }
+
+    private static String getKey(URL url, Network network) {
+        int port = url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+        String key = url.getProtocol() + "://" + url.getHost() + ":" + port;
+        return network != null ? key + "@" + network : key;
+    }
+
+    private int getActiveCount(String key) {
+        Integer count = mActiveCounts.get(key);
+        return count != null ? count : 0;
+    }
+
+    private void setActiveCount(String key, int count) {
+        if (count > 0) {
+            mActiveCounts.put(key, count);
+        } else {
+            mActiveCounts.remove(key);
+        }
+    }
+
+    /**
+     * Get a connection to the server of the given url. The caller must give it back
+     * with release() or discard().
+     *
+     * @param reuse whether an idle connection can be returned
+     */
+    PooledConnection acquire(URL url, Network network, int connectTimeout, int readTimeout,
+            boolean reuse) throws IOException {
+        String key = getKey(url, network);
+        synchronized (this) {
+            while (getActiveCount(key) >= MAX_CONNECTIONS_PER_HOST) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted waiting for " + key);
+                }
+            }
+            setActiveCount(key, getActiveCount(key) + 1);
+        }
+
+        PooledConnection connection = null;
+        try {
+            while (reuse) {
+                PooledConnection idle;
+                synchronized (this) {
+                    Deque<PooledConnection> connections = mIdleConnections.get(key);
+                    idle = connections != null ? connections.pollFirst() : null;
+                }
+                if (idle == null) {
+                    break;
+                }
+                if (idle.isHealthy()) {
+                    connection = idle;
+                    synchronized (this) {
+                        mReuseCount++;
+                        Log.d(TAG, "Reusing connection to " + key + ", " + mReuseCount +
+                                " reuses saved about " + getSavedMillis() + " ms");
+                    }
+                    break;
+                }
+                idle.close();
+            }
+            if (connection == null) {
+                long startMillis = SystemClock.elapsedRealtime();
+                connection = PooledConnection.connect(key, url, network, getSocketFactory(),
+                        connectTimeout, readTimeout, false);
+                long millis = SystemClock.elapsedRealtime() - startMillis;
+                synchronized (this) {
+                    mConnectCount++;
+                    mConnectMillis += millis;
+                }
+                Log.d(TAG, "Connected to " + key + " in " + millis + " ms");
+            }
+            connection.onRequest(readTimeout);
+            return connection;
+        } catch (IOException e) {
+            if (connection != null) {
+                connection.close();
+            }
+            onConnectionDone(key);
+            throw e;
+        }
+    }
+
+    /**
+     * Give back a connection whose last response was read completely
+     */
+    void release(PooledConnection connection) {
+        PooledConnection evicted;
+        synchronized (this) {
+            evicted = addIdle(connection);
+            onConnectionDone(connection.getKey());
+        }
+        if (evicted != null) {
+            evicted.close();
+        }
+    }
+
+    /**
+     * @return the connection that had to make room for this one, if any
+     */
+    private synchronized PooledConnection addIdle(PooledConnection connection) {
+        Deque<PooledConnection> connections = mIdleConnections.get(connection.getKey());
+        if (connections == null) {
+            connections = new ArrayDeque<>();
+            mIdleConnections.put(connection.getKey(), connections);
+        }
+        PooledConnection evicted = null;
+        if (connections.size() >= MAX_IDLE_CONNECTIONS_PER_HOST) {
+            evicted = connections.pollLast();
+        }
+        connection.onIdle(SystemClock.elapsedRealtime());
+        connections.addFirst(connection);
+        startCleanup();
+        return evicted;
+    }
+
+    /**
+     * Open a connection to the server of the given url ahead of the first request, so
+     * that the request skips DNS, TCP and TLS setup. Nothing is done if there's already
+     * one. The connection is closed if it isn't used within the keep alive time.
+     *
+     * @param network the network of the transport the request will use, see
+     * getTransport(Network), null for the default one
+     */
+    public void preconnect(URL url, Network network, int timeoutMillis) throws IOException {
+        String key = getKey(url, network);
+        synchronized (this) {
+            Deque<PooledConnection> idle = mIdleConnections.get(key);
+            if ((idle != null && !idle.isEmpty()) || mHttp2Connections.containsKey(key)) {
+                return;
+            }
+        }
+        if (getHttp2Connection(url, network, timeoutMillis, timeoutMillis) != null) {
+            return;
+        }
+        synchronized (this) {
+            // The server refused HTTP/2, the connection is already idle
+            Deque<PooledConnection> idle = mIdleConnections.get(key);
+            if (idle != null && !idle.isEmpty()) {
+                return;
+            }
+        }
+        release(acquire(url, network, timeoutMillis, timeoutMillis, false));
+    }
+
+    /**
+     * Get the HTTP/2 connection to the server of the given url, opening it if needed.
+     * The requests of all the callers are multiplexed over it.
+     *
+     * @return the connection, or null if the request must be sent over HTTP/1.1
+     */
+    Http2Connection getHttp2Connection(URL url, Network network, int connectTimeout,
+            int readTimeout) throws IOException {
+        if (!mHttp2 || !"https".equals(url.getProtocol()) ||
+                !PooledConnection.canNegotiateHttp2()) {
+            return null;
+        }
+        String key = getKey(url, network);
+        synchronized (this) {
+            for (;;) {
+                if (mHttp1Servers.contains(key)) {
+                    return null;
+                }
+                Http2Connection connection = mHttp2Connections.get(key);
+                if (connection != null && connection.isUsable()) {
+                    mReuseCount++;
+                    return connection;
+                }
+                if (!mHttp2Connecting.contains(key)) {
+                    break;
+                }
+                // Somebody else is connecting, their connection can be shared
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted waiting for " + key);
+                }
+            }
+            mHttp2Connecting.add(key);
+        }
+
+        try {
+            long startMillis = SystemClock.elapsedRealtime();
+            PooledConnection connection = PooledConnection.connect(key, url, network,
+                    getSocketFactory(), connectTimeout, readTimeout, true);
+            long millis = SystemClock.elapsedRealtime() - startMillis;
+            synchronized (this) {
+                mConnectCount++;
+                mConnectMillis += millis;
+            }
+            if (!Http2Connection.PROTOCOL.equals(connection.getProtocol())) {
+                Log.d(TAG, key + " doesn't support HTTP/2, connected in " + millis + " ms");
+                PooledConnection evicted;
+                synchronized (this) {
+                    mHttp1Servers.add(key);
+                    // Keep the connection for the request that opened it
+                    evicted = addIdle(connection);
+                }
+                if (evicted != null) {
+                    evicted.close();
+                }
+                return null;
+            }
+            Http2Connection http2Connection = new Http2Connection(connection, this);
+            try {
+                http2Connection.start();
+            } catch (IOException e) {
+                connection.close();
+                throw e;
+            }
+            synchronized (this) {
+                mHttp2Connections.put(key, http2Connection);
+                startCleanup();
+            }
+            Log.d(TAG, "Connected to " + key + " over HTTP/2 in " + millis + " ms");
+            return http2Connection;
+        } finally {
+            synchronized (this) {
+                mHttp2Connecting.remove(key);
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Called when an HTTP/2 connection has no streams left
+     */
+    synchronized void onHttp2Idle() {
+        startCleanup();
+        notifyAll();
+    }
+
+    synchronized void onHttp2Closed(Http2Connection connection) {
+        if (mHttp2Connections.get(connection.getKey()) == connection) {
+            mHttp2Connections.remove(connection.getKey());
+        }
+    }
+
+    /**
+     * Close the idle connections and the HTTP/2 connections, for instance because the
+     * network they were opened on went away. The requests in progress on HTTP/2
+     * connections fail.
+     */
+    public void evictAll() {
+        List<PooledConnection> idle = new ArrayList<>();
+        List<Http2Connection> http2 = new ArrayList<>();
+        synchronized (this) {
+            for (Deque<PooledConnection> connections : mIdleConnections.values()) {
+                idle.addAll(connections);
+            }
+            mIdleConnections.clear();
+            http2.addAll(mHttp2Connections.values());
+            mHttp2Connections.clear();
+            // The servers might behave differently from the new network
+            mHttp1Servers.clear();
+        }
+        for (PooledConnection connection : idle) {
+            connection.close();
+        }
+        for (Http2Connection connection : http2) {
+            connection.close(new IOException("Connections evicted"));
+        }
+    }
+
+    /**
+     * Close a connection that can't be used anymore
+     */
+    void discard(PooledConnection connection) {
+        connection.close();
+        onConnectionDone(connection.getKey());
+    }
+
+    private synchronized void onConnectionDone(String key) {
+        setActiveCount(key, getActiveCount(key) - 1);
+        notifyAll();
+    }
+
+    private void startCleanup() {
+        if (!mCleanupRunning) {
+            mCleanupRunning = true;
+            Thread thread = new Thread(this::cleanup, TAG);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    private void cleanup() {
+        for (;;) {
+            List<PooledConnection> expired = new ArrayList<>();
+            List<Http2Connection> expiredHttp2 = new ArrayList<>();
+            synchronized (this) {
+                long now = SystemClock.elapsedRealtime();
+                long nextExpiry = Long.MAX_VALUE;
+                Iterator<Deque<PooledConnection>> hosts = mIdleConnections.values().iterator();
+                while (hosts.hasNext()) {
+                    Deque<PooledConnection> connections = hosts.next();
+                    Iterator<PooledConnection> it = connections.iterator();
+                    while (it.hasNext()) {
+                        PooledConnection connection = it.next();
+                        long expiry = connection.getIdleSince() + KEEP_ALIVE_MS;
+                        if (expiry <= now) {
+                            it.remove();
+                            expired.add(connection);
+                        } else {
+                            nextExpiry = Math.min(nextExpiry, expiry);
+                        }
+                    }
+                    if (connections.isEmpty()) {
+                        hosts.remove();
+                    }
+                }
+                Iterator<Http2Connection> it = mHttp2Connections.values().iterator();
+                while (it.hasNext()) {
+                    Http2Connection connection = it.next();
+                    long idleSince = connection.getIdleSince();
+                    if (idleSince < 0) {
+                        // onHttp2Idle() restarts the cleanup when its streams end
+                        continue;
+                    }
+                    long expiry = idleSince + KEEP_ALIVE_MS;
+                    if (expiry <= now) {
+                        it.remove();
+                        expiredHttp2.add(connection);
+                    } else {
+                        nextExpiry = Math.min(nextExpiry, expiry);
+                    }
+                }
+                if (expired.isEmpty() && expiredHttp2.isEmpty()) {
+                    if (nextExpiry == Long.MAX_VALUE) {
+                        mCleanupRunning = false;
+                        return;
+                    }
+                    try {
+                        wait(nextExpiry - now);
+                    } catch (InterruptedException e) {
+                        mCleanupRunning = false;
+                        return;
+                    }
+                }
+            }
+            for (PooledConnection connection : expired) {
+                connection.close();
+            }
+            for (Http2Connection connection : expiredHttp2) {
+                connection.close(new IOException("Connection idle for too long"));
+            }
+        }
+    }
+}
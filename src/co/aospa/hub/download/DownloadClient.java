@@ -28,6 +28,29 @@ public interface DownloadClient {
         void onSuccess(File destination);
 
         void onFailure(boolean cancelled);
+
+        /**
+         * Called instead of onSuccess() when the file doesn't match the checksum
+         * given to the Builder.
+         */
+        default void onVerificationFailed(File destination) {
+            onFailure(false);
+        }
+
+        /**
+         * Called instead of onFailure() when there isn't enough space to store the
+         * file, before any byte is written.
+         */
+        default void onInsufficientSpace(File destination, long size) {
+            onFailure(false);
+        }
+
+        /**
+         * Called when the transfer from the given url stalled. The download goes on
+         * from another mirror if possible, otherwise it fails.
+         */
+        default void onStalled(String url) {
+        }
     }
 
     interface ProgressListener {
@@ -48,8 +71,9 @@ public interface DownloadClient {
     /**
      * Resume the download. The download will fail if the server can't fulfil the
      * partial content request and DownloadCallback.onFailure() will be called.
-     * This method has no effect if the download already started or the destination
-     * file doesn't exist.
+     * If the file changed on the server, as told by the validators given to the
+     * Builder, it's downloaded again from the start. This method has no effect if the
+     * download already started or the destination file doesn't exist.
      */
     void resume();
 
@@ -58,47 +82,148 @@ public interface DownloadClient {
      */
     void cancel();
 
+    /**
+     * Get the end of the bytes of the destination written without gaps from a
+     * position, so that the file can be read while it's being downloaded.
+     */
+    long getWrittenEnd(long position);
+
     final class Builder {
-        private String mUrl;
-        private File mDestination;
-        private DownloadClient.DownloadCallback mCallback;
-        private DownloadClient.ProgressListener mProgressListener;
-        private boolean mUseDuplicateLinks;
+        private final DownloadOptions mOptions = new DownloadOptions();
 
         public DownloadClient build() throws IOException {
-            if (mUrl == null) {
+            if (mOptions.mUrl == null) {
                 throw new IllegalStateException("No download URL defined");
-            } else if (mDestination == null) {
+            } else if (mOptions.mDestination == null) {
                 throw new IllegalStateException("No download destination defined");
-            } else if (mCallback == null) {
+            } else if (mOptions.mCallback == null) {
                 throw new IllegalStateException("No download callback defined");
             }
-            return new HttpURLConnectionClient(mUrl, mDestination, mProgressListener, mCallback,
-                    mUseDuplicateLinks);
+            return new HttpURLConnectionClient(mOptions);
         }
 
         public Builder setUrl(String url) {
-            mUrl = url;
+            mOptions.mUrl = url;
             return this;
         }
 
         public Builder setDestination(File destination) {
-            mDestination = destination;
+            mOptions.mDestination = destination;
             return this;
         }
 
         public Builder setDownloadCallback(DownloadClient.DownloadCallback downloadCallback) {
-            mCallback = downloadCallback;
+            mOptions.mCallback = downloadCallback;
             return this;
         }
 
         public Builder setProgressListener(DownloadClient.ProgressListener progressListener) {
-            mProgressListener = progressListener;
+            mOptions.mProgressListener = progressListener;
             return this;
         }
 
         public Builder setUseDuplicateLinks(boolean useDuplicateLinks) {
-            mUseDuplicateLinks = useDuplicateLinks;
+            mOptions.mUseDuplicateLinks = useDuplicateLinks;
+            return this;
+        }
+
+        /**
+         * Split the download in byte ranges fetched over the given number of parallel
+         * connections. If the server doesn't accept ranges, the file is downloaded
+         * with a single connection.
+         */
+        public Builder setSegmentCount(int segmentCount) {
+            mOptions.mSegmentCount = segmentCount;
+            return this;
+        }
+
+        /**
+         * Download the segments from all the duplicate links advertised by the server
+         * at the same time, rather than using them only when the current one fails.
+         * This has no effect unless both duplicate links and segments are enabled.
+         */
+        public Builder setStripeDuplicateLinks(boolean stripeDuplicateLinks) {
+            mOptions.mStripeDuplicateLinks = stripeDuplicateLinks;
+            return this;
+        }
+
+        /**
+         * Record how the mirrors perform and try the best ones first, rather than
+         * following the priority advertised by the server.
+         */
+        public Builder setMirrorStats(MirrorStats mirrorStats) {
+            mOptions.mMirrorStats = mirrorStats;
+            return this;
+        }
+
+        /**
+         * Compute the SHA-256 of the file while it's downloaded and compare it with
+         * the given one, in hexadecimal, once the download completes.
+         */
+        public Builder setSha256(String sha256) {
+            mOptions.mSha256 = sha256;
+            return this;
+        }
+
+        /**
+         * Send the requests of this download through the given transport, instead of
+         * the connections of the platform.
+         */
+        public Builder setTransport(Transport transport) {
+            mOptions.mTransport = transport;
+            return this;
+        }
+
+        /**
+         * Resume only if the file didn't change since it was partially downloaded,
+         * otherwise download it again from the start. The validators are sent with
+         * If-Range to the server that returned them.
+         *
+         * @param url the url of the response the validators come from
+         * @param eTag the ETag header of the response
+         * @param lastModified the Last-Modified header of the response
+         */
+        public Builder setResumeValidators(String url, String eTag, String lastModified) {
+            mOptions.mValidatorUrl = url;
+            mOptions.mETag = eTag;
+            mOptions.mLastModified = lastModified;
+            return this;
+        }
+
+        /**
+         * Throttle the download with the given limiter, which can be shared with other
+         * downloads and changed while they run.
+         */
+        public Builder setRateLimiter(RateLimiter rateLimiter) {
+            mOptions.mRateLimiter = rateLimiter;
+            return this;
+        }
+
+        /**
+         * Give up on a connection that sent nothing, or less than the given rate, for
+         * the given time. With segments, the rest of its range is then downloaded from
+         * the next mirror.
+         *
+         * @param timeoutMillis the time without data before giving up, 0 to wait forever
+         * @param minThroughput the minimum rate in bytes per second, 0 for none
+         */
+        public Builder setStallDetection(int timeoutMillis, long minThroughput) {
+            mOptions.mStallTimeout = timeoutMillis;
+            mOptions.mMinThroughput = minThroughput;
+            return this;
+        }
+
+        /**
+         * Download the segments through a second transport as well, e.g. over another
+         * network. Faster connections take more segments, and near the end the slower
+         * ones leave the rest to them. A failing connection of the second transport is
+         * dropped rather than failed over.
+         *
+         * @param budget the bytes allowed through the second transport, null for no limit
+         */
+        public Builder setSecondaryTransport(Transport transport, ByteBudget budget) {
+            mOptions.mSecondaryTransport = transport;
+            mOptions.mSecondaryBudget = budget;
             return this;
         }
     }
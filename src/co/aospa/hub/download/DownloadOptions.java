@@ -0,0 +1,42 @@
+/*
+ * Copyright (C) 2026 Paranoid Android
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.aospa.hub.download;
+
+import java.io.File;
+
+/**
+ * What DownloadClient.Builder was given, see its setters
+ */
+class DownloadOptions {
+    String mUrl;
+    File mDestination;
+    DownloadClient.DownloadCallback mCallback;
+    DownloadClient.ProgressListener mProgressListener;
+    boolean mUseDuplicateLinks;
+    int mSegmentCount = 1;
+    boolean mStripeDuplicateLinks;
+    MirrorStats mMirrorStats;
+    String mSha256;
+    Transport mTransport = Transport.PLATFORM;
+    String mValidatorUrl;
+    String mETag;
+    String mLastModified;
+    RateLimiter mRateLimiter;
+    int mStallTimeout;
+    long mMinThroughput;
+    Transport mSecondaryTransport;
+    ByteBudget mSecondaryBudget;
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2026 Paranoid Android
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.aospa.hub.download;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/**
+ * One of the ways a segmented download reaches the servers, typically a network, with
+ * the bytes it may carry and how fast its connections turned out to be.
+ */
+class DownloadPath {
+
+    private final String mName;
+    private final Transport mTransport;
+    private final ByteBudget mBudget;
+
+    private int mConnections;
+    private long mTransferBytes;
+    private long mTransferMillis;
+
+    /**
+     * @param budget the bytes allowed through this path, null for no limit
+     */
+    DownloadPath(String name, Transport transport, ByteBudget budget) {
+        mName = name;
+        mTransport = transport;
+        mBudget = budget;
+    }
+
+    String getName() {
+        return mName;
+    }
+
+    HttpURLConnection openConnection(URL url) throws IOException {
+        return mTransport.openConnection(url);
+    }
+
+    boolean isExhausted() {
+        return mBudget != null && mBudget.isExhausted();
+    }
+
+    long reserve(long bytes) {
+        return mBudget != null ? mBudget.reserve(bytes) : bytes;
+    }
+
+    void refund(long bytes) {
+        if (mBudget != null && bytes > 0) {
+            mBudget.refund(bytes);
+        }
+    }
+
+    synchronized void addConnection() {
+        mConnections++;
+    }
+
+    synchronized void removeConnection() {
+        mConnections--;
+    }
+
+    synchronized void recordTransfer(long bytes, long millis) {
+        mTransferBytes += bytes;
+        mTransferMillis += millis;
+    }
+
+    /**
+     * @return the average throughput of one connection in bytes per second, 0 if unknown
+     */
+    synchronized long getConnectionThroughput() {
+        return mTransferMillis > 0 ? mTransferBytes * 1000 / mTransferMillis : 0;
+    }
+
+    /**
+     * @return the estimated throughput of all the connections in use, 0 if unknown
+     */
+    synchronized long getThroughput() {
+        return getConnectionThroughput() * mConnections;
+    }
+}
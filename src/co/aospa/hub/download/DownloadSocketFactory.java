@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2026 Paranoid Android
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.aospa.hub.download;
+
+import android.net.TrafficStats;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketException;
+
+import javax.net.SocketFactory;
+
+/**
+ * Creates the sockets of the connection pool with the options that suit large downloads.
+ * The receive buffer is set before connecting, since the TCP window scale it allows is
+ * agreed on during the handshake.
+ */
+public class DownloadSocketFactory extends SocketFactory {
+
+    private final int mReceiveBufferSize;
+    private final boolean mTcpNoDelay;
+    private final int mTrafficStatsTag;
+
+    /**
+     * @param receiveBufferSize the receive buffer size in bytes, 0 for the system default
+     * @param tcpNoDelay whether to send the requests without waiting to fill a segment
+     * @param trafficStatsTag the tag of the traffic in the network statistics, -1 for none
+     */
+    public DownloadSocketFactory(int receiveBufferSize, boolean tcpNoDelay,
+            int trafficStatsTag) {
+        mReceiveBufferSize = receiveBufferSize;
+        mTcpNoDelay = tcpNoDelay;
+        mTrafficStatsTag = trafficStatsTag;
+    }
+
+    private Socket configure(Socket socket) throws SocketException {
+        if (mReceiveBufferSize > 0) {
+            socket.setReceiveBufferSize(mReceiveBufferSize);
+        }
+        socket.setTcpNoDelay(mTcpNoDelay);
+        if (mTrafficStatsTag != -1) {
+            TrafficStats.setThreadStatsTag(mTrafficStatsTag);
+            try {
+                TrafficStats.tagSocket(socket);
+            } finally {
+                TrafficStats.clearThreadStatsTag();
+            }
+        }
+        return socket;
+    }
+
+    @Override
+    public Socket createSocket() throws IOException {
+        return configure(new Socket());
+    }
+
+    @Override
+    public Socket createSocket(String host, int port) throws IOException {
+        Socket socket = createSocket();
+        socket.connect(new InetSocketAddress(host, port));
+        return socket;
+    }
+
+    @Override
+    public Socket createSocket(String host, int port, InetAddress localAddress, int localPort)
+            throws IOException {
+        Socket socket = createSocket();
+        socket.bind(new InetSocketAddress(localAddress, localPort));
+        socket.connect(new InetSocketAddress(host, port));
+        return socket;
+    }
+
+    @Override
+    public Socket createSocket(InetAddress address, int port) throws IOException {
+        Socket socket = createSocket();
+        socket.connect(new InetSocketAddress(address, port));
+        return socket;
+    }
+
+    @Override
+    public Socket createSocket(InetAddress address, int port, InetAddress localAddress,
+            int localPort) throws IOException {
+        Socket socket = createSocket();
+        socket.bind(new InetSocketAddress(localAddress, localPort));
+        socket.connect(new InetSocketAddress(address, port));
+        return socket;
+    }
+
+    /**
+     * @return the receive buffer size in bytes, 0 for the system default
+     */
+    public int getReceiveBufferSize() {
+        return mReceiveBufferSize;
+    }
+
+    public boolean getTcpNoDelay() {
+        return mTcpNoDelay;
+    }
+
+    @Override
+    public String toString() {
+        return "rcvbuf=" + (mReceiveBufferSize > 0 ? mReceiveBufferSize : "default") +
+                ",nodelay=" + mTcpNoDelay;
+    }
+}
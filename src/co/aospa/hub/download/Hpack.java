@@ -0,0 +1,393 @@
+/*
+ * Copyright (C) 2026 Paranoid Android
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.aospa.hub.download;
+
+import java.io.ByteArrayOutputStream;
+import java.net.ProtocolException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * HPACK, the header compression of HTTP/2 (RFC 7541). Requests are encoded without
+ * the dynamic table, which keeps the encoder stateless; responses are decoded with
+ * the dynamic table the server maintains.
+ */
+class Hpack {
+
+    private static final String[][] STATIC_TABLE = {
+            {":authority", ""},
+            {":method", "GET"},
+            {":method", "POST"},
+            {":path", "/"},
+            {":path", "/index.html"},
+            {":scheme", "http"},
+            {":scheme", "https"},
+            {":status", "200"},
+            {":status", "204"},
+            {":status", "206"},
+            {":status", "304"},
+            {":status", "400"},
+            {":status", "404"},
+            {":status", "500"},
+            {"accept-charset", ""},
+            {"accept-encoding", "gzip, deflate"},
+            {"accept-language", ""},
+            {"accept-ranges", ""},
+            {"accept", ""},
+            {"access-control-allow-origin", ""},
+            {"age", ""},
+            {"allow", ""},
+            {"authorization", ""},
+            {"cache-control", ""},
+            {"content-disposition", ""},
+            {"content-encoding", ""},
+            {"content-language", ""},
+            {"content-length", ""},
+            {"content-location", ""},
+            {"content-range", ""},
+            {"content-type", ""},
+            {"cookie", ""},
+            {"date", ""},
+            {"etag", ""},
+            {"expect", ""},
+            {"expires", ""},
+            {"from", ""},
+            {"host", ""},
+            {"if-match", ""},
+            {"if-modified-since", ""},
+            {"if-none-match", ""},
+            {"if-range", ""},
+            {"if-unmodified-since", ""},
+            {"last-modified", ""},
+            {"link", ""},
+            {"location", ""},
+            {"max-forwards", ""},
+            {"proxy-authenticate", ""},
+            {"proxy-authorization", ""},
+            {"range", ""},
+            {"referer", ""},
+            {"refresh", ""},
+            {"retry-after", ""},
+            {"server", ""},
+            {"set-cookie", ""},
+            {"strict-transport-security", ""},
+            {"transfer-encoding", ""},
+            {"user-agent", ""},
+            {"vary", ""},
+            {"via", ""},
+            {"www-authenticate", ""},
+    };
+
+    // Huffman code of each octet and of the end of string, right aligned
+    private static final int[] CODES = {
+            0x1ff8, 0x7fffd8, 0xfffffe2, 0xfffffe3, 0xfffffe4, 0xfffffe5, 0xfffffe6, 0xfffffe7,
+            0xfffffe8, 0xffffea, 0x3ffffffc, 0xfffffe9, 0xfffffea, 0x3ffffffd, 0xfffffeb, 0xfffffec,
+            0xfffffed, 0xfffffee, 0xfffffef, 0xffffff0, 0xffffff1, 0xffffff2, 0x3ffffffe, 0xffffff3,
+            0xffffff4, 0xffffff5, 0xffffff6, 0xffffff7, 0xffffff8, 0xffffff9, 0xffffffa, 0xffffffb,
+            0x14, 0x3f8, 0x3f9, 0xffa, 0x1ff9, 0x15, 0xf8, 0x7fa,
+            0x3fa, 0x3fb, 0xf9, 0x7fb, 0xfa, 0x16, 0x17, 0x18,
+            0x0, 0x1, 0x2, 0x19, 0x1a, 0x1b, 0x1c, 0x1d,
+            0x1e, 0x1f, 0x5c, 0xfb, 0x7ffc, 0x20, 0xffb, 0x3fc,
+            0x1ffa, 0x21, 0x5d, 0x5e, 0x5f, 0x60, 0x61, 0x62,
+            0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69, 0x6a,
+            0x6b, 0x6c, 0x6d, 0x6e, 0x6f, 0x70, 0x71, 0x72,
+            0xfc, 0x73, 0xfd, 0x1ffb, 0x7fff0, 0x1ffc, 0x3ffc, 0x22,
+            0x7ffd, 0x3, 0x23, 0x4, 0x24, 0x5, 0x25, 0x26,
+            0x27, 0x6, 0x74, 0x75, 0x28, 0x29, 0x2a, 0x7,
+            0x2b, 0x76, 0x2c, 0x8, 0x9, 0x2d, 0x77, 0x78,
+            0x79, 0x7a, 0x7b, 0x7ffe, 0x7fc, 0x3ffd, 0x1ffd, 0xffffffc,
+            0xfffe6, 0x3fffd2, 0xfffe7, 0xfffe8, 0x3fffd3, 0x3fffd4, 0x3fffd5, 0x7fffd9,
+            0x3fffd6, 0x7fffda, 0x7fffdb, 0x7fffdc, 0x7fffdd, 0x7fffde, 0xffffeb, 0x7fffdf,
+            0xffffec, 0xffffed, 0x3fffd7, 0x7fffe0, 0xffffee, 0x7fffe1, 0x7fffe2, 0x7fffe3,
+            0x7fffe4, 0x1fffdc, 0x3fffd8, 0x7fffe5, 0x3fffd9, 0x7fffe6, 0x7fffe7, 0xffffef,
+            0x3fffda, 0x1fffdd, 0xfffe9, 0x3fffdb, 0x3fffdc, 0x7fffe8, 0x7fffe9, 0x1fffde,
+            0x7fffea, 0x3fffdd, 0x3fffde, 0xfffff0, 0x1fffdf, 0x3fffdf, 0x7fffeb, 0x7fffec,
+            0x1fffe0, 0x1fffe1, 0x3fffe0, 0x1fffe2, 0x7fffed, 0x3fffe1, 0x7fffee, 0x7fffef,
+            0xfffea, 0x3fffe2, 0x3fffe3, 0x3fffe4, 0x7ffff0, 0x3fffe5, 0x3fffe6, 0x7ffff1,
+            0x3ffffe0, 0x3ffffe1, 0xfffeb, 0x7fff1, 0x3fffe7, 0x7ffff2, 0x3fffe8, 0x1ffffec,
+            0x3ffffe2, 0x3ffffe3, 0x3ffffe4, 0x7ffffde, 0x7ffffdf, 0x3ffffe5, 0xfffff1, 0x1ffffed,
+            0x7fff2, 0x1fffe3, 0x3ffffe6, 0x7ffffe0, 0x7ffffe1, 0x3ffffe7, 0x7ffffe2, 0xfffff2,
+            0x1fffe4, 0x1fffe5, 0x3ffffe8, 0x3ffffe9, 0xffffffd, 0x7ffffe3, 0x7ffffe4, 0x7ffffe5,
+            0xfffec, 0xfffff3, 0xfffed, 0x1fffe6, 0x3fffe9, 0x1fffe7, 0x1fffe8, 0x7ffff3,
+            0x3fffea, 0x3fffeb, 0x1ffffee, 0x1ffffef, 0xfffff4, 0xfffff5, 0x3ffffea, 0x7ffff4,
+            0x3ffffeb, 0x7ffffe6, 0x3ffffec, 0x3ffffed, 0x7ffffe7, 0x7ffffe8, 0x7ffffe9, 0x7ffffea,
+            0x7ffffeb, 0xffffffe, 0x7ffffec, 0x7ffffed, 0x7ffffee, 0x7ffffef, 0x7fffff0, 0x3ffffee,
+            0x3fffffff
+    };
+
+    private static final byte[] LENGTHS = {
+            13, 23, 28, 28, 28, 28, 28, 28, 28, 24, 30, 28, 28, 30, 28, 28,
+            28, 28, 28, 28, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 28,
+            6, 10, 10, 12, 13, 6, 8, 11, 10, 10, 8, 11, 8, 6, 6, 6,
+            5, 5, 5, 6, 6, 6, 6, 6, 6, 6, 7, 8, 15, 6, 12, 10,
+            13, 6, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7,
+            7, 7, 7, 7, 7, 7, 7, 7, 8, 7, 8, 13, 19, 13, 14, 6,
+            15, 5, 6, 5, 6, 5, 6, 6, 6, 5, 7, 7, 6, 6, 6, 5,
+            6, 7, 6, 5, 5, 6, 7, 7, 7, 7, 7, 15, 11, 14, 13, 28,
+            20, 22, 20, 20, 22, 22, 22, 23, 22, 23, 23, 23, 23, 23, 24, 23,
+            24, 24, 22, 23, 24, 23, 23, 23, 23, 21, 22, 23, 22, 23, 23, 24,
+            22, 21, 20, 22, 22, 23, 23, 21, 23, 22, 22, 24, 21, 22, 23, 23,
+            21, 21, 22, 21, 23, 22, 23, 23, 20, 22, 22, 22, 23, 22, 22, 23,
+            26, 26, 20, 19, 22, 23, 22, 25, 26, 26, 26, 27, 27, 26, 24, 25,
+            19, 21, 26, 27, 27, 26, 27, 24, 21, 21, 26, 26, 28, 27, 27, 27,
+            20, 24, 20, 21, 22, 21, 21, 23, 22, 22, 25, 25, 24, 24, 26, 23,
+            26, 27, 26, 26, 27, 27, 27, 27, 27, 28, 27, 27, 27, 27, 27, 26,
+            30
+    };
+
+    private static final int EOS = 256;
+    // Decoding tree, the children of node n are at 2 * n and 2 * n + 1. Leaves hold
+    // the bitwise complement of their symbol, 0 means no child.
+    private static final int[] TREE = buildTree();
+
+    // Bytes of an entry added to the size of its name and value
+    private static final int ENTRY_OVERHEAD = 32;
+    static final int DEFAULT_TABLE_SIZE = 4096;
+
+    private static int[] buildTree() {
+        List<Integer> tree = new ArrayList<>();
+        tree.add(0);
+        tree.add(0);
+        for (int symbol = 0; symbol <= EOS; symbol++) {
+            int node = 0;
+            for (int bit = LENGTHS[symbol] - 1; bit >= 0; bit--) {
+                int child = 2 * node + ((CODES[symbol] >>> bit) & 1);
+                if (bit == 0) {
+                    tree.set(child, ~symbol);
+                } else {
+                    if (tree.get(child) == 0) {
+                        tree.set(child, tree.size() / 2);
+                        tree.add(0);
+                        tree.add(0);
+                    }
+                    node = tree.get(child);
+                }
+            }
+        }
+        int[] result = new int[tree.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = tree.get(i);
+        }
+        return result;
+    }
+
+    /**
+     * Encode a header list as literals that the server doesn't add to its table
+     *
+     * @param headers the names, in lower case, and values of the headers
+     */
+    static byte[] encode(List<String[]> headers) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (String[] header : headers) {
+            // Literal header field without indexing, new name
+            out.write(0);
+            writeString(out, header[0]);
+            writeString(out, header[1]);
+        }
+        return out.toByteArray();
+    }
+
+    private static void writeInt(ByteArrayOutputStream out, int prefixBits, int flags,
+            int value) {
+        int max = (1 << prefixBits) - 1;
+        if (value < max) {
+            out.write(flags | value);
+            return;
+        }
+        out.write(flags | max);
+        value -= max;
+        while (value >= 0x80) {
+            out.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static void writeString(ByteArrayOutputStream out, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.ISO_8859_1);
+        writeInt(out, 7, 0, bytes.length);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Decodes the header blocks of a connection. The blocks must be decoded in the
+     * order they're received, even those of streams that were cancelled.
+     */
+    static class Decoder {
+
+        // Newest entries first
+        private final LinkedList<String[]> mDynamicTable = new LinkedList<>();
+        private final int mMaxTableSize;
+        private int mTableSizeLimit;
+        private int mTableSize;
+
+        private byte[] mBlock;
+        private int mPosition;
+
+        Decoder(int maxTableSize) {
+            mMaxTableSize = maxTableSize;
+            mTableSizeLimit = maxTableSize;
+        }
+
+        List<String[]> decode(byte[] block) throws ProtocolException {
+            mBlock = block;
+            mPosition = 0;
+            List<String[]> headers = new ArrayList<>();
+            while (mPosition < mBlock.length) {
+                int b = mBlock[mPosition] & 0xff;
+                if ((b & 0x80) != 0) {
+                    // Indexed header field
+                    String[] entry = getEntry(readInt(7));
+                    headers.add(new String[]{entry[0], entry[1]});
+                } else if ((b & 0xc0) == 0x40) {
+                    // Literal header field with incremental indexing
+                    String[] header = readLiteral(6);
+                    headers.add(header);
+                    add(header);
+                } else if ((b & 0xe0) == 0x20) {
+                    // Dynamic table size update
+                    int size = readInt(5);
+                    if (size > mMaxTableSize) {
+                        throw new ProtocolException("Invalid table size " + size);
+                    }
+                    mTableSizeLimit = size;
+                    evict(0);
+                } else {
+                    // Literal header field without indexing or never indexed
+                    headers.add(readLiteral(4));
+                }
+            }
+            return headers;
+        }
+
+        private String[] getEntry(int index) throws ProtocolException {
+            if (index > 0 && index <= STATIC_TABLE.length) {
+                return STATIC_TABLE[index - 1];
+            }
+            index -= STATIC_TABLE.length + 1;
+            if (index < 0 || index >= mDynamicTable.size()) {
+                throw new ProtocolException("Invalid header index");
+            }
+            return mDynamicTable.get(index);
+        }
+
+        private String[] readLiteral(int prefixBits) throws ProtocolException {
+            int index = readInt(prefixBits);
+            String name = index == 0 ? readString() : getEntry(index)[0];
+            return new String[]{name, readString()};
+        }
+
+        private void add(String[] entry) {
+            int size = getSize(entry);
+            evict(size);
+            if (size <= mTableSizeLimit) {
+                mDynamicTable.addFirst(entry);
+                mTableSize += size;
+            }
+        }
+
+        /**
+         * Remove the oldest entries until there's room for the given number of bytes
+         */
+        private void evict(int size) {
+            while (!mDynamicTable.isEmpty() && mTableSize + size > mTableSizeLimit) {
+                mTableSize -= getSize(mDynamicTable.removeLast());
+            }
+        }
+
+        private static int getSize(String[] entry) {
+            return entry[0].length() + entry[1].length() + ENTRY_OVERHEAD;
+        }
+
+        private int readByte() throws ProtocolException {
+            if (mPosition >= mBlock.length) {
+                throw new ProtocolException("Truncated header block");
+            }
+            return mBlock[mPosition++] & 0xff;
+        }
+
+        private int readInt(int prefixBits) throws ProtocolException {
+            int max = (1 << prefixBits) - 1;
+            int value = readByte() & max;
+            if (value < max) {
+                return value;
+            }
+            for (int shift = 0; ; shift += 7) {
+                int b = readByte();
+                if (shift > 21) {
+                    throw new ProtocolException("Integer too large");
+                }
+                value += (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+        }
+
+        private String readString() throws ProtocolException {
+            if (mPosition >= mBlock.length) {
+                throw new ProtocolException("Truncated header block");
+            }
+            boolean huffman = (mBlock[mPosition] & 0x80) != 0;
+            int length = readInt(7);
+            if (length > mBlock.length - mPosition) {
+                throw new ProtocolException("Truncated header block");
+            }
+            int start = mPosition;
+            mPosition += length;
+            if (!huffman) {
+                return new String(mBlock, start, length, StandardCharsets.ISO_8859_1);
+            }
+            return decodeHuffman(mBlock, start, length);
+        }
+    }
+
+    private static String decodeHuffman(byte[] data, int offset, int length)
+            throws ProtocolException {
+        StringBuilder sb = new StringBuilder(length * 8 / 5);
+        int node = 0;
+        // Bits read since the last symbol, all of them 1 as long as it's valid padding
+        int pendingBits = 0;
+        boolean pendingOnes = true;
+        for (int i = offset; i < offset + length; i++) {
+            int b = data[i] & 0xff;
+            for (int bit = 7; bit >= 0; bit--) {
+                int value = (b >>> bit) & 1;
+                int child = TREE[2 * node + value];
+                if (child < 0) {
+                    int symbol = ~child;
+                    if (symbol == EOS) {
+                        throw new ProtocolException("Unexpected end of string");
+                    }
+                    sb.append((char) symbol);
+                    node = 0;
+                    pendingBits = 0;
+                    pendingOnes = true;
+                } else {
+                    node = child;
+                    pendingBits++;
+                    pendingOnes &= value == 1;
+                }
+            }
+        }
+        if (pendingBits > 7 || !pendingOnes) {
+            throw new ProtocolException("Invalid padding");
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,763 @@
+/*
+ * Copyright (C) 2026 Paranoid Android
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.aospa.hub.download;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An HTTP/2 connection carrying the requests to a server as concurrent streams.
+ * Only what downloads need is implemented: requests have no body and server push is
+ * disabled. Each response is buffered up to the flow control window of its stream,
+ * which is given back to the server as the response is read.
+ */
+class Http2Connection {
+
+    private static final String TAG = "Http2Connection";
+
+    static final String PROTOCOL = "h2";
+
+    private static final byte[] PREFACE =
+            "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+
+    private static final int TYPE_DATA = 0x0;
+    private static final int TYPE_HEADERS = 0x1;
+    private static final int TYPE_RST_STREAM = 0x3;
+    private static final int TYPE_SETTINGS = 0x4;
+    private static final int TYPE_PUSH_PROMISE = 0x5;
+    private static final int TYPE_PING = 0x6;
+    private static final int TYPE_GOAWAY = 0x7;
+    private static final int TYPE_WINDOW_UPDATE = 0x8;
+    private static final int TYPE_CONTINUATION = 0x9;
+
+    private static final int FLAG_END_STREAM = 0x1;
+    private static final int FLAG_ACK = 0x1;
+    private static final int FLAG_END_HEADERS = 0x4;
+    private static final int FLAG_PADDED = 0x8;
+    private static final int FLAG_PRIORITY = 0x20;
+
+    private static final int SETTINGS_ENABLE_PUSH = 0x2;
+    private static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+    private static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+    private static final int SETTINGS_MAX_FRAME_SIZE = 0x5;
+
+    private static final int ERROR_NO_ERROR = 0x0;
+    private static final int ERROR_PROTOCOL = 0x1;
+    private static final int ERROR_FLOW_CONTROL = 0x3;
+    private static final int ERROR_REFUSED_STREAM = 0x7;
+    private static final int ERROR_CANCEL = 0x8;
+
+    private static final int FRAME_HEADER_SIZE = 9;
+    private static final int DEFAULT_FRAME_SIZE = 16384;
+    private static final int MAX_FRAME_SIZE = 16777215;
+    private static final int DEFAULT_WINDOW_SIZE = 65535;
+    // Large enough not to limit a fast link with a long round trip
+    private static final int STREAM_WINDOW_SIZE = 4 * 1024 * 1024;
+    private static final int CONNECTION_WINDOW_SIZE = 16 * 1024 * 1024;
+
+    /**
+     * Thrown when the server didn't process a request, which can be sent again
+     */
+    static class RefusedStreamException extends IOException {
+        RefusedStreamException(String message) {
+            super(message);
+        }
+    }
+
+    private final PooledConnection mConnection;
+    private final ConnectionPool mPool;
+    private final InputStream mInputStream;
+    private final OutputStream mOutputStream;
+    // Frames are written holding this lock, it's never taken while holding this
+    private final Object mWriteLock = new Object();
+    private final Hpack.Decoder mDecoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE);
+
+    // Header block being received in several frames
+    private ByteArrayOutputStream mHeaderBlock;
+    private int mHeaderStreamId;
+    private boolean mHeaderEndStream;
+
+    private final Map<Integer, Stream> mStreams = new HashMap<>();
+    private int mReservedStreams;
+    private int mNextStreamId = 1;
+    private int mMaxStreams = Integer.MAX_VALUE;
+    private int mMaxFrameSize = DEFAULT_FRAME_SIZE;
+    private int mUnacknowledgedBytes;
+    private long mIdleSince;
+    // No new streams once set, the connection closes with its last stream
+    private boolean mShutdown;
+    private boolean mClosed;
+
+    Http2Connection(PooledConnection connection, ConnectionPool pool) {
+        mConnection = connection;
+        mPool = pool;
+        mInputStream = connection.getInputStream();
+        mOutputStream = connection.getOutputStream();
+    }
+
+    String getKey() {
+        return mConnection.getKey();
+    }
+
+    void start() throws IOException {
+        // Streams time out on their own, the frames can be apart as long as they want
+        mConnection.setReadTimeout(0);
+        byte[] settings = new byte[18];
+        putSetting(settings, 0, SETTINGS_ENABLE_PUSH, 0);
+        putSetting(settings, 6, SETTINGS_INITIAL_WINDOW_SIZE, STREAM_WINDOW_SIZE);
+        putSetting(settings, 12, SETTINGS_MAX_FRAME_SIZE, DEFAULT_FRAME_SIZE);
+        synchronized (mWriteLock) {
+            mOutputStream.write(PREFACE);
+            writeFrame(TYPE_SETTINGS, 0, 0, settings, settings.length);
+            writeFrame(TYPE_WINDOW_UPDATE, 0, 0,
+                    toBytes(CONNECTION_WINDOW_SIZE - DEFAULT_WINDOW_SIZE), 4);
+            mOutputStream.flush();
+        }
+        mIdleSince = SystemClock.elapsedRealtime();
+        Thread thread = new Thread(this::readFrames, TAG + " " + getKey());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private static void putSetting(byte[] settings, int offset, int id, int value) {
+        settings[offset] = (byte) (id >>> 8);
+        settings[offset + 1] = (byte) id;
+        System.arraycopy(toBytes(value), 0, settings, offset + 2, 4);
+    }
+
+    private static byte[] toBytes(int value) {
+        return new byte[]{(byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8),
+                (byte) value};
+    }
+
+    private static int readInt(byte[] data, int offset) {
+        return (data[offset] & 0xff) << 24 | (data[offset + 1] & 0xff) << 16 |
+                (data[offset + 2] & 0xff) << 8 | (data[offset + 3] & 0xff);
+    }
+
+    /**
+     * @return whether new streams can be opened
+     */
+    synchronized boolean isUsable() {
+        return !mShutdown;
+    }
+
+    /**
+     * @return since when the connection has no streams, or -1 if it has some
+     */
+    synchronized long getIdleSince() {
+        return mStreams.isEmpty() && mReservedStreams == 0 ? mIdleSince : -1;
+    }
+
+    /**
+     * Send a request. It waits for the other streams to end if the server doesn't
+     * accept more.
+     *
+     * @param headers the pseudo-headers and the headers of the request, in lower case
+     * @param readTimeout the longest time to wait for the server, 0 to wait forever
+     */
+    Stream newStream(List<String[]> headers, int readTimeout) throws IOException {
+        byte[] block = Hpack.encode(headers);
+        Stream stream = new Stream(readTimeout);
+        synchronized (this) {
+            while (!mShutdown && mStreams.size() + mReservedStreams >= mMaxStreams) {
+                waitForFrames(0);
+            }
+            if (mShutdown) {
+                throw new RefusedStreamException("Connection to " + getKey() + " shut down");
+            }
+            mReservedStreams++;
+        }
+        synchronized (mWriteLock) {
+            synchronized (this) {
+                mReservedStreams--;
+                if (mShutdown) {
+                    throw new RefusedStreamException("Connection to " + getKey() + " shut down");
+                }
+                stream.mId = mNextStreamId;
+                mNextStreamId += 2;
+                mStreams.put(stream.mId, stream);
+            }
+            try {
+                int maxFrameSize;
+                synchronized (this) {
+                    maxFrameSize = mMaxFrameSize;
+                }
+                int type = TYPE_HEADERS;
+                int flags = FLAG_END_STREAM;
+                for (int offset = 0; ; offset += maxFrameSize) {
+                    int length = Math.min(maxFrameSize, block.length - offset);
+                    boolean last = offset + length == block.length;
+                    writeFrame(type, flags | (last ? FLAG_END_HEADERS : 0), stream.mId,
+                            Arrays.copyOfRange(block, offset, offset + length), length);
+                    if (last) {
+                        break;
+                    }
+                    type = TYPE_CONTINUATION;
+                    flags = 0;
+                }
+                mOutputStream.flush();
+            } catch (IOException e) {
+                close(e);
+                throw e;
+            }
+        }
+        return stream;
+    }
+
+    /**
+     * Wait for the reader thread to update the streams, while holding this
+     */
+    private void waitForFrames(long deadline) throws IOException {
+        long timeout = 0;
+        if (deadline != 0) {
+            timeout = deadline - SystemClock.elapsedRealtime();
+            if (timeout <= 0) {
+                throw new SocketTimeoutException("Read timed out");
+            }
+        }
+        try {
+            wait(timeout);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for " + getKey());
+        }
+    }
+
+    private void writeFrame(int type, int flags, int streamId, byte[] payload, int length)
+            throws IOException {
+        byte[] header = new byte[FRAME_HEADER_SIZE];
+        header[0] = (byte) (length >>> 16);
+        header[1] = (byte) (length >>> 8);
+        header[2] = (byte) length;
+        header[3] = (byte) type;
+        header[4] = (byte) flags;
+        System.arraycopy(toBytes(streamId), 0, header, 5, 4);
+        mOutputStream.write(header);
+        mOutputStream.write(payload, 0, length);
+    }
+
+    private void sendFrame(int type, int flags, int streamId, byte[] payload) {
+        try {
+            synchronized (mWriteLock) {
+                writeFrame(type, flags, streamId, payload, payload.length);
+                mOutputStream.flush();
+            }
+        } catch (IOException e) {
+            close(e);
+        }
+    }
+
+    /**
+     * Give the window of consumed bytes back to the server
+     *
+     * @param stream the stream the bytes belong to, null if it doesn't matter anymore
+     */
+    private void onConsumed(Stream stream, int count) {
+        int connectionIncrement = 0;
+        int streamIncrement = 0;
+        synchronized (this) {
+            mUnacknowledgedBytes += count;
+            if (mUnacknowledgedBytes >= CONNECTION_WINDOW_SIZE / 2) {
+                connectionIncrement = mUnacknowledgedBytes;
+                mUnacknowledgedBytes = 0;
+            }
+            if (stream != null && mStreams.get(stream.mId) == stream) {
+                stream.mUnacknowledgedBytes += count;
+                if (stream.mUnacknowledgedBytes >= STREAM_WINDOW_SIZE / 2) {
+                    streamIncrement = stream.mUnacknowledgedBytes;
+                    stream.mUnacknowledgedBytes = 0;
+                    stream.mReceiveWindow += streamIncrement;
+                }
+            }
+        }
+        if (connectionIncrement > 0) {
+            sendFrame(TYPE_WINDOW_UPDATE, 0, 0, toBytes(connectionIncrement));
+        }
+        if (streamIncrement > 0) {
+            sendFrame(TYPE_WINDOW_UPDATE, 0, stream.mId, toBytes(streamIncrement));
+        }
+    }
+
+    /**
+     * Forget a stream, while holding this
+     *
+     * @return whether the connection has no streams left
+     */
+    private boolean removeStream(Stream stream) {
+        if (mStreams.get(stream.mId) != stream) {
+            return false;
+        }
+        mStreams.remove(stream.mId);
+        notifyAll();
+        if (mStreams.isEmpty()) {
+            mIdleSince = SystemClock.elapsedRealtime();
+            return true;
+        }
+        return false;
+    }
+
+    private void onIdle() {
+        boolean shutdown;
+        synchronized (this) {
+            shutdown = mShutdown;
+        }
+        if (shutdown) {
+            close(new IOException("Connection to " + getKey() + " shut down"));
+        } else {
+            mPool.onHttp2Idle();
+        }
+    }
+
+    private void resetStream(Stream stream, int errorCode) {
+        boolean idle;
+        synchronized (this) {
+            idle = removeStream(stream);
+        }
+        sendFrame(TYPE_RST_STREAM, 0, stream.mId, toBytes(errorCode));
+        if (idle) {
+            onIdle();
+        }
+    }
+
+    /**
+     * Close the connection, failing the streams that are still open
+     */
+    void close(IOException cause) {
+        List<Stream> streams;
+        synchronized (this) {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+            mShutdown = true;
+            streams = new ArrayList<>(mStreams.values());
+            mStreams.clear();
+            for (Stream stream : streams) {
+                // A stream that got no answer at all can be sent again
+                stream.fail(cause, stream.mResponseHeaders == null);
+            }
+            notifyAll();
+        }
+        mConnection.close();
+        mPool.onHttp2Closed(this);
+    }
+
+    private void readFully(byte[] buffer, int length) throws IOException {
+        for (int offset = 0; offset < length; ) {
+            int count = mInputStream.read(buffer, offset, length - offset);
+            if (count == -1) {
+                throw new EOFException("Connection to " + getKey() + " closed");
+            }
+            offset += count;
+        }
+    }
+
+    private void readFrames() {
+        IOException error;
+        try {
+            byte[] header = new byte[FRAME_HEADER_SIZE];
+            for (;;) {
+                readFully(header, header.length);
+                int length = (header[0] & 0xff) << 16 | (header[1] & 0xff) << 8 |
+                        (header[2] & 0xff);
+                int type = header[3] & 0xff;
+                int flags = header[4] & 0xff;
+                int streamId = readInt(header, 5) & 0x7fffffff;
+                if (length > DEFAULT_FRAME_SIZE) {
+                    throw new ProtocolException("Frame too large: " + length);
+                }
+                byte[] payload = new byte[length];
+                readFully(payload, length);
+                if (mHeaderBlock != null && type != TYPE_CONTINUATION) {
+                    throw new ProtocolException("Expected CONTINUATION frame");
+                }
+                switch (type) {
+                    case TYPE_DATA:
+                        onData(streamId, flags, payload);
+                        break;
+                    case TYPE_HEADERS:
+                        onHeaders(streamId, flags, payload);
+                        break;
+                    case TYPE_CONTINUATION:
+                        onContinuation(streamId, flags, payload);
+                        break;
+                    case TYPE_RST_STREAM:
+                        onRstStream(streamId, payload);
+                        break;
+                    case TYPE_SETTINGS:
+                        onSettings(streamId, flags, payload);
+                        break;
+                    case TYPE_PUSH_PROMISE:
+                        throw new ProtocolException("Server push is disabled");
+                    case TYPE_PING:
+                        if (length != 8) {
+                            throw new ProtocolException("Invalid PING frame");
+                        }
+                        if ((flags & FLAG_ACK) == 0) {
+                            sendFrame(TYPE_PING, FLAG_ACK, 0, payload);
+                        }
+                        break;
+                    case TYPE_GOAWAY:
+                        onGoAway(payload);
+                        break;
+                    default:
+                        // Only needed to send bodies, or safe to ignore
+                        break;
+                }
+            }
+        } catch (ProtocolException e) {
+            Log.e(TAG, "Protocol error on " + getKey(), e);
+            byte[] payload = new byte[8];
+            System.arraycopy(toBytes(ERROR_PROTOCOL), 0, payload, 4, 4);
+            sendFrame(TYPE_GOAWAY, 0, 0, payload);
+            error = e;
+        } catch (IOException e) {
+            error = e;
+        }
+        close(error);
+    }
+
+    private void onData(int streamId, int flags, byte[] payload) throws IOException {
+        int offset = 0;
+        int padding = 0;
+        if ((flags & FLAG_PADDED) != 0) {
+            if (payload.length == 0 || (padding = payload[0] & 0xff) >= payload.length) {
+                throw new ProtocolException("Invalid padding");
+            }
+            offset = 1;
+        }
+        int length = payload.length - offset - padding;
+        byte[] data = offset == 0 && padding == 0 ? payload :
+                Arrays.copyOfRange(payload, offset, offset + length);
+        Stream stream;
+        boolean overflow = false;
+        boolean idle = false;
+        synchronized (this) {
+            stream = mStreams.get(streamId);
+            if (stream != null) {
+                stream.mReceiveWindow -= payload.length;
+                if (stream.mReceiveWindow < 0) {
+                    overflow = true;
+                    stream.fail(new ProtocolException("Flow control window exceeded"), false);
+                } else {
+                    if (length > 0) {
+                        stream.mData.addLast(data);
+                        stream.mBufferedBytes += length;
+                    }
+                    if ((flags & FLAG_END_STREAM) != 0) {
+                        stream.mEndStream = true;
+                        idle = removeStream(stream);
+                    }
+                    notifyAll();
+                }
+            }
+        }
+        if (stream == null || overflow) {
+            // Nobody reads these bytes, the server can reuse their window right away
+            onConsumed(null, payload.length);
+        } else if (payload.length > length) {
+            onConsumed(stream, payload.length - length);
+        }
+        if (overflow) {
+            resetStream(stream, ERROR_FLOW_CONTROL);
+        } else if (idle) {
+            onIdle();
+        }
+    }
+
+    private void onHeaders(int streamId, int flags, byte[] payload) throws IOException {
+        int offset = 0;
+        int padding = 0;
+        if ((flags & FLAG_PADDED) != 0) {
+            if (payload.length == 0) {
+                throw new ProtocolException("Invalid padding");
+            }
+            padding = payload[0] & 0xff;
+            offset = 1;
+        }
+        if ((flags & FLAG_PRIORITY) != 0) {
+            offset += 5;
+        }
+        if (offset + padding > payload.length) {
+            throw new ProtocolException("Invalid HEADERS frame");
+        }
+        mHeaderBlock = new ByteArrayOutputStream();
+        mHeaderBlock.write(payload, offset, payload.length - offset - padding);
+        mHeaderStreamId = streamId;
+        mHeaderEndStream = (flags & FLAG_END_STREAM) != 0;
+        if ((flags & FLAG_END_HEADERS) != 0) {
+            onHeaderBlock();
+        }
+    }
+
+    private void onContinuation(int streamId, int flags, byte[] payload) throws IOException {
+        if (mHeaderBlock == null || streamId != mHeaderStreamId) {
+            throw new ProtocolException("Unexpected CONTINUATION frame");
+        }
+        mHeaderBlock.write(payload, 0, payload.length);
+        if ((flags & FLAG_END_HEADERS) != 0) {
+            onHeaderBlock();
+        }
+    }
+
+    private void onHeaderBlock() throws IOException {
+        // Decode even if nobody wants the headers, to keep the table in sync
+        List<String[]> headers = mDecoder.decode(mHeaderBlock.toByteArray());
+        mHeaderBlock = null;
+        Stream stream;
+        boolean invalid = false;
+        boolean idle = false;
+        synchronized (this) {
+            stream = mStreams.get(mHeaderStreamId);
+            if (stream == null) {
+                return;
+            }
+            if (stream.mResponseHeaders == null) {
+                String status = null;
+                for (String[] header : headers) {
+                    if (":status".equals(header[0])) {
+                        status = header[1];
+                    }
+                }
+                if (status == null || status.length() != 3) {
+                    invalid = true;
+                } else if (!status.startsWith("1")) {
+                    stream.mResponseHeaders = headers;
+                } else if (mHeaderEndStream) {
+                    invalid = true;
+                }
+            }
+            if (invalid) {
+                stream.fail(new ProtocolException("Invalid response headers"), false);
+            } else if (mHeaderEndStream) {
+                stream.mEndStream = true;
+                idle = removeStream(stream);
+            }
+            notifyAll();
+        }
+        if (invalid) {
+            resetStream(stream, ERROR_PROTOCOL);
+        } else if (idle) {
+            onIdle();
+        }
+    }
+
+    private void onRstStream(int streamId, byte[] payload) throws IOException {
+        if (payload.length != 4) {
+            throw new ProtocolException("Invalid RST_STREAM frame");
+        }
+        int errorCode = readInt(payload, 0);
+        Stream stream;
+        boolean idle;
+        synchronized (this) {
+            stream = mStreams.get(streamId);
+            if (stream == null) {
+                return;
+            }
+            stream.fail(new IOException("Stream reset by " + getKey() + " with error " +
+                    errorCode), errorCode == ERROR_REFUSED_STREAM);
+            idle = removeStream(stream);
+        }
+        if (idle) {
+            onIdle();
+        }
+    }
+
+    private void onSettings(int streamId, int flags, byte[] payload) throws IOException {
+        if ((flags & FLAG_ACK) != 0) {
+            return;
+        }
+        if (streamId != 0 || payload.length % 6 != 0) {
+            throw new ProtocolException("Invalid SETTINGS frame");
+        }
+        synchronized (this) {
+            for (int offset = 0; offset < payload.length; offset += 6) {
+                int id = (payload[offset] & 0xff) << 8 | (payload[offset + 1] & 0xff);
+                int value = readInt(payload, offset + 2);
+                if (id == SETTINGS_MAX_CONCURRENT_STREAMS) {
+                    mMaxStreams = value < 0 ? Integer.MAX_VALUE : value;
+                } else if (id == SETTINGS_MAX_FRAME_SIZE) {
+                    if (value < DEFAULT_FRAME_SIZE || value > MAX_FRAME_SIZE) {
+                        throw new ProtocolException("Invalid frame size " + value);
+                    }
+                    mMaxFrameSize = value;
+                }
+            }
+            notifyAll();
+        }
+        sendFrame(TYPE_SETTINGS, FLAG_ACK, 0, new byte[0]);
+    }
+
+    private void onGoAway(byte[] payload) throws IOException {
+        if (payload.length < 8) {
+            throw new ProtocolException("Invalid GOAWAY frame");
+        }
+        int lastStreamId = readInt(payload, 0) & 0x7fffffff;
+        int errorCode = readInt(payload, 4);
+        if (errorCode != ERROR_NO_ERROR) {
+            Log.e(TAG, getKey() + " is going away with error " + errorCode);
+        }
+        boolean idle;
+        synchronized (this) {
+            mShutdown = true;
+            Iterator<Stream> it = mStreams.values().iterator();
+            while (it.hasNext()) {
+                Stream stream = it.next();
+                if (stream.mId > lastStreamId) {
+                    stream.fail(new IOException(getKey() + " is going away"), true);
+                    it.remove();
+                }
+            }
+            idle = mStreams.isEmpty();
+            notifyAll();
+        }
+        if (idle) {
+            onIdle();
+        }
+    }
+
+    /**
+     * A request and its response
+     */
+    class Stream {
+        private int mId;
+        private final int mReadTimeout;
+
+        private List<String[]> mResponseHeaders;
+        private final ArrayDeque<byte[]> mData = new ArrayDeque<>();
+        private int mDataOffset;
+        private int mBufferedBytes;
+        private boolean mEndStream;
+        private IOException mError;
+        private boolean mRefused;
+
+        private int mReceiveWindow = STREAM_WINDOW_SIZE;
+        private int mUnacknowledgedBytes;
+
+        private Stream(int readTimeout) {
+            mReadTimeout = readTimeout;
+        }
+
+        private long getDeadline() {
+            return mReadTimeout > 0 ? SystemClock.elapsedRealtime() + mReadTimeout : 0;
+        }
+
+        private void checkError() throws IOException {
+            if (mError == null) {
+                return;
+            }
+            if (mRefused) {
+                throw new RefusedStreamException(mError.getMessage());
+            }
+            throw new IOException(mError.getMessage(), mError);
+        }
+
+        /**
+         * Stop the stream because of an error, while holding the connection
+         *
+         * @param refused whether the server didn't process the request
+         */
+        private void fail(IOException error, boolean refused) {
+            if (mError == null) {
+                mError = error;
+                mRefused = refused;
+            }
+        }
+
+        /**
+         * @return the pseudo-headers and the headers of the response, in lower case
+         */
+        List<String[]> readResponseHeaders() throws IOException {
+            synchronized (Http2Connection.this) {
+                long deadline = getDeadline();
+                while (mResponseHeaders == null) {
+                    checkError();
+                    waitForFrames(deadline);
+                }
+                return mResponseHeaders;
+            }
+        }
+
+        /**
+         * Read the response body, like InputStream.read()
+         */
+        int read(byte[] b, int off, int len) throws IOException {
+            int count;
+            synchronized (Http2Connection.this) {
+                long deadline = getDeadline();
+                while (mData.isEmpty()) {
+                    checkError();
+                    if (mEndStream) {
+                        return -1;
+                    }
+                    waitForFrames(deadline);
+                }
+                checkError();
+                byte[] chunk = mData.peekFirst();
+                count = Math.min(len, chunk.length - mDataOffset);
+                System.arraycopy(chunk, mDataOffset, b, off, count);
+                mDataOffset += count;
+                if (mDataOffset == chunk.length) {
+                    mData.pollFirst();
+                    mDataOffset = 0;
+                }
+                mBufferedBytes -= count;
+            }
+            onConsumed(this, count);
+            return count;
+        }
+
+        /**
+         * Stop receiving the response, the bytes not read yet are discarded
+         */
+        void cancel() {
+            boolean open;
+            int discarded;
+            synchronized (Http2Connection.this) {
+                open = mStreams.get(mId) == this;
+                fail(new IOException("Stream cancelled"), false);
+                discarded = mBufferedBytes;
+                mData.clear();
+                mBufferedBytes = 0;
+                Http2Connection.this.notifyAll();
+            }
+            if (open) {
+                resetStream(this, ERROR_CANCEL);
+            }
+            if (discarded > 0) {
+                onConsumed(null, discarded);
+            }
+        }
+    }
+}
@@ -18,17 +18,27 @@ package co.aospa.hub.download;
 import android.os.SystemClock;
 import android.util.Log;
 
+import co.aospa.hub.misc.BufferPool;
+import co.aospa.hub.misc.FileUtils;
+
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
 import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.PriorityQueue;
+import java.util.Set;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -36,14 +46,40 @@ public class HttpURLConnectionClient implements DownloadClient {
 
     private final static String TAG = "HttpURLConnectionClient";
 
+    private static final long MIN_SEGMENT_SIZE = 1024 * 1024;
+    private static final long MAX_SEGMENT_SIZE = 16 * 1024 * 1024;
+    // More segments than connections, so that faster connections can take over more work
+    private static final int SEGMENTS_PER_CONNECTION = 4;
+    private static final int MAX_STRIPED_MIRRORS = 8;
+    // A mirror gets another chance if there's no other mirror to fail over to
+    private static final int MAX_MIRROR_FAILURES = 2;
+
     private HttpURLConnection mClient;
 
     private final File mDestination;
     private final DownloadClient.ProgressListener mProgressListener;
     private final DownloadClient.DownloadCallback mCallback;
     private final boolean mUseDuplicateLinks;
+    private final int mSegmentCount;
+    private final boolean mStripeDuplicateLinks;
+    private final MirrorStats mMirrorStats;
+    private final String mSha256;
+    private final Transport mTransport;
+    // Validator of the partial file, only for its server since mirrors don't agree on them
+    private final String mValidator;
+    private final String mValidatorHost;
+    private final RateLimiter mRateLimiter;
+    private final int mStallTimeout;
+    private final long mMinThroughput;
+    // The segments are shared between these, the first one is the transport above
+    private final List<DownloadPath> mPaths = new ArrayList<>();
+    // Saved with the segments, the bytes used from it outlive the process
+    private final ByteBudget mSecondaryBudget;
 
     private DownloadThread mDownloadThread;
+    // What was written so far, by segments or for a single connection
+    private volatile SegmentMap mWrittenSegments;
+    private volatile long mWrittenEnd = -1;
 
     public class Headers implements DownloadClient.Headers {
         @Override
@@ -57,15 +93,29 @@ public class HttpURLConnectionClient implements DownloadClient {
         }
     }
 
-    HttpURLConnectionClient(String url, File destination,
-            DownloadClient.ProgressListener progressListener,
-            DownloadClient.DownloadCallback callback,
-            boolean useDuplicateLinks) throws IOException {
-        mClient = (HttpURLConnection) new URL(url).openConnection();
-        mDestination = destination;
-        mProgressListener = progressListener;
-        mCallback = callback;
-        mUseDuplicateLinks = useDuplicateLinks;
+    HttpURLConnectionClient(DownloadOptions options) throws IOException {
+        mTransport = options.mTransport;
+        mPaths.add(new DownloadPath("default", options.mTransport, null));
+        if (options.mSecondaryTransport != null) {
+            mPaths.add(new DownloadPath("secondary", options.mSecondaryTransport,
+                    options.mSecondaryBudget));
+        }
+        mSecondaryBudget = options.mSecondaryBudget;
+        mRateLimiter = options.mRateLimiter;
+        mStallTimeout = options.mStallTimeout;
+        mMinThroughput = options.mMinThroughput;
+        mClient = openConnection(new URL(options.mUrl));
+        mDestination = options.mDestination;
+        mProgressListener = options.mProgressListener;
+        mCallback = options.mCallback;
+        mUseDuplicateLinks = options.mUseDuplicateLinks;
+        mSegmentCount = options.mSegmentCount;
+        mStripeDuplicateLinks = options.mStripeDuplicateLinks;
+        mMirrorStats = options.mMirrorStats;
+        mSha256 = options.mSha256;
+        mValidator = options.mValidatorUrl != null ?
+                getValidator(options.mETag, options.mLastModified) : null;
+        mValidatorHost = mValidator != null ? new URL(options.mValidatorUrl).getHost() : null;
     }
 
     @Override
@@ -74,7 +124,7 @@ public class HttpURLConnectionClient implements DownloadClient {
             Log.e(TAG, "Already downloading");
             return;
         }
-        downloadFileInternalCommon(false);
+        downloadFileInternalCommon(false, null);
     }
 
     @Override
@@ -92,30 +142,50 @@ public class HttpURLConnectionClient implements DownloadClient {
             Log.e(TAG, "Not downloading");
             return;
         }
-        mDownloadThread.interrupt();
+        mDownloadThread.cancel();
         mDownloadThread = null;
     }
 
+    @Override
+    public long getWrittenEnd(long position) {
+        SegmentMap segmentMap = mWrittenSegments;
+        if (segmentMap != null) {
+            return segmentMap.getWrittenEnd(position);
+        }
+        long writtenEnd = mWrittenEnd;
+        if (writtenEnd != -1) {
+            return Math.max(position, writtenEnd);
+        }
+        return SegmentMap.getWrittenEnd(mDestination, position);
+    }
+
     private void downloadFileResumeInternal() {
         if (!mDestination.exists()) {
             mCallback.onFailure(false);
             return;
         }
-        long offset = mDestination.length();
-        mClient.setRequestProperty("Range", "bytes=" + offset + "-");
-        downloadFileInternalCommon(true);
+        SegmentMap segmentMap = SegmentMap.read(mDestination);
+        if (segmentMap == null) {
+            long offset = mDestination.length();
+            mClient.setRequestProperty("Range", "bytes=" + offset + "-");
+        }
+        downloadFileInternalCommon(true, segmentMap);
     }
 
-    private void downloadFileInternalCommon(boolean resume) {
+    private void downloadFileInternalCommon(boolean resume, SegmentMap segmentMap) {
         if (mDownloadThread != null) {
             Log.wtf(TAG, "Already downloading");
             return;
         }
 
-        mDownloadThread = new DownloadThread(resume);
+        mDownloadThread = new DownloadThread(resume, segmentMap);
         mDownloadThread.start();
     }
 
+    private HttpURLConnection openConnection(URL url) throws IOException {
+        return mTransport.openConnection(url);
+    }
+
     private static boolean isSuccessCode(int statusCode) {
         return (statusCode / 100) == 2;
     }
@@ -128,6 +198,94 @@ public class HttpURLConnectionClient implements DownloadClient {
         return statusCode == 206;
     }
 
+    private static boolean acceptsRanges(HttpURLConnection client) {
+        return "bytes".equalsIgnoreCase(client.getHeaderField("Accept-Ranges"));
+    }
+
+    /**
+     * @return the validator to send with If-Range, or null if there's none. Weak entity
+     * tags can't be used for byte ranges.
+     */
+    private static String getValidator(String eTag, String lastModified) {
+        if (eTag != null && !eTag.startsWith("W/")) {
+            return eTag;
+        }
+        return lastModified;
+    }
+
+    private static String getValidator(HttpURLConnection client) {
+        return getValidator(client.getHeaderField("ETag"),
+                client.getHeaderField("Last-Modified"));
+    }
+
+    private static long getContentRangeLength(HttpURLConnection client) {
+        // Content-Range: bytes <first>-<last>/<length>
+        String contentRange = client.getHeaderField("Content-Range");
+        if (contentRange != null) {
+            int index = contentRange.lastIndexOf('/');
+            try {
+                return Long.parseLong(contentRange.substring(index + 1).trim());
+            } catch (NumberFormatException e) {
+                Log.e(TAG, "Invalid Content-Range " + contentRange);
+            }
+        }
+        return -1;
+    }
+
+    private static long getThroughput(long bytes, long startMillis) {
+        return bytes * 1000 / Math.max(1, SystemClock.elapsedRealtime() - startMillis);
+    }
+
+    /**
+     * Read once from the stream into the array of the buffer, waiting afterwards if
+     * the rate limit was exceeded
+     *
+     * @param max the maximum number of bytes to read
+     * @return the number of bytes read, or -1 at the end of the stream
+     */
+    private int read(InputStream inputStream, ByteBuffer buffer, long max)
+            throws IOException {
+        if (mRateLimiter != null) {
+            max = Math.min(max, mRateLimiter.getBurstSize());
+        }
+        int count = inputStream.read(buffer.array(), buffer.arrayOffset() + buffer.position(),
+                (int) Math.min(buffer.remaining(), max));
+        if (count > 0) {
+            buffer.position(buffer.position() + count);
+            if (mRateLimiter != null) {
+                mRateLimiter.acquire(count);
+            }
+        }
+        return count;
+    }
+
+    private static long getSegmentSize(long length, int connectionCount) {
+        long segmentCount = (long) connectionCount * SEGMENTS_PER_CONNECTION;
+        long segmentSize = (length + segmentCount - 1) / segmentCount;
+        return Math.max(MIN_SEGMENT_SIZE, Math.min(MAX_SEGMENT_SIZE, segmentSize));
+    }
+
+    private void recordTtfb(URL url, long startMillis) {
+        if (mMirrorStats != null) {
+            mMirrorStats.recordTtfb(url.getHost(), SystemClock.elapsedRealtime() - startMillis);
+        }
+    }
+
+    private void recordTransfer(URL url, long bytes, long startMillis) {
+        // A throttled transfer says nothing about the mirror
+        if (mMirrorStats != null && (mRateLimiter == null ||
+                !mRateLimiter.wasThrottledSince(startMillis))) {
+            mMirrorStats.recordTransfer(url.getHost(), bytes,
+                    SystemClock.elapsedRealtime() - startMillis);
+        }
+    }
+
+    private void recordFailure(URL url) {
+        if (mMirrorStats != null) {
+            mMirrorStats.recordFailure(url.getHost());
+        }
+    }
+
     private class DownloadThread extends Thread {
 
         private long mTotalBytes = 0;
@@ -139,9 +297,136 @@ public class HttpURLConnectionClient implements DownloadClient {
         private long mEta = -1;
 
         private final boolean mResume;
+        private final SegmentMap mSegmentMap;
+        private Sha256Sink mSha256Sink;
+
+        // Validator of the file being downloaded and the server that sent it
+        private String mFileValidator;
+        private String mFileValidatorHost;
+
+        // Mirrors that can be used along with the current url, sorted by priority
+        private final List<String> mDuplicateUrls = new ArrayList<>();
+
+        // Mirrors the segments can be downloaded from, and how many times they failed
+        private final List<URL> mMirrors = new ArrayList<>();
+        private final Map<String, Integer> mMirrorFailures = new HashMap<>();
+
+        // Connections in use, closed by cancel() since blocked reads ignore interrupts
+        private final Set<HttpURLConnection> mConnections = new HashSet<>();
+        private boolean mCancelled;
 
-        private DownloadThread(boolean resume) {
+        private DownloadThread(boolean resume, SegmentMap segmentMap) {
             mResume = resume;
+            mSegmentMap = segmentMap;
+            mFileValidator = mValidator;
+            mFileValidatorHost = mValidatorHost;
+            setTimeouts(mClient);
+            mConnections.add(mClient);
+        }
+
+        private void setTimeouts(HttpURLConnection client) {
+            client.setConnectTimeout(mStallTimeout);
+            client.setReadTimeout(mStallTimeout);
+        }
+
+        private HttpURLConnection openConnection(URL url) throws IOException {
+            return openConnection(mPaths.get(0), url);
+        }
+
+        private HttpURLConnection openConnection(DownloadPath path, URL url)
+                throws IOException {
+            HttpURLConnection client = path.openConnection(url);
+            setTimeouts(client);
+            synchronized (mConnections) {
+                if (mCancelled) {
+                    throw new InterruptedIOException("Download cancelled");
+                }
+                mConnections.add(client);
+            }
+            return client;
+        }
+
+        private void disconnect(HttpURLConnection client) {
+            synchronized (mConnections) {
+                mConnections.remove(client);
+            }
+            client.disconnect();
+        }
+
+        private boolean isCancelled() {
+            synchronized (mConnections) {
+                return mCancelled;
+            }
+        }
+
+        /**
+         * Stop the download without waiting for the reads in progress to return
+         */
+        private void cancel() {
+            List<HttpURLConnection> connections;
+            synchronized (mConnections) {
+                mCancelled = true;
+                connections = new ArrayList<>(mConnections);
+                mConnections.clear();
+            }
+            interrupt();
+            // Closing a TLS connection sends close_notify, which can block: don't do it
+            // on the caller's thread, usually the main one
+            new Thread(() -> {
+                for (HttpURLConnection connection : connections) {
+                    connection.disconnect();
+                }
+            }, TAG).start();
+        }
+
+        /**
+         * Make a range request fail over to the whole file if the file changed since
+         * the validator was received
+         */
+        private void setIfRange(HttpURLConnection client) {
+            if (mFileValidator != null &&
+                    client.getURL().getHost().equalsIgnoreCase(mFileValidatorHost)) {
+                client.setRequestProperty("If-Range", mFileValidator);
+            }
+        }
+
+        private boolean isValidatorChanged() {
+            return mFileValidator != null &&
+                    mClient.getURL().getHost().equalsIgnoreCase(mFileValidatorHost) &&
+                    !mFileValidator.equals(getValidator(mClient));
+        }
+
+        private synchronized void onBytesRead(long count) {
+            mTotalBytesRead += count;
+            calculateSpeed();
+            calculateEta();
+            if (mProgressListener != null) {
+                mProgressListener.update(mTotalBytesRead, mTotalBytes, mSpeed, mEta, false);
+            }
+        }
+
+        private long write(FileChannel channel, ByteBuffer buffer, long position)
+                throws IOException {
+            ByteBuffer data = (ByteBuffer) buffer.duplicate().flip();
+            long end = FileUtils.write(channel, buffer, position);
+            if (mSha256Sink != null) {
+                mSha256Sink.update(position, data);
+            }
+            return end;
+        }
+
+        private void updateDigest(SegmentMap segmentMap) throws IOException {
+            if (mSha256Sink != null) {
+                mSha256Sink.catchUp(segmentMap.getWrittenEnd(mSha256Sink.getPosition()));
+            }
+        }
+
+        private boolean verifyDigest() {
+            if (mSha256Sink != null && !mSha256Sink.matches(mSha256)) {
+                Log.e(TAG, mDestination + " doesn't match the expected SHA-256");
+                return false;
+            }
+            return true;
         }
 
         private void calculateSpeed() {
@@ -154,6 +439,11 @@ public class HttpURLConnectionClient implements DownloadClient {
                 } else {
                     mSpeed = ((mSpeed * 3) + curSpeed) / 4;
                 }
+                // Follow a lower limit right away instead of averaging down to it
+                long rate = mRateLimiter != null ? mRateLimiter.getRate() : 0;
+                if (rate > 0 && mSpeed > rate) {
+                    mSpeed = rate;
+                }
 
                 mLastMillis = millis;
                 mCurSampleBytes = mTotalBytesRead;
@@ -168,10 +458,11 @@ public class HttpURLConnectionClient implements DownloadClient {
 
         private void changeClientUrl(URL newUrl) throws IOException {
             String range = mClient.getRequestProperty("Range");
-            mClient.disconnect();
-            mClient = (HttpURLConnection) newUrl.openConnection();
+            disconnect(mClient);
+            mClient = openConnection(newUrl);
             if (range != null) {
                 mClient.setRequestProperty("Range", range);
+                setIfRange(mClient);
             }
         }
 
@@ -213,10 +504,24 @@ public class HttpURLConnectionClient implements DownloadClient {
                 }
             }
 
-            String newUrl = mClient.getHeaderField("Location");
-            for (;;) {
+            // The url chosen by the server comes first, followed by the duplicate links
+            List<String> candidates = new ArrayList<>();
+            candidates.add(mClient.getHeaderField("Location"));
+            while (duplicates != null && !duplicates.isEmpty()) {
+                String url = duplicates.poll().mUrl;
+                if (!candidates.contains(url)) {
+                    candidates.add(url);
+                }
+            }
+            if (mMirrorStats != null) {
+                candidates = mMirrorStats.rank(candidates);
+            }
+
+            for (int i = 0; ; i++) {
+                String newUrl = candidates.get(i);
+                URL url = null;
                 try {
-                    URL url = new URL(newUrl);
+                    url = new URL(newUrl);
                     if (!url.getProtocol().equals(protocol)) {
                         // If we hadn't handled duplicate links, we wouldn't have
                         // used this url.
@@ -225,17 +530,20 @@ public class HttpURLConnectionClient implements DownloadClient {
                     Log.d(TAG, "Downloading from " + newUrl);
                     changeClientUrl(url);
                     mClient.setConnectTimeout(5000);
+                    long startMillis = SystemClock.elapsedRealtime();
                     mClient.connect();
                     if (!isSuccessCode(mClient.getResponseCode())) {
                         throw new IOException("Server replied with " + mClient.getResponseCode());
                     }
+                    recordTtfb(url, startMillis);
+                    mDuplicateUrls.addAll(candidates.subList(i + 1, candidates.size()));
                     return;
                 } catch (IOException e) {
-                    if (duplicates != null && !duplicates.isEmpty()) {
-                        DuplicateLink link = duplicates.poll();
-                        duplicates.remove(link);
-                        newUrl = link.mUrl;
-                        Log.e(TAG, "Using duplicate link " + link.mUrl, e);
+                    if (url != null && url.getProtocol().equals(protocol)) {
+                        recordFailure(url);
+                    }
+                    if (i + 1 < candidates.size()) {
+                        Log.e(TAG, "Using duplicate link " + candidates.get(i + 1), e);
                     } else {
                         throw e;
                     }
@@ -243,24 +551,379 @@ public class HttpURLConnectionClient implements DownloadClient {
             }
         }
 
+        /**
+         * Fill mMirrors with the current url followed by the duplicate links
+         */
+        private void findMirrors() {
+            List<String> added = new ArrayList<>();
+            mMirrors.add(mClient.getURL());
+            added.add(mClient.getURL().toString());
+            String protocol = mClient.getURL().getProtocol();
+            for (String duplicateUrl : mDuplicateUrls) {
+                try {
+                    URL url = new URL(duplicateUrl);
+                    if (url.getProtocol().equals(protocol) && !added.contains(duplicateUrl)) {
+                        mMirrors.add(url);
+                        added.add(duplicateUrl);
+                    }
+                } catch (MalformedURLException e) {
+                    Log.e(TAG, "Ignoring invalid duplicate link " + duplicateUrl);
+                }
+            }
+        }
+
+        private List<URL> getSegmentUrls() {
+            if (!mStripeDuplicateLinks || mSegmentCount <= 1) {
+                return mMirrors.subList(0, 1);
+            }
+            return mMirrors.subList(0, Math.min(mMirrors.size(), MAX_STRIPED_MIRRORS));
+        }
+
+        /**
+         * Count a failure of the given mirror and pick the one to use instead. Other
+         * mirrors come first, then the same one if it didn't fail too many times.
+         *
+         * @return the mirror to use, or null if all of them failed too many times
+         */
+        private URL failOver(URL url) {
+            synchronized (mMirrorFailures) {
+                String key = url.toString();
+                Integer failures = mMirrorFailures.get(key);
+                mMirrorFailures.put(key, failures != null ? failures + 1 : 1);
+                int index = 0;
+                while (index < mMirrors.size() &&
+                        !mMirrors.get(index).toString().equals(key)) {
+                    index++;
+                }
+                for (int i = 1; i <= mMirrors.size(); i++) {
+                    URL mirror = mMirrors.get((index + i) % mMirrors.size());
+                    failures = mMirrorFailures.get(mirror.toString());
+                    if (failures == null || failures < MAX_MIRROR_FAILURES) {
+                        return mirror;
+                    }
+                }
+                return null;
+            }
+        }
+
+        /**
+         * Whether a connection of the given path should take another segment. Near the
+         * end, a path slower than the others leaves the rest to them if they'd be done
+         * with it before this connection is done with one segment.
+         */
+        private boolean isWorthSegment(DownloadPath path, long segmentSize) {
+            long throughput = path.getConnectionThroughput();
+            long othersThroughput = 0;
+            boolean fastest = true;
+            for (DownloadPath other : mPaths) {
+                if (other != path) {
+                    othersThroughput += other.getThroughput();
+                    fastest &= other.getConnectionThroughput() <= throughput;
+                }
+            }
+            if (fastest || throughput <= 0 || othersThroughput <= 0) {
+                return true;
+            }
+            long remaining;
+            synchronized (this) {
+                remaining = mTotalBytes - mTotalBytesRead;
+            }
+            return segmentSize * othersThroughput <= remaining * throughput;
+        }
+
+        private void downloadSegments(SegmentMap segmentMap) throws IOException {
+            // Every segment is requested on its own, the body of this response isn't needed
+            findMirrors();
+            List<URL> urls = getSegmentUrls();
+            disconnect(mClient);
+
+            mTotalBytes = segmentMap.getLength();
+            mTotalBytesRead = segmentMap.getDownloadedBytes();
+            Log.d(TAG, "Downloading " + segmentMap.getPendingCount() + " segments of " +
+                    segmentMap.getSegmentSize() + " bytes");
+
+            // Each mirror gets at least one connection. Since every connection takes the next
+            // free segment as soon as it's done, faster mirrors end up serving more segments.
+            if (urls.size() > 1) {
+                Log.d(TAG, "Striping segments across " + urls.size() + " mirrors");
+            }
+            if (mPaths.size() > 1) {
+                Log.d(TAG, "Sharing segments between " + mPaths.size() + " paths");
+            }
+            if (mSecondaryBudget != null) {
+                segmentMap.setBudget(mSecondaryBudget);
+            }
+            List<SegmentThread> threads = new ArrayList<>();
+            try (RandomAccessFile file = new RandomAccessFile(mDestination, "rw")) {
+                if (!FileUtils.preallocate(file, mDestination, segmentMap.getLength())) {
+                    Log.e(TAG, "Not enough space to download " + mDestination);
+                    mCallback.onInsufficientSpace(mDestination, segmentMap.getLength());
+                    return;
+                }
+                if (mSha256 != null) {
+                    mSha256Sink = new Sha256Sink(file.getChannel());
+                    updateDigest(segmentMap);
+                }
+                mWrittenSegments = segmentMap;
+                int threadCount = Math.min(Math.max(mSegmentCount, urls.size()),
+                        segmentMap.getPendingCount());
+                for (DownloadPath path : mPaths) {
+                    if (path.isExhausted()) {
+                        Log.d(TAG, "No bytes left for the " + path.getName() + " path");
+                        continue;
+                    }
+                    for (int i = 0; i < threadCount; i++) {
+                        URL url = urls.get(i % urls.size());
+                        SegmentThread thread = new SegmentThread(path, url, file.getChannel(),
+                                segmentMap);
+                        threads.add(thread);
+                        thread.start();
+                    }
+                }
+                try {
+                    for (SegmentThread thread : threads) {
+                        thread.join();
+                    }
+                } catch (InterruptedException e) {
+                    for (SegmentThread thread : threads) {
+                        thread.interrupt();
+                    }
+                    // Their connections are closed, they stop as soon as they see it
+                    for (SegmentThread thread : threads) {
+                        try {
+                            thread.join();
+                        } catch (InterruptedException ignored) {
+                        }
+                    }
+                    interrupt();
+                }
+                if (!isInterrupted() && segmentMap.isComplete()) {
+                    updateDigest(segmentMap);
+                }
+            }
+
+            if (mProgressListener != null) {
+                mProgressListener.update(mTotalBytesRead, mTotalBytes, mSpeed, mEta, true);
+            }
+
+            if (isInterrupted()) {
+                mCallback.onFailure(true);
+            } else if (!segmentMap.isComplete()) {
+                Log.e(TAG, "Could not download all the segments");
+                mCallback.onFailure(false);
+            } else if (!verifyDigest()) {
+                segmentMap.delete();
+                mCallback.onVerificationFailed(mDestination);
+            } else {
+                segmentMap.delete();
+                mCallback.onSuccess(mDestination);
+            }
+        }
+
+        private class SegmentThread extends Thread {
+
+            private final DownloadPath mPath;
+            private URL mUrl;
+            private final FileChannel mChannel;
+            private final SegmentMap mSegmentMap;
+
+            private SegmentThread(DownloadPath path, URL url, FileChannel channel,
+                    SegmentMap segmentMap) {
+                mPath = path;
+                mUrl = url;
+                mChannel = channel;
+                mSegmentMap = segmentMap;
+            }
+
+            private long downloadSegment(int segment) throws IOException {
+                long position = mSegmentMap.getPosition(segment);
+                long end = mSegmentMap.getEnd(segment);
+                HttpURLConnection client = openConnection(mPath, mUrl);
+                try {
+                    client.setRequestProperty("Range", "bytes=" + position + "-" + (end - 1));
+                    setIfRange(client);
+                    long startMillis = SystemClock.elapsedRealtime();
+                    int responseCode = client.getResponseCode();
+                    if (!isPartialContentCode(responseCode)) {
+                        throw new IOException("Server replied with " + responseCode);
+                    }
+                    if (getContentRangeLength(client) != mSegmentMap.getLength()) {
+                        throw new IOException(mUrl.getHost() + " serves a different file");
+                    }
+                    recordTtfb(mUrl, startMillis);
+                    long startPosition = position;
+                    startMillis = SystemClock.elapsedRealtime();
+                    StallDetector stallDetector = new StallDetector(mStallTimeout,
+                            mMinThroughput, mRateLimiter);
+                    ByteBuffer buffer = BufferPool.acquire(BufferPool.MIN_BUFFER_SIZE);
+                    try (InputStream inputStream = client.getInputStream()) {
+                        long allowed;
+                        while (!isInterrupted() && position + buffer.position() < end &&
+                                (allowed = mPath.reserve(Math.min(buffer.remaining(),
+                                        end - position - buffer.position()))) > 0) {
+                            int count = read(inputStream, buffer, allowed);
+                            mPath.refund(allowed - Math.max(0, count));
+                            if (count <= 0) {
+                                break;
+                            }
+                            onBytesRead(count);
+                            stallDetector.onBytesRead(count);
+                            if (!buffer.hasRemaining()) {
+                                position = write(mChannel, buffer, position);
+                                mSegmentMap.setPosition(segment, position);
+                                buffer = BufferPool.resize(buffer, getThroughput(
+                                        position - startPosition, startMillis));
+                            }
+                        }
+                    } finally {
+                        // Keep what was read before an error
+                        try {
+                            position = write(mChannel, buffer, position);
+                        } finally {
+                            BufferPool.release(buffer);
+                        }
+                    }
+                    recordTransfer(mUrl, position - startPosition, startMillis);
+                    mPath.recordTransfer(position - startPosition,
+                            SystemClock.elapsedRealtime() - startMillis);
+                } catch (IOException e) {
+                    mSegmentMap.release(segment, position);
+                    if (!isInterrupted()) {
+                        recordFailure(mUrl);
+                    }
+                    throw e;
+                } finally {
+                    disconnect(client);
+                }
+                return position;
+            }
+
+            @Override
+            public void run() {
+                mPath.addConnection();
+                try {
+                    downloadPendingSegments();
+                } finally {
+                    mPath.removeConnection();
+                }
+            }
+
+            private void downloadPendingSegments() {
+                int segment;
+                while (!isInterrupted() &&
+                        isWorthSegment(mPath, mSegmentMap.getSegmentSize()) &&
+                        (segment = mSegmentMap.acquire()) >= 0) {
+                    try {
+                        long position = downloadSegment(segment);
+                        if (position < mSegmentMap.getEnd(segment)) {
+                            mSegmentMap.release(segment, position);
+                            if (mPath.isExhausted()) {
+                                Log.d(TAG, "No bytes left for the " + mPath.getName() +
+                                        " path, leaving segment " + segment);
+                            } else if (!isInterrupted()) {
+                                Log.e(TAG, "Segment " + segment + " ended early");
+                            }
+                            return;
+                        }
+                        // Make sure the data is on disk before saving it as done
+                        mChannel.force(false);
+                        mSegmentMap.setDone(segment);
+                        updateDigest(mSegmentMap);
+                    } catch (IOException e) {
+                        if (isCancelled()) {
+                            return;
+                        }
+                        Log.e(TAG, "Error downloading segment " + segment + " from " +
+                                mUrl.getHost(), e);
+                        if (StallDetector.isStall(e)) {
+                            mCallback.onStalled(mUrl.toString());
+                        }
+                        if (mPath != mPaths.get(0)) {
+                            // The path is only a help, the others take over its segments
+                            Log.d(TAG, "Dropping a connection of the " + mPath.getName() +
+                                    " path");
+                            return;
+                        }
+                        // What was written is kept, the rest of the segment goes elsewhere
+                        URL url = failOver(mUrl);
+                        if (url == null) {
+                            return;
+                        }
+                        Log.d(TAG, "Moving segment " + segment + " to " + url.getHost());
+                        mUrl = url;
+                    }
+                }
+            }
+        }
+
         @Override
         public void run() {
             try {
                 mClient.setInstanceFollowRedirects(!mUseDuplicateLinks);
+                if (mClient.getRequestProperty("Range") != null) {
+                    setIfRange(mClient);
+                }
+                long startMillis = SystemClock.elapsedRealtime();
                 mClient.connect();
                 int responseCode = mClient.getResponseCode();
 
                 if (mUseDuplicateLinks && isRedirectCode(responseCode)) {
                     handleDuplicateLinks();
                     responseCode = mClient.getResponseCode();
+                } else if (isSuccessCode(responseCode)) {
+                    recordTtfb(mClient.getURL(), startMillis);
                 }
 
                 mCallback.onResponse(responseCode, mClient.getURL().toString(), new Headers());
 
-                if (mResume && isPartialContentCode(responseCode)) {
+                // Rather than appending the new file to the old one, start again
+                boolean resume = mResume;
+                SegmentMap segmentMap = mSegmentMap;
+                if (resume && responseCode == HttpURLConnection.HTTP_OK &&
+                        mClient.getRequestProperty("If-Range") != null) {
+                    Log.d(TAG, "The file changed on the server, downloading it again");
+                    resume = false;
+                } else if (segmentMap != null && isSuccessCode(responseCode) &&
+                        (isValidatorChanged() ||
+                        mClient.getContentLengthLong() != segmentMap.getLength())) {
+                    Log.d(TAG, "The file changed on the server, downloading it again");
+                    segmentMap.delete();
+                    segmentMap = null;
+                    resume = false;
+                }
+                if (isSuccessCode(responseCode)) {
+                    mFileValidator = getValidator(mClient);
+                    mFileValidatorHost = mClient.getURL().getHost();
+                }
+
+                if (segmentMap != null) {
+                    if (!isSuccessCode(responseCode) || !acceptsRanges(mClient)) {
+                        Log.e(TAG, "The server can't resume the segmented download");
+                        mCallback.onFailure(isInterrupted());
+                        return;
+                    }
+                    downloadSegments(segmentMap);
+                    return;
+                }
+
+                // Downloads are tracked by segments even with a single connection, so that
+                // the file can be preallocated without losing track of what was written
+                if (!resume && isSuccessCode(responseCode)) {
+                    long length = mClient.getContentLengthLong();
+                    if (!acceptsRanges(mClient)) {
+                        Log.d(TAG, "The server doesn't accept ranges, using one connection");
+                    } else if (length >= MIN_SEGMENT_SIZE * 2) {
+                        downloadSegments(SegmentMap.create(mDestination, length,
+                                getSegmentSize(length,
+                                        Math.max(1, mSegmentCount) * mPaths.size())));
+                        return;
+                    }
+                }
+
+                if (resume && isPartialContentCode(responseCode)) {
                     mTotalBytesRead = mDestination.length();
                     Log.d(TAG, "The server fulfilled the partial content request");
-                } else if (mResume || !isSuccessCode(responseCode)) {
+                } else if (resume || !isSuccessCode(responseCode)) {
                     Log.e(TAG, "The server replied with code " + responseCode);
                     mCallback.onFailure(isInterrupted());
                     return;
@@ -268,38 +931,82 @@ public class HttpURLConnectionClient implements DownloadClient {
 
                 try (
                         InputStream inputStream = mClient.getInputStream();
-                        OutputStream outputStream = new FileOutputStream(mDestination, mResume)
+                        RandomAccessFile file = new RandomAccessFile(mDestination, "rw")
                 ) {
-                    mTotalBytes = mClient.getContentLength() + mTotalBytesRead;
-                    byte[] b = new byte[8192];
-                    int count;
-                    while (!isInterrupted() && (count = inputStream.read(b)) > 0) {
-                        outputStream.write(b, 0, count);
-                        mTotalBytesRead += count;
-                        calculateSpeed();
-                        calculateEta();
-                        if (mProgressListener != null) {
-                            mProgressListener.update(mTotalBytesRead, mTotalBytes, mSpeed, mEta,
-                                    false);
+                    mTotalBytes = mClient.getContentLengthLong() + mTotalBytesRead;
+                    long startBytes = mTotalBytesRead;
+                    long position = mTotalBytesRead;
+                    file.setLength(position);
+                    if (mDestination.getUsableSpace() < mTotalBytes - position) {
+                        Log.e(TAG, "Not enough space to download " + mDestination);
+                        mCallback.onInsufficientSpace(mDestination, mTotalBytes);
+                        return;
+                    }
+                    FileChannel channel = file.getChannel();
+                    if (mSha256 != null) {
+                        // Digest what was downloaded before resuming
+                        mSha256Sink = new Sha256Sink(channel);
+                        mSha256Sink.catchUp(position);
+                    }
+                    mWrittenEnd = position;
+                    startMillis = SystemClock.elapsedRealtime();
+                    StallDetector stallDetector = new StallDetector(mStallTimeout,
+                            mMinThroughput, mRateLimiter);
+                    ByteBuffer buffer = BufferPool.acquire(BufferPool.MIN_BUFFER_SIZE);
+                    try {
+                        int count;
+                        while (!isInterrupted() &&
+                                (count = read(inputStream, buffer, buffer.remaining())) > 0) {
+                            onBytesRead(count);
+                            stallDetector.onBytesRead(count);
+                            if (!buffer.hasRemaining()) {
+                                position = write(channel, buffer, position);
+                                mWrittenEnd = position;
+                                buffer = BufferPool.resize(buffer, getThroughput(
+                                        mTotalBytesRead - startBytes, startMillis));
+                            }
+                        }
+                    } catch (IOException e) {
+                        if (!isInterrupted()) {
+                            recordFailure(mClient.getURL());
+                            if (StallDetector.isStall(e)) {
+                                mCallback.onStalled(mClient.getURL().toString());
+                            }
                         }
+                        throw e;
+                    } finally {
+                        try {
+                            mWrittenEnd = write(channel, buffer, position);
+                        } finally {
+                            BufferPool.release(buffer);
+                        }
+                    }
+                    if (!isInterrupted()) {
+                        recordTransfer(mClient.getURL(), mTotalBytesRead - startBytes,
+                                startMillis);
                     }
                     if (mProgressListener != null) {
                         mProgressListener.update(mTotalBytesRead, mTotalBytes, mSpeed, mEta, true);
                     }
 
-                    outputStream.flush();
-
                     if (isInterrupted()) {
                         mCallback.onFailure(true);
+                    } else if (!verifyDigest()) {
+                        mCallback.onVerificationFailed(mDestination);
                     } else {
                         mCallback.onSuccess(mDestination);
                     }
                 }
             } catch (IOException e) {
-                Log.e(TAG, "Error downloading file", e);
+                if (!isCancelled()) {
+                    Log.e(TAG, "Error downloading file", e);
+                }
                 mCallback.onFailure(isInterrupted());
             } finally {
-                mClient.disconnect();
+                disconnect(mClient);
+                if (mMirrorStats != null) {
+                    mMirrorStats.flush();
+                }
             }
         }
     }
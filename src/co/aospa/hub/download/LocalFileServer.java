@@ -0,0 +1,257 @@
+/*
+ * Copyright (C) 2026 Paranoid Android
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.aospa.hub.download;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Serves a file being downloaded over HTTP on the loopback interface, so that it can
+ * be read by another process before the download completes. Readers asking for bytes
+ * not written yet wait for them.
+ */
+public class LocalFileServer {
+
+    private static final String TAG = "LocalFileServer";
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final long POLL_INTERVAL_MS = 100;
+    // How long a reader waits for the download to make progress before giving up
+    private static final long WAIT_TIMEOUT_MS = 60 * 1000;
+
+    public interface Source {
+        /**
+         * @return the end of the bytes written without gaps from position
+         */
+        long getWrittenEnd(long position);
+    }
+
+    private final File mFile;
+    private final long mLength;
+    private final Source mSource;
+    // Keeps other apps from guessing the url
+    private final String mPath = "/" + UUID.randomUUID();
+    private final List<Socket> mClients = new ArrayList<>();
+    private ServerSocket mServerSocket;
+
+    /**
+     * @param length the length the file will have once downloaded
+     */
+    public LocalFileServer(File file, long length, Source source) {
+        mFile = file;
+        mLength = length;
+        mSource = source;
+    }
+
+    /**
+     * @return the url of the file
+     */
+    public synchronized String start() throws IOException {
+        if (mServerSocket == null) {
+            mServerSocket = new ServerSocket(0, 0, InetAddress.getLoopbackAddress());
+            ServerSocket serverSocket = mServerSocket;
+            new Thread(() -> acceptClients(serverSocket), TAG).start();
+        }
+        return "http://127.0.0.1:" + mServerSocket.getLocalPort() + mPath;
+    }
+
+    public synchronized void stop() {
+        if (mServerSocket == null) {
+            return;
+        }
+        closeQuietly(mServerSocket);
+        mServerSocket = null;
+        for (Socket client : mClients) {
+            closeQuietly(client);
+        }
+        mClients.clear();
+    }
+
+    private void acceptClients(ServerSocket serverSocket) {
+        while (true) {
+            Socket client;
+            try {
+                client = serverSocket.accept();
+            } catch (IOException e) {
+                // Stopped
+                return;
+            }
+            synchronized (this) {
+                if (mServerSocket != serverSocket) {
+                    closeQuietly(client);
+                    return;
+                }
+                mClients.add(client);
+            }
+            new Thread(() -> {
+                try {
+                    serve(client);
+                } catch (IOException e) {
+                    Log.d(TAG, "Stopped serving " + mFile.getName() + ": " + e.getMessage());
+                } finally {
+                    closeQuietly(client);
+                    synchronized (this) {
+                        mClients.remove(client);
+                    }
+                }
+            }, TAG).start();
+        }
+    }
+
+    private void serve(Socket client) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+                client.getInputStream(), StandardCharsets.ISO_8859_1));
+        String requestLine = reader.readLine();
+        if (requestLine == null) {
+            return;
+        }
+        String range = null;
+        for (String line; (line = reader.readLine()) != null && !line.isEmpty();) {
+            int index = line.indexOf(':');
+            if (index > 0 && line.substring(0, index).trim().equalsIgnoreCase("Range")) {
+                range = line.substring(index + 1).trim();
+            }
+        }
+
+        OutputStream out = client.getOutputStream();
+        String[] request = requestLine.split(" ");
+        boolean head = request[0].equals("HEAD");
+        if (request.length < 2 || (!head && !request[0].equals("GET"))) {
+            sendStatus(out, "405 Method Not Allowed");
+            return;
+        }
+        if (!request[1].equals(mPath)) {
+            sendStatus(out, "404 Not Found");
+            return;
+        }
+
+        long first = 0;
+        long last = mLength - 1;
+        if (range != null) {
+            // Range: bytes=<first>-[<last>] or bytes=-<suffix length>
+            try {
+                String value = range.substring(range.indexOf('=') + 1);
+                int dash = value.indexOf('-');
+                String start = value.substring(0, dash).trim();
+                String end = value.substring(dash + 1).trim();
+                if (start.isEmpty()) {
+                    long suffixLength = Long.parseLong(end);
+                    first = suffixLength > 0 ? Math.max(0, mLength - suffixLength) : mLength;
+                } else {
+                    first = Long.parseLong(start);
+                    if (!end.isEmpty()) {
+                        last = Math.min(last, Long.parseLong(end));
+                    }
+                }
+            } catch (RuntimeException e) {
+                sendStatus(out, "400 Bad Request");
+                return;
+            }
+            if (first > last) {
+                sendStatus(out, "416 Range Not Satisfiable");
+                return;
+            }
+        }
+
+        StringBuilder headers = new StringBuilder();
+        headers.append(range != null ? "HTTP/1.1 206 Partial Content\r\n" :
+                "HTTP/1.1 200 OK\r\n");
+        headers.append("Content-Length: ").append(last - first + 1).append("\r\n");
+        if (range != null) {
+            headers.append("Content-Range: bytes ").append(first).append('-').append(last)
+                    .append('/').append(mLength).append("\r\n");
+        }
+        headers.append("Accept-Ranges: bytes\r\n");
+        headers.append("Connection: close\r\n\r\n");
+        out.write(headers.toString().getBytes(StandardCharsets.ISO_8859_1));
+        if (!head) {
+            sendFile(out, first, last + 1);
+        }
+        out.flush();
+    }
+
+    private void sendFile(OutputStream out, long position, long end) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        long waitStartMillis = -1;
+        RandomAccessFile file = null;
+        try {
+            while (position < end) {
+                long available = Math.min(end, mSource.getWrittenEnd(position));
+                if (available <= position) {
+                    long now = SystemClock.elapsedRealtime();
+                    if (waitStartMillis == -1) {
+                        waitStartMillis = now;
+                    } else if (now - waitStartMillis > WAIT_TIMEOUT_MS) {
+                        throw new IOException("No progress at " + position);
+                    }
+                    try {
+                        Thread.sleep(POLL_INTERVAL_MS);
+                    } catch (InterruptedException e) {
+                        throw new IOException("Interrupted");
+                    }
+                    continue;
+                }
+                waitStartMillis = -1;
+                if (file == null) {
+                    // The download may create the file after the reader connected
+                    file = new RandomAccessFile(mFile, "r");
+                }
+                file.seek(position);
+                while (position < available) {
+                    int count = file.read(buffer, 0,
+                            (int) Math.min(buffer.length, available - position));
+                    if (count < 0) {
+                        throw new IOException("The file ends at " + position);
+                    }
+                    out.write(buffer, 0, count);
+                    position += count;
+                }
+            }
+        } finally {
+            if (file != null) {
+                closeQuietly(file);
+            }
+        }
+    }
+
+    private static void sendStatus(OutputStream out, String status) throws IOException {
+        out.write(("HTTP/1.1 " + status + "\r\nContent-Length: 0\r\nConnection: close\r\n\r\n")
+                .getBytes(StandardCharsets.ISO_8859_1));
+        out.flush();
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
@@ -0,0 +1,241 @@
+/*
+ * Copyright (C) 2026 Paranoid Android
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.aospa.hub.download;
+
+import android.util.Log;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Keeps the history of the mirrors used for downloads, so that the next download
+ * can start from the mirrors that performed best rather than from the priority
+ * advertised by the server.
+ */
+public class MirrorStats {
+
+    private static final String TAG = "MirrorStats";
+
+    // Weight of a new sample in the moving averages
+    private static final double SAMPLE_WEIGHT = 0.3;
+    private static final long FAILURES_HALF_LIFE_MS = 3 * 24 * 60 * 60 * 1000L;
+    private static final long MAX_AGE_MS = 30 * 24 * 60 * 60 * 1000L;
+
+    // The cost of a mirror is the time it would take to download this many bytes
+    private static final long REFERENCE_SIZE = 16 * 1024 * 1024;
+    private static final double UNKNOWN_THROUGHPUT_COST = 60;
+
+    // Transfers smaller than this don't give a meaningful throughput
+    private static final long MIN_SAMPLE_BYTES = 256 * 1024;
+
+    public interface Storage {
+        List<Entry> getMirrorStats();
+
+        void saveMirrorStats(List<Entry> entries);
+    }
+
+    public static class Entry {
+        private final String mHost;
+        private long mTtfb;
+        private long mThroughput;
+        private double mFailures;
+        private long mTimestamp;
+
+        public Entry(String host, long ttfb, long throughput, double failures,
+                long timestamp) {
+            mHost = host;
+            mTtfb = ttfb;
+            mThroughput = throughput;
+            mFailures = failures;
+            mTimestamp = timestamp;
+        }
+
+        public String getHost() {
+            return mHost;
+        }
+
+        /**
+         * @return the average time to first byte, in milliseconds
+         */
+        public long getTtfb() {
+            return mTtfb;
+        }
+
+        /**
+         * @return the average throughput, in bytes per second
+         */
+        public long getThroughput() {
+            return mThroughput;
+        }
+
+        /**
+         * @return the number of failures, decayed up to getTimestamp()
+         */
+        public double getFailures() {
+            return mFailures;
+        }
+
+        public long getTimestamp() {
+            return mTimestamp;
+        }
+
+        private double getDecayedFailures(long now) {
+            return mFailures * Math.pow(0.5,
+                    (double) (now - mTimestamp) / FAILURES_HALF_LIFE_MS);
+        }
+
+        private void decay(long now) {
+            mFailures = getDecayedFailures(now);
+            mTimestamp = now;
+        }
+
+        private double getCost(long now) {
+            double seconds = mTtfb / 1000.;
+            seconds += mThroughput > 0 ?
+                    (double) REFERENCE_SIZE / mThroughput : UNKNOWN_THROUGHPUT_COST;
+            return seconds * (1 + getDecayedFailures(now));
+        }
+    }
+
+    private final Storage mStorage;
+    private Map<String, Entry> mEntries;
+    // Hosts whose entry changed since the last flush()
+    private final Set<String> mChangedHosts = new HashSet<>();
+
+    public MirrorStats(Storage storage) {
+        mStorage = storage;
+    }
+
+    private Map<String, Entry> getEntries() {
+        if (mEntries == null) {
+            mEntries = new HashMap<>();
+            for (Entry entry : mStorage.getMirrorStats()) {
+                mEntries.put(entry.getHost(), entry);
+            }
+        }
+        return mEntries;
+    }
+
+    private Entry getEntry(String host, long now) {
+        Entry entry = getEntries().get(host);
+        if (entry == null) {
+            entry = new Entry(host, 0, 0, 0, now);
+            getEntries().put(host, entry);
+        }
+        return entry;
+    }
+
+    private static long average(long average, long sample) {
+        if (average <= 0) {
+            return sample;
+        }
+        return Math.round(average * (1 - SAMPLE_WEIGHT) + sample * SAMPLE_WEIGHT);
+    }
+
+    private static String getHost(String url) {
+        try {
+            return new URL(url).getHost();
+        } catch (MalformedURLException e) {
+            return null;
+        }
+    }
+
+    public synchronized void recordTtfb(String host, long millis) {
+        long now = System.currentTimeMillis();
+        Entry entry = getEntry(host, now);
+        entry.decay(now);
+        entry.mTtfb = average(entry.mTtfb, millis);
+        mChangedHosts.add(host);
+    }
+
+    public synchronized void recordTransfer(String host, long bytes, long millis) {
+        if (bytes < MIN_SAMPLE_BYTES) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        Entry entry = getEntry(host, now);
+        entry.decay(now);
+        entry.mThroughput = average(entry.mThroughput, bytes * 1000 / Math.max(millis, 1));
+        mChangedHosts.add(host);
+    }
+
+    public synchronized void recordFailure(String host) {
+        long now = System.currentTimeMillis();
+        Entry entry = getEntry(host, now);
+        entry.decay(now);
+        entry.mFailures += 1;
+        mChangedHosts.add(host);
+    }
+
+    /**
+     * Save the entries changed since the last call, all at once rather than on every
+     * sample of every connection
+     */
+    public synchronized void flush() {
+        if (mChangedHosts.isEmpty()) {
+            return;
+        }
+        List<Entry> entries = new ArrayList<>();
+        for (String host : mChangedHosts) {
+            entries.add(getEntries().get(host));
+        }
+        mChangedHosts.clear();
+        mStorage.saveMirrorStats(entries);
+    }
+
+    /**
+     * Sort the given urls, fastest and most reliable mirrors first. Mirrors we know
+     * nothing about are given the median cost of the known ones, urls with the same
+     * cost keep their original order.
+     *
+     * @param urls the urls, sorted by the priority advertised by the server
+     * @return a new sorted list
+     */
+    public synchronized List<String> rank(List<String> urls) {
+        long now = System.currentTimeMillis();
+        Map<String, Double> costs = new HashMap<>();
+        List<Double> knownCosts = new ArrayList<>();
+        for (String url : urls) {
+            Entry entry = getEntries().get(getHost(url));
+            if (entry != null && now - entry.getTimestamp() < MAX_AGE_MS) {
+                double cost = entry.getCost(now);
+                costs.put(url, cost);
+                knownCosts.add(cost);
+            }
+        }
+        double unknownCost = 0;
+        if (!knownCosts.isEmpty()) {
+            Collections.sort(knownCosts);
+            unknownCost = knownCosts.get(knownCosts.size() / 2);
+        }
+
+        List<String> ranked = new ArrayList<>(urls);
+        final double defaultCost = unknownCost;
+        ranked.sort((u1, u2) -> Double.compare(costs.getOrDefault(u1, defaultCost),
+                costs.getOrDefault(u2, defaultCost)));
+        if (!ranked.equals(urls)) {
+            Log.d(TAG, "Mirrors ranked as " + ranked);
+        }
+        return ranked;
+    }
+}
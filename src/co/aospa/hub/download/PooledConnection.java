@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2026 Paranoid Android
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.aospa.hub.download;
+
+import android.net.Network;
+import android.os.Build;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+
+import javax.net.SocketFactory;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLPeerUnverifiedException;
+import javax.net.ssl.SSLSocket;
+
+/**
+ * A socket to an HTTP server that can be used for several requests, one at a time.
+ */
+class PooledConnection {
+
+    private static final String TAG = "PooledConnection";
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final String mKey;
+    private final Socket mSocket;
+    private final String mProtocol;
+    private final InputStream mInputStream;
+    private final OutputStream mOutputStream;
+
+    private long mIdleSince;
+    private int mUseCount;
+
+    private PooledConnection(String key, Socket socket, String protocol) throws IOException {
+        mKey = key;
+        mSocket = socket;
+        mProtocol = protocol;
+        mInputStream = new BufferedInputStream(socket.getInputStream(), BUFFER_SIZE);
+        mOutputStream = new BufferedOutputStream(socket.getOutputStream());
+    }
+
+    /**
+     * Whether ALPN can be used to ask TLS servers for HTTP/2
+     */
+    static boolean canNegotiateHttp2() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q;
+    }
+
+    /**
+     * @param network the network to resolve the host and connect on, null for the default
+     * @param socketFactory the factory of the unconnected sockets
+     * @param offerHttp2 whether to offer HTTP/2 to TLS servers, see canNegotiateHttp2()
+     */
+    static PooledConnection connect(String key, URL url, Network network,
+            SocketFactory socketFactory, int connectTimeout, int readTimeout,
+            boolean offerHttp2) throws IOException {
+        String host = url.getHost();
+        int port = url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+        Socket socket = AddressRacer.connect(host, port, network, socketFactory,
+                connectTimeout);
+        String protocol = null;
+        try {
+            socket.setSoTimeout(readTimeout);
+            if ("https".equals(url.getProtocol())) {
+                SSLSocket sslSocket = (SSLSocket) TlsSessionCache.getSocketFactory()
+                        .createSocket(socket, host, port, true);
+                socket = sslSocket;
+                if (offerHttp2) {
+                    SSLParameters parameters = sslSocket.getSSLParameters();
+                    parameters.setApplicationProtocols(
+                            new String[]{Http2Connection.PROTOCOL, "http/1.1"});
+                    sslSocket.setSSLParameters(parameters);
+                }
+                long handshakeMillis = System.currentTimeMillis();
+                sslSocket.startHandshake();
+                TlsSessionCache.onHandshake(sslSocket.getSession(), handshakeMillis);
+                if (!HttpsURLConnection.getDefaultHostnameVerifier().verify(host,
+                        sslSocket.getSession())) {
+                    throw new SSLPeerUnverifiedException("Hostname " + host + " not verified");
+                }
+                if (offerHttp2) {
+                    protocol = sslSocket.getApplicationProtocol();
+                }
+            }
+            return new PooledConnection(key, socket, protocol);
+        } catch (IOException e) {
+            closeQuietly(socket);
+            throw e;
+        }
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            Log.e(TAG, "Could not close socket", e);
+        }
+    }
+
+    String getKey() {
+        return mKey;
+    }
+
+    /**
+     * @return the protocol agreed with ALPN, null if none
+     */
+    String getProtocol() {
+        return mProtocol != null && !mProtocol.isEmpty() ? mProtocol : null;
+    }
+
+    InputStream getInputStream() {
+        return mInputStream;
+    }
+
+    OutputStream getOutputStream() {
+        return mOutputStream;
+    }
+
+    /**
+     * @return the number of requests sent before the current one
+     */
+    int getUseCount() {
+        return mUseCount;
+    }
+
+    long getIdleSince() {
+        return mIdleSince;
+    }
+
+    void onRequest(int readTimeout) throws IOException {
+        mUseCount++;
+        setReadTimeout(readTimeout);
+    }
+
+    void setReadTimeout(int readTimeout) throws IOException {
+        mSocket.setSoTimeout(readTimeout);
+    }
+
+    void onIdle(long now) {
+        mIdleSince = now;
+    }
+
+    /**
+     * Check whether the server closed the connection while it was idle
+     */
+    boolean isHealthy() {
+        if (mSocket.isClosed() || mSocket.isInputShutdown() || mSocket.isOutputShutdown()) {
+            return false;
+        }
+        try {
+            int readTimeout = mSocket.getSoTimeout();
+            try {
+                mSocket.setSoTimeout(1);
+                // Nothing is expected before the next request, so both the end of the
+                // stream and unsolicited data make the connection unusable
+                mInputStream.read();
+                return false;
+            } finally {
+                mSocket.setSoTimeout(readTimeout);
+            }
+        } catch (SocketTimeoutException e) {
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    void close() {
+        closeQuietly(mSocket);
+    }
+}
@@ -0,0 +1,687 @@
+/*
+ * Copyright (C) 2026 Paranoid Android
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.aospa.hub.download;
+
+import android.net.Network;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.ProtocolException;
+import java.net.SocketException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * HTTP/1.1 requests sent through a ConnectionPool, or HTTP/2 streams if the pool
+ * multiplexes them. The connection goes back to the pool as soon as the whole response
+ * body has been read, closing the body early or calling disconnect() before that
+ * closes it, or only cancels the stream with HTTP/2. disconnect() can be called from
+ * another thread to abort a request blocked on the network.
+ */
+class PooledHttpURLConnection extends HttpURLConnection {
+
+    private static final int MAX_REDIRECTS = 20;
+    private static final int MAX_LINE_LENGTH = 8192;
+    // Bodies of redirects up to this size are read to keep the connection
+    private static final int MAX_DRAIN_SIZE = 64 * 1024;
+    // Headers that only make sense for HTTP/1.1, see RFC 7540 8.1.2.2
+    private static final List<String> CONNECTION_HEADERS = Arrays.asList("connection",
+            "host", "keep-alive", "proxy-connection", "te", "transfer-encoding", "upgrade");
+
+    private final ConnectionPool mPool;
+    private final Network mNetwork;
+    // Unlike URLConnection, keep the request headers readable after connecting
+    private final Map<String, List<String>> mRequestProperties = new LinkedHashMap<>();
+
+    private PooledConnection mConnection;
+    private Http2Connection.Stream mStream;
+    private boolean mKeepAlive;
+    private boolean mDisconnected;
+    private String mStatusLine;
+    private final List<String[]> mHeaders = new ArrayList<>();
+    private InputStream mBody;
+
+    PooledHttpURLConnection(URL url, Network network, ConnectionPool pool) {
+        super(url);
+        mNetwork = network;
+        mPool = pool;
+    }
+
+    private String findRequestProperty(String key) {
+        for (String name : mRequestProperties.keySet()) {
+            if (name.equalsIgnoreCase(key)) {
+                return name;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public void setRequestProperty(String key, String value) {
+        if (connected) {
+            throw new IllegalStateException("Already connected");
+        }
+        String name = findRequestProperty(key);
+        mRequestProperties.remove(name);
+        List<String> values = new ArrayList<>();
+        values.add(value);
+        mRequestProperties.put(key, values);
+    }
+
+    @Override
+    public void addRequestProperty(String key, String value) {
+        if (connected) {
+            throw new IllegalStateException("Already connected");
+        }
+        String name = findRequestProperty(key);
+        if (name == null) {
+            mRequestProperties.put(key, new ArrayList<>());
+            name = key;
+        }
+        mRequestProperties.get(name).add(value);
+    }
+
+    @Override
+    public String getRequestProperty(String key) {
+        String name = findRequestProperty(key);
+        if (name == null) {
+            return null;
+        }
+        List<String> values = mRequestProperties.get(name);
+        return values.get(values.size() - 1);
+    }
+
+    @Override
+    public Map<String, List<String>> getRequestProperties() {
+        return Collections.unmodifiableMap(mRequestProperties);
+    }
+
+    @Override
+    public void connect() throws IOException {
+        if (connected) {
+            return;
+        }
+        if (getDoOutput()) {
+            throw new ProtocolException("Request bodies are not supported");
+        }
+        for (int redirects = 0; ; redirects++) {
+            execute();
+            if (!getInstanceFollowRedirects() || responseCode / 100 != 3) {
+                break;
+            }
+            String location = findHeader("Location");
+            if (location == null) {
+                break;
+            }
+            URL target = new URL(url, location);
+            if (!target.getProtocol().equals(url.getProtocol())) {
+                // Like HttpURLConnection, don't follow redirects across protocols
+                break;
+            }
+            if (redirects >= MAX_REDIRECTS) {
+                throw new ProtocolException("Too many redirects");
+            }
+            drainBody();
+            url = target;
+        }
+        connected = true;
+    }
+
+    private synchronized void checkDisconnected() throws IOException {
+        if (mDisconnected) {
+            throw new SocketException("Disconnected");
+        }
+    }
+
+    private void execute() throws IOException {
+        checkDisconnected();
+        for (int attempt = 0; ; attempt++) {
+            Http2Connection connection = mPool.getHttp2Connection(url, mNetwork,
+                    getConnectTimeout(), getReadTimeout());
+            if (connection == null) {
+                break;
+            }
+            try {
+                executeHttp2(connection);
+                return;
+            } catch (Http2Connection.RefusedStreamException e) {
+                // The server didn't process the request, it can go on another connection
+                if (attempt > 0 || Thread.currentThread().isInterrupted()) {
+                    throw e;
+                }
+                checkDisconnected();
+            }
+        }
+
+        boolean reuse = true;
+        for (;;) {
+            PooledConnection connection = mPool.acquire(url, mNetwork, getConnectTimeout(),
+                    getReadTimeout(), reuse);
+            synchronized (this) {
+                if (mDisconnected) {
+                    mPool.discard(connection);
+                    throw new SocketException("Disconnected");
+                }
+                // Set before blocking on the response, so that disconnect() can close it
+                mConnection = connection;
+            }
+            try {
+                writeRequest(connection.getOutputStream());
+                readResponseHeaders(connection.getInputStream());
+            } catch (IOException e) {
+                releaseConnection(false);
+                // The server might have closed an idle connection while we were using it
+                if (connection.getUseCount() > 1 && !Thread.currentThread().isInterrupted()) {
+                    checkDisconnected();
+                    reuse = false;
+                    continue;
+                }
+                throw e;
+            }
+            setupBody(connection.getInputStream());
+            return;
+        }
+    }
+
+    private void executeHttp2(Http2Connection connection) throws IOException {
+        Http2Connection.Stream stream = connection.newStream(getHttp2Headers(),
+                getReadTimeout());
+        synchronized (this) {
+            if (mDisconnected) {
+                stream.cancel();
+                throw new SocketException("Disconnected");
+            }
+            mStream = stream;
+        }
+        List<String[]> headers;
+        try {
+            headers = stream.readResponseHeaders();
+        } catch (IOException e) {
+            releaseConnection(false);
+            throw e;
+        }
+        mHeaders.clear();
+        for (String[] header : headers) {
+            if (":status".equals(header[0])) {
+                try {
+                    responseCode = Integer.parseInt(header[1]);
+                } catch (NumberFormatException e) {
+                    releaseConnection(false);
+                    throw new ProtocolException("Unexpected status " + header[1]);
+                }
+            } else if (!header[0].startsWith(":")) {
+                mHeaders.add(header);
+            }
+        }
+        // HTTP/2 has no reason phrase
+        mStatusLine = "HTTP/2 " + responseCode;
+        responseMessage = "";
+        mBody = new Http2InputStream(stream);
+    }
+
+    private String getHost() {
+        String host = getRequestProperty("Host");
+        if (host == null) {
+            host = url.getHost();
+            if (url.getPort() != -1 && url.getPort() != url.getDefaultPort()) {
+                host += ":" + url.getPort();
+            }
+        }
+        return host;
+    }
+
+    private List<String[]> getHttp2Headers() {
+        List<String[]> headers = new ArrayList<>();
+        String file = url.getFile();
+        headers.add(new String[]{":method", method});
+        headers.add(new String[]{":scheme", url.getProtocol()});
+        headers.add(new String[]{":authority", getHost()});
+        headers.add(new String[]{":path", file.isEmpty() ? "/" : file});
+        String userAgent = System.getProperty("http.agent");
+        if (getRequestProperty("User-Agent") == null && userAgent != null) {
+            headers.add(new String[]{"user-agent", userAgent});
+        }
+        for (Map.Entry<String, List<String>> property : getRequestProperties().entrySet()) {
+            String name = property.getKey().toLowerCase(Locale.ROOT);
+            if (CONNECTION_HEADERS.contains(name)) {
+                continue;
+            }
+            for (String value : property.getValue()) {
+                headers.add(new String[]{name, value});
+            }
+        }
+        return headers;
+    }
+
+    private void writeRequest(OutputStream outputStream) throws IOException {
+        StringBuilder request = new StringBuilder();
+        String file = url.getFile();
+        request.append(method).append(' ').append(file.isEmpty() ? "/" : file)
+                .append(" HTTP/1.1\r\n");
+        Map<String, List<String>> properties = getRequestProperties();
+        if (getRequestProperty("Host") == null) {
+            request.append("Host: ").append(getHost()).append("\r\n");
+        }
+        String userAgent = System.getProperty("http.agent");
+        if (getRequestProperty("User-Agent") == null && userAgent != null) {
+            request.append("User-Agent: ").append(userAgent).append("\r\n");
+        }
+        for (Map.Entry<String, List<String>> property : properties.entrySet()) {
+            for (String value : property.getValue()) {
+                request.append(property.getKey()).append(": ").append(value).append("\r\n");
+            }
+        }
+        request.append("\r\n");
+        outputStream.write(request.toString().getBytes(StandardCharsets.ISO_8859_1));
+        outputStream.flush();
+    }
+
+    private static String readLine(InputStream inputStream) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = inputStream.read()) != '\n') {
+            if (b == -1) {
+                throw new EOFException("Unexpected end of stream");
+            } else if (line.size() >= MAX_LINE_LENGTH) {
+                throw new ProtocolException("Line too long");
+            }
+            line.write(b);
+        }
+        String result = new String(line.toByteArray(), StandardCharsets.ISO_8859_1);
+        return result.endsWith("\r") ? result.substring(0, result.length() - 1) : result;
+    }
+
+    private void readResponseHeaders(InputStream inputStream) throws IOException {
+        do {
+            mStatusLine = readLine(inputStream);
+            // HTTP/1.1 200 OK
+            if (!mStatusLine.startsWith("HTTP/1.") || mStatusLine.length() < 12) {
+                throw new ProtocolException("Unexpected status line: " + mStatusLine);
+            }
+            try {
+                responseCode = Integer.parseInt(mStatusLine.substring(9, 12));
+            } catch (NumberFormatException e) {
+                throw new ProtocolException("Unexpected status line: " + mStatusLine);
+            }
+            responseMessage = mStatusLine.length() > 13 ? mStatusLine.substring(13) : "";
+            mHeaders.clear();
+            String line;
+            while (!(line = readLine(inputStream)).isEmpty()) {
+                int index = line.indexOf(':');
+                if (index > 0) {
+                    mHeaders.add(new String[]{line.substring(0, index).trim(),
+                            line.substring(index + 1).trim()});
+                }
+            }
+        } while (responseCode / 100 == 1);
+    }
+
+    private String findHeader(String name) {
+        for (int i = mHeaders.size() - 1; i >= 0; i--) {
+            if (mHeaders.get(i)[0].equalsIgnoreCase(name)) {
+                return mHeaders.get(i)[1];
+            }
+        }
+        return null;
+    }
+
+    private void setupBody(InputStream inputStream) throws IOException {
+        String connection = findHeader("Connection");
+        if (mStatusLine.startsWith("HTTP/1.0")) {
+            mKeepAlive = "keep-alive".equalsIgnoreCase(connection);
+        } else {
+            mKeepAlive = !"close".equalsIgnoreCase(connection) &&
+                    !"close".equalsIgnoreCase(getRequestProperty("Connection"));
+        }
+
+        long length = -1;
+        String contentLength = findHeader("Content-Length");
+        if (contentLength != null) {
+            try {
+                length = Long.parseLong(contentLength);
+            } catch (NumberFormatException e) {
+                throw new ProtocolException("Invalid Content-Length " + contentLength);
+            }
+        }
+        if ("HEAD".equals(method) || responseCode == HTTP_NO_CONTENT ||
+                responseCode == HTTP_NOT_MODIFIED) {
+            length = 0;
+        }
+
+        if (length == 0) {
+            mBody = new FixedLengthInputStream(inputStream, 0);
+            releaseConnection(true);
+        } else if ("chunked".equalsIgnoreCase(findHeader("Transfer-Encoding"))) {
+            mBody = new ChunkedInputStream(inputStream);
+        } else if (length > 0) {
+            mBody = new FixedLengthInputStream(inputStream, length);
+        } else {
+            // The body ends when the server closes the connection
+            mKeepAlive = false;
+            mBody = new UntilCloseInputStream(inputStream);
+        }
+    }
+
+    private void drainBody() throws IOException {
+        byte[] buffer = new byte[8192];
+        int drained = 0;
+        int count;
+        while (drained < MAX_DRAIN_SIZE && (count = mBody.read(buffer)) != -1) {
+            drained += count;
+        }
+        releaseConnection(false);
+    }
+
+    /**
+     * @param complete whether the response body was read completely
+     */
+    private synchronized void releaseConnection(boolean complete) {
+        if (mStream != null) {
+            if (!complete) {
+                mStream.cancel();
+            }
+            mStream = null;
+        }
+        if (mConnection == null) {
+            return;
+        }
+        if (complete && mKeepAlive) {
+            mPool.release(mConnection);
+        } else {
+            mPool.discard(mConnection);
+        }
+        mConnection = null;
+    }
+
+    @Override
+    public void disconnect() {
+        synchronized (this) {
+            mDisconnected = true;
+        }
+        releaseConnection(false);
+    }
+
+    @Override
+    public boolean usingProxy() {
+        return false;
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        connect();
+        if (responseCode == HTTP_NOT_FOUND || responseCode == HTTP_GONE) {
+            throw new FileNotFoundException(url.toString());
+        } else if (responseCode >= HTTP_BAD_REQUEST) {
+            throw new IOException("Server returned HTTP response code: " + responseCode +
+                    " for URL: " + url);
+        }
+        return mBody;
+    }
+
+    @Override
+    public InputStream getErrorStream() {
+        return connected && responseCode >= HTTP_BAD_REQUEST ? mBody : null;
+    }
+
+    @Override
+    public int getResponseCode() throws IOException {
+        connect();
+        return responseCode;
+    }
+
+    @Override
+    public String getResponseMessage() throws IOException {
+        connect();
+        return responseMessage;
+    }
+
+    private boolean tryConnect() {
+        try {
+            connect();
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public String getHeaderField(String name) {
+        if (!tryConnect()) {
+            return null;
+        }
+        return name == null ? mStatusLine : findHeader(name);
+    }
+
+    @Override
+    public String getHeaderFieldKey(int n) {
+        if (!tryConnect() || n <= 0 || n > mHeaders.size()) {
+            return null;
+        }
+        return mHeaders.get(n - 1)[0];
+    }
+
+    @Override
+    public String getHeaderField(int n) {
+        if (!tryConnect() || n < 0 || n > mHeaders.size()) {
+            return null;
+        }
+        return n == 0 ? mStatusLine : mHeaders.get(n - 1)[1];
+    }
+
+    @Override
+    public Map<String, List<String>> getHeaderFields() {
+        if (!tryConnect()) {
+            return Collections.emptyMap();
+        }
+        Map<String, List<String>> fields = new LinkedHashMap<>();
+        fields.put(null, Collections.singletonList(mStatusLine));
+        for (String[] header : mHeaders) {
+            String key = header[0];
+            for (String name : fields.keySet()) {
+                if (name != null && name.equalsIgnoreCase(key)) {
+                    key = name;
+                    break;
+                }
+            }
+            List<String> values = fields.get(key);
+            if (values == null) {
+                values = new ArrayList<>();
+                fields.put(key, values);
+            }
+            values.add(header[1]);
+        }
+        return Collections.unmodifiableMap(fields);
+    }
+
+    private class FixedLengthInputStream extends InputStream {
+        private final InputStream mInputStream;
+        private long mRemaining;
+
+        private FixedLengthInputStream(InputStream inputStream, long length) {
+            mInputStream = inputStream;
+            mRemaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (mRemaining == 0) {
+                return -1;
+            }
+            int count = mInputStream.read(b, off, (int) Math.min(len, mRemaining));
+            if (count == -1) {
+                releaseConnection(false);
+                throw new EOFException("Unexpected end of stream");
+            }
+            mRemaining -= count;
+            if (mRemaining == 0) {
+                releaseConnection(true);
+            }
+            return count;
+        }
+
+        @Override
+        public void close() {
+            if (mRemaining > 0) {
+                releaseConnection(false);
+            }
+        }
+    }
+
+    private class ChunkedInputStream extends InputStream {
+        private final InputStream mInputStream;
+        // -1 before reading the size of the next chunk
+        private long mChunkRemaining = -1;
+        private boolean mDone;
+
+        private ChunkedInputStream(InputStream inputStream) {
+            mInputStream = inputStream;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (mDone) {
+                return -1;
+            }
+            if (mChunkRemaining == 0) {
+                // End of the previous chunk
+                readLine(mInputStream);
+                mChunkRemaining = -1;
+            }
+            if (mChunkRemaining == -1) {
+                String line = readLine(mInputStream);
+                int index = line.indexOf(';');
+                try {
+                    mChunkRemaining = Long.parseLong(
+                            (index != -1 ? line.substring(0, index) : line).trim(), 16);
+                } catch (NumberFormatException e) {
+                    throw new ProtocolException("Invalid chunk size " + line);
+                }
+                if (mChunkRemaining == 0) {
+                    // Skip the trailers
+                    while (!readLine(mInputStream).isEmpty()) {
+                    }
+                    mDone = true;
+                    releaseConnection(true);
+                    return -1;
+                }
+            }
+            int count = mInputStream.read(b, off, (int) Math.min(len, mChunkRemaining));
+            if (count == -1) {
+                releaseConnection(false);
+                throw new EOFException("Unexpected end of stream");
+            }
+            mChunkRemaining -= count;
+            return count;
+        }
+
+        @Override
+        public void close() {
+            if (!mDone) {
+                releaseConnection(false);
+            }
+        }
+    }
+
+    private class UntilCloseInputStream extends InputStream {
+        private final InputStream mInputStream;
+
+        private UntilCloseInputStream(InputStream inputStream) {
+            mInputStream = inputStream;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int count = mInputStream.read(b, off, len);
+            if (count == -1) {
+                releaseConnection(false);
+            }
+            return count;
+        }
+
+        @Override
+        public void close() {
+            releaseConnection(false);
+        }
+    }
+
+    private class Http2InputStream extends InputStream {
+        private final Http2Connection.Stream mSource;
+        private boolean mDone;
+
+        private Http2InputStream(Http2Connection.Stream source) {
+            mSource = source;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (mDone) {
+                return -1;
+            }
+            if (len == 0) {
+                return 0;
+            }
+            int count = mSource.read(b, off, len);
+            if (count == -1) {
+                mDone = true;
+                releaseConnection(true);
+            }
+            return count;
+        }
+
+        @Override
+        public void close() {
+            if (!mDone) {
+                releaseConnection(false);
+            }
+        }
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2026 Paranoid Android
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.aospa.hub.download;
+
+import android.os.SystemClock;
+
+import java.io.InterruptedIOException;
+
+/**
+ * Token bucket shared by all the connections of the downloads it's given to, so that
+ * together they don't read faster than the rate set. The rate can be changed at any
+ * time, the readers pick it up with their next read.
+ */
+public class RateLimiter {
+
+    // Burst allowed after an idle period, and size of the reads while limited
+    private static final long BURST_MILLIS = 250;
+    private static final int MIN_BURST_SIZE = 4 * 1024;
+
+    private long mRate;
+    private long mTokens;
+    private long mLastMillis;
+    // When a reader last had to wait, and how many are waiting now
+    private long mLastThrottledMillis;
+    private int mThrottledCount;
+
+    /**
+     * @param bytesPerSecond the maximum rate, 0 for no limit
+     */
+    public synchronized void setRate(long bytesPerSecond) {
+        long rate = Math.max(0, bytesPerSecond);
+        if (rate == mRate) {
+            return;
+        }
+        refill();
+        mRate = rate;
+        // The debt of the reads in flight is paid at the new rate
+        mTokens = Math.min(mTokens, getBurstSize());
+        mLastMillis = SystemClock.elapsedRealtime();
+        notifyAll();
+    }
+
+    /**
+     * @return the maximum rate in bytes per second, 0 if there's no limit
+     */
+    public synchronized long getRate() {
+        return mRate;
+    }
+
+    /**
+     * @param millis a time in SystemClock.elapsedRealtime() milliseconds
+     * @return whether a reader had to wait for the rate since then
+     */
+    synchronized boolean wasThrottledSince(long millis) {
+        return mThrottledCount > 0 || mLastThrottledMillis >= millis;
+    }
+
+    /**
+     * @return how many bytes should be read at once to keep the rate smooth
+     */
+    synchronized int getBurstSize() {
+        if (mRate == 0) {
+            return Integer.MAX_VALUE;
+        }
+        return (int) Math.max(MIN_BURST_SIZE,
+                Math.min(Integer.MAX_VALUE, mRate * BURST_MILLIS / 1000));
+    }
+
+    private void refill() {
+        long millis = SystemClock.elapsedRealtime();
+        if (mRate > 0) {
+            mTokens = Math.min(getBurstSize(), mTokens + (millis - mLastMillis) * mRate / 1000);
+        }
+        mLastMillis = millis;
+    }
+
+    /**
+     * Account for bytes that were read, waiting until the rate allows more to be read
+     */
+    synchronized void acquire(long bytes) throws InterruptedIOException {
+        if (mRate == 0) {
+            return;
+        }
+        refill();
+        mTokens -= bytes;
+        if (mTokens >= 0) {
+            return;
+        }
+        mThrottledCount++;
+        try {
+            while (mRate > 0 && mTokens < 0) {
+                try {
+                    wait(Math.max(1, -mTokens * 1000 / mRate));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while throttled");
+                }
+                refill();
+            }
+        } finally {
+            mThrottledCount--;
+            mLastThrottledMillis = SystemClock.elapsedRealtime();
+        }
+    }
+}
@@ -0,0 +1,388 @@
+/*
+ * Copyright (C) 2026 Paranoid Android
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.aospa.hub.download;
+
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads the entries of a zip file on a server with range requests, without downloading
+ * the whole file. Only the central directory is fetched when opening it, then the
+ * entries that are read.
+ */
+public class RemoteZip {
+
+    private static final String TAG = "RemoteZip";
+
+    private static final int TIMEOUT_MS = 15000;
+
+    private static final int EOCD_SIGNATURE = 0x06054b50;
+    private static final int EOCD_SIZE = 22;
+    private static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+    private static final int ZIP64_LOCATOR_SIZE = 20;
+    private static final int ZIP64_EOCD_SIGNATURE = 0x06064b50;
+    private static final int ZIP64_EOCD_SIZE = 56;
+    private static final int CD_SIGNATURE = 0x02014b50;
+    private static final int CD_HEADER_SIZE = 46;
+    private static final int LOCAL_SIGNATURE = 0x04034b50;
+    private static final int LOCAL_HEADER_SIZE = 30;
+    private static final int ZIP64_EXTRA_ID = 0x0001;
+    private static final long ZIP64_MAGIC = 0xffffffffL;
+
+    // The end of central directory record followed by the longest comment
+    private static final int MAX_TAIL_SIZE = EOCD_SIZE + 0xffff;
+    private static final int MAX_CD_SIZE = 4 * 1024 * 1024;
+    private static final int MAX_ENTRY_SIZE = 1024 * 1024;
+
+    public static class Entry {
+        private final String mName;
+        private final int mMethod;
+        private final long mCompressedSize;
+        private final long mSize;
+        private final long mLocalHeaderOffset;
+
+        private Entry(String name, int method, long compressedSize, long size,
+                long localHeaderOffset) {
+            mName = name;
+            mMethod = method;
+            mCompressedSize = compressedSize;
+            mSize = size;
+            mLocalHeaderOffset = localHeaderOffset;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        public long getSize() {
+            return mSize;
+        }
+
+        /**
+         * @return whether the entry is stored as is, so that it can be read in place
+         */
+        public boolean isStored() {
+            return mMethod == 0;
+        }
+    }
+
+    private final Transport mTransport;
+    private final URL mUrl;
+    private long mLength = -1;
+    private final Map<String, Entry> mEntries = new HashMap<>();
+
+    private RemoteZip(Transport transport, URL url) {
+        mTransport = transport;
+        mUrl = url;
+    }
+
+    /**
+     * Fetch the central directory of the zip file at the given url
+     *
+     * @throws IOException if the server doesn't support range requests or the file
+     * isn't a valid zip file
+     */
+    public static RemoteZip open(Transport transport, String url) throws IOException {
+        RemoteZip zip = new RemoteZip(transport, new URL(url));
+        zip.readCentralDirectory();
+        return zip;
+    }
+
+    /**
+     * @return the size of the file in bytes
+     */
+    public long getLength() {
+        return mLength;
+    }
+
+    /**
+     * @return the entry with the given name, or null if there's none
+     */
+    public Entry getEntry(String name) {
+        return mEntries.get(name);
+    }
+
+    /**
+     * Fetch and uncompress the content of an entry. Meant for the small entries, the
+     * large ones are rejected.
+     */
+    public byte[] readEntry(Entry entry) throws IOException {
+        if (entry.mCompressedSize > MAX_ENTRY_SIZE || entry.mSize > MAX_ENTRY_SIZE) {
+            throw new IOException(entry.mName + " is too large to be read");
+        }
+        // The local header usually repeats the name and the extra field of the central
+        // directory, fetch it together with the data
+        long start = entry.mLocalHeaderOffset;
+        int guess = LOCAL_HEADER_SIZE + entry.mName.length() * 4 + 512 +
+                (int) entry.mCompressedSize;
+        byte[] buf = fetch(start, Math.min(start + guess, mLength) - 1);
+        if (buf.length < LOCAL_HEADER_SIZE || getInt(buf, 0) != LOCAL_SIGNATURE) {
+            throw new IOException("Invalid local header for " + entry.mName);
+        }
+        int dataOffset = LOCAL_HEADER_SIZE + getShort(buf, 26) + getShort(buf, 28);
+        byte[] data;
+        if (dataOffset + entry.mCompressedSize <= buf.length) {
+            data = new byte[(int) entry.mCompressedSize];
+            System.arraycopy(buf, dataOffset, data, 0, data.length);
+        } else {
+            data = fetch(start + dataOffset, start + dataOffset + entry.mCompressedSize - 1);
+        }
+
+        switch (entry.mMethod) {
+            case 0:
+                return data;
+            case 8:
+                return inflate(data, (int) entry.mSize);
+            default:
+                throw new IOException("Unsupported compression method " + entry.mMethod +
+                        " for " + entry.mName);
+        }
+    }
+
+    /**
+     * @return the offset of the data of an entry in the file
+     */
+    public long getDataOffset(Entry entry) throws IOException {
+        byte[] header = fetch(entry.mLocalHeaderOffset,
+                entry.mLocalHeaderOffset + LOCAL_HEADER_SIZE - 1);
+        if (getInt(header, 0) != LOCAL_SIGNATURE) {
+            throw new IOException("Invalid local header for " + entry.mName);
+        }
+        return entry.mLocalHeaderOffset + LOCAL_HEADER_SIZE + getShort(header, 26) +
+                getShort(header, 28);
+    }
+
+    private void readCentralDirectory() throws IOException {
+        byte[] tail = fetchTail(MAX_TAIL_SIZE);
+        long tailOffset = mLength - tail.length;
+
+        int eocd = -1;
+        for (int i = tail.length - EOCD_SIZE; i >= 0; i--) {
+            if (getInt(tail, i) == EOCD_SIGNATURE &&
+                    i + EOCD_SIZE + getShort(tail, i + 20) == tail.length) {
+                eocd = i;
+                break;
+            }
+        }
+        if (eocd == -1) {
+            throw new IOException("End of central directory not found");
+        }
+        long entries = getShort(tail, eocd + 10);
+        long cdSize = getUnsignedInt(tail, eocd + 12);
+        long cdOffset = getUnsignedInt(tail, eocd + 16);
+
+        if (entries == 0xffff || cdSize == ZIP64_MAGIC || cdOffset == ZIP64_MAGIC) {
+            int locator = eocd - ZIP64_LOCATOR_SIZE;
+            if (locator < 0 || getInt(tail, locator) != ZIP64_LOCATOR_SIGNATURE) {
+                throw new IOException("ZIP64 end of central directory locator not found");
+            }
+            long zip64Offset = getLong(tail, locator + 8);
+            byte[] zip64;
+            int pos;
+            if (zip64Offset >= tailOffset) {
+                zip64 = tail;
+                pos = (int) (zip64Offset - tailOffset);
+            } else {
+                zip64 = fetch(zip64Offset, zip64Offset + ZIP64_EOCD_SIZE - 1);
+                pos = 0;
+            }
+            if (pos + ZIP64_EOCD_SIZE > zip64.length ||
+                    getInt(zip64, pos) != ZIP64_EOCD_SIGNATURE) {
+                throw new IOException("Invalid ZIP64 end of central directory");
+            }
+            entries = getLong(zip64, pos + 32);
+            cdSize = getLong(zip64, pos + 40);
+            cdOffset = getLong(zip64, pos + 48);
+        }
+
+        if (cdSize > MAX_CD_SIZE || cdOffset < 0 || cdOffset + cdSize > mLength) {
+            throw new IOException("Invalid central directory, offset=" + cdOffset +
+                    " size=" + cdSize);
+        }
+        byte[] cd;
+        int pos;
+        if (cdOffset >= tailOffset) {
+            cd = tail;
+            pos = (int) (cdOffset - tailOffset);
+        } else {
+            cd = fetch(cdOffset, cdOffset + cdSize - 1);
+            pos = 0;
+        }
+
+        for (long i = 0; i < entries; i++) {
+            if (pos + CD_HEADER_SIZE > cd.length || getInt(cd, pos) != CD_SIGNATURE) {
+                throw new IOException("Invalid central directory entry " + i);
+            }
+            int method = getShort(cd, pos + 10);
+            long compressedSize = getUnsignedInt(cd, pos + 20);
+            long size = getUnsignedInt(cd, pos + 24);
+            int nameLength = getShort(cd, pos + 28);
+            int extraLength = getShort(cd, pos + 30);
+            int commentLength = getShort(cd, pos + 32);
+            long localHeaderOffset = getUnsignedInt(cd, pos + 42);
+            int next = pos + CD_HEADER_SIZE + nameLength + extraLength + commentLength;
+            if (next > cd.length) {
+                throw new IOException("Truncated central directory entry " + i);
+            }
+            String name = new String(cd, pos + CD_HEADER_SIZE, nameLength,
+                    StandardCharsets.UTF_8);
+
+            // The ZIP64 extra field holds the values that don't fit, in this order
+            int extra = pos + CD_HEADER_SIZE + nameLength;
+            int extraEnd = extra + extraLength;
+            while (extra + 4 <= extraEnd) {
+                int id = getShort(cd, extra);
+                int length = getShort(cd, extra + 2);
+                int field = extra + 4;
+                if (id == ZIP64_EXTRA_ID) {
+                    if (size == ZIP64_MAGIC && field + 8 <= extraEnd) {
+                        size = getLong(cd, field);
+                        field += 8;
+                    }
+                    if (compressedSize == ZIP64_MAGIC && field + 8 <= extraEnd) {
+                        compressedSize = getLong(cd, field);
+                        field += 8;
+                    }
+                    if (localHeaderOffset == ZIP64_MAGIC && field + 8 <= extraEnd) {
+                        localHeaderOffset = getLong(cd, field);
+                    }
+                    break;
+                }
+                extra = field + length;
+            }
+
+            mEntries.put(name, new Entry(name, method, compressedSize, size,
+                    localHeaderOffset));
+            pos = next;
+        }
+        Log.d(TAG, "Read " + mEntries.size() + " entries of " + mUrl);
+    }
+
+    private byte[] fetchTail(int count) throws IOException {
+        return fetch("bytes=-" + count, -1, -1);
+    }
+
+    private byte[] fetch(long first, long last) throws IOException {
+        if (first > last) {
+            return new byte[0];
+        }
+        return fetch("bytes=" + first + "-" + last, first, last);
+    }
+
+    private byte[] fetch(String range, long first, long last) throws IOException {
+        HttpURLConnection client = mTransport.openConnection(mUrl);
+        try {
+            client.setConnectTimeout(TIMEOUT_MS);
+            client.setReadTimeout(TIMEOUT_MS);
+            client.setRequestProperty("Range", range);
+            client.setRequestProperty("Accept-Encoding", "identity");
+            int responseCode = client.getResponseCode();
+            if (responseCode != HttpURLConnection.HTTP_PARTIAL) {
+                throw new IOException("Range request not honored, server replied with " +
+                        responseCode);
+            }
+            // Content-Range: bytes <first>-<last>/<length>
+            String contentRange = client.getHeaderField("Content-Range");
+            long rangeFirst;
+            long rangeLast;
+            long length;
+            try {
+                String value = contentRange.substring(contentRange.indexOf(' ') + 1);
+                int dash = value.indexOf('-');
+                int slash = value.indexOf('/');
+                rangeFirst = Long.parseLong(value.substring(0, dash).trim());
+                rangeLast = Long.parseLong(value.substring(dash + 1, slash).trim());
+                length = Long.parseLong(value.substring(slash + 1).trim());
+            } catch (RuntimeException e) {
+                throw new IOException("Invalid Content-Range " + contentRange);
+            }
+            if (mLength == -1) {
+                mLength = length;
+            } else if (mLength != length) {
+                throw new IOException("The file changed on the server");
+            }
+            if ((first != -1 && rangeFirst != first) || (last != -1 && rangeLast != last) ||
+                    rangeLast < rangeFirst) {
+                throw new IOException("Unexpected Content-Range " + contentRange);
+            }
+
+            byte[] buf = new byte[(int) (rangeLast - rangeFirst + 1)];
+            int read = 0;
+            try (InputStream in = client.getInputStream()) {
+                while (read < buf.length) {
+                    int count = in.read(buf, read, buf.length - read);
+                    if (count == -1) {
+                        throw new IOException("Unexpected end of range " + range);
+                    }
+                    read += count;
+                }
+            }
+            return buf;
+        } finally {
+            client.disconnect();
+        }
+    }
+
+    private static byte[] inflate(byte[] data, int size) throws IOException {
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(data);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(size);
+            byte[] buf = new byte[8192];
+            while (!inflater.finished()) {
+                int count = inflater.inflate(buf);
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("Truncated compressed data");
+                }
+                out.write(buf, 0, count);
+                if (out.size() > MAX_ENTRY_SIZE) {
+                    throw new IOException("Entry larger than declared");
+                }
+            }
+            return out.toByteArray();
+        } catch (DataFormatException e) {
+            throw new IOException("Invalid compressed data", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static int getShort(byte[] buf, int offset) {
+        return (buf[offset] & 0xff) | (buf[offset + 1] & 0xff) << 8;
+    }
+
+    private static int getInt(byte[] buf, int offset) {
+        return getShort(buf, offset) | getShort(buf, offset + 2) << 16;
+    }
+
+    private static long getUnsignedInt(byte[] buf, int offset) {
+        return getInt(buf, offset) & 0xffffffffL;
+    }
+
+    private static long getLong(byte[] buf, int offset) {
+        return getUnsignedInt(buf, offset) | getUnsignedInt(buf, offset + 4) << 32;
+    }
+}
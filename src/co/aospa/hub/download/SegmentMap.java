@@ -0,0 +1,278 @@
+/*
+ * Copyright (C) 2026 Paranoid Android
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.aospa.hub.download;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.BitSet;
+
+/**
+ * Keeps track of a download split in byte ranges of the same size. The completed
+ * segments are saved next to the destination file, so that a segmented download
+ * can be resumed even if the destination file has holes. So are the bytes used from
+ * the budget of a download path, so that resuming doesn't reset it.
+ */
+public class SegmentMap {
+
+    private static final String TAG = "SegmentMap";
+
+    private static final String EXTENSION = ".segments";
+    // Version 1 had no budget
+    private static final int VERSION = 2;
+
+    private final File mFile;
+    private final long mLength;
+    private final long mSegmentSize;
+    private final int mSegmentCount;
+
+    private final BitSet mDone;
+    private final BitSet mActive = new BitSet();
+    private final long[] mPositions;
+
+    private ByteBudget mBudget;
+    private long mBudgetUsed;
+
+    private SegmentMap(File file, long length, long segmentSize, long budgetUsed,
+            BitSet done) {
+        mFile = file;
+        mLength = length;
+        mSegmentSize = segmentSize;
+        mBudgetUsed = budgetUsed;
+        mSegmentCount = (int) ((length + segmentSize - 1) / segmentSize);
+        mDone = done;
+        mPositions = new long[mSegmentCount];
+        for (int i = 0; i < mSegmentCount; i++) {
+            mPositions[i] = mDone.get(i) ? getEnd(i) : getStart(i);
+        }
+    }
+
+    private static File getFile(File destination) {
+        return new File(destination.getAbsolutePath() + EXTENSION);
+    }
+
+    static SegmentMap create(File destination, long length, long segmentSize)
+            throws IOException {
+        SegmentMap segmentMap = new SegmentMap(getFile(destination), length, segmentSize, 0,
+                new BitSet());
+        segmentMap.save();
+        return segmentMap;
+    }
+
+    /**
+     * Read the segments of the given destination
+     *
+     * @param destination the file being downloaded
+     * @return the saved segments, or null if the download isn't segmented
+     */
+    static SegmentMap read(File destination) {
+        File file = getFile(destination);
+        if (!file.exists()) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)))) {
+            int version = in.readInt();
+            if (version != 1 && version != VERSION) {
+                Log.e(TAG, "Unknown version of " + file);
+                return null;
+            }
+            long length = in.readLong();
+            long segmentSize = in.readLong();
+            long budgetUsed = version >= 2 ? in.readLong() : 0;
+            long[] words = new long[in.readInt()];
+            for (int i = 0; i < words.length; i++) {
+                words[i] = in.readLong();
+            }
+            return new SegmentMap(file, length, segmentSize, budgetUsed,
+                    BitSet.valueOf(words));
+        } catch (IOException e) {
+            Log.e(TAG, "Could not read " + file, e);
+            return null;
+        }
+    }
+
+    /**
+     * Get the number of bytes already downloaded. Segmented downloads write the
+     * destination out of order, so its length can't be used for this.
+     *
+     * @param destination the file being downloaded
+     * @return the number of bytes downloaded
+     */
+    public static long getDownloadedBytes(File destination) {
+        SegmentMap segmentMap = read(destination);
+        return segmentMap != null ? segmentMap.getDownloadedBytes() : destination.length();
+    }
+
+    /**
+     * Get the end of the bytes written without gaps from a position, from what was
+     * saved. Segments in progress count as not written.
+     *
+     * @param destination the file being downloaded
+     * @param position the position to start from
+     */
+    public static long getWrittenEnd(File destination, long position) {
+        SegmentMap segmentMap = read(destination);
+        return segmentMap != null ? segmentMap.getWrittenEnd(position) :
+                Math.max(position, destination.length());
+    }
+
+    public static void remove(File destination) {
+        File file = getFile(destination);
+        if (file.exists() && !file.delete()) {
+            Log.e(TAG, "Could not delete " + file);
+        }
+    }
+
+    private void save() throws IOException {
+        File tmp = new File(mFile.getAbsolutePath() + ".tmp");
+        long[] words = mDone.toLongArray();
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(VERSION);
+            out.writeLong(mLength);
+            out.writeLong(mSegmentSize);
+            out.writeLong(mBudget != null ? mBudget.getUsed() : mBudgetUsed);
+            out.writeInt(words.length);
+            for (long word : words) {
+                out.writeLong(word);
+            }
+        }
+        if (!tmp.renameTo(mFile)) {
+            throw new IOException("Could not save " + mFile);
+        }
+    }
+
+    /**
+     * Save the bytes used from a budget along with the segments, counting the ones
+     * saved by earlier clients
+     */
+    synchronized void setBudget(ByteBudget budget) {
+        budget.restore(mBudgetUsed);
+        mBudget = budget;
+    }
+
+    long getLength() {
+        return mLength;
+    }
+
+    long getSegmentSize() {
+        return mSegmentSize;
+    }
+
+    long getStart(int segment) {
+        return segment * mSegmentSize;
+    }
+
+    long getEnd(int segment) {
+        return Math.min(mLength, getStart(segment) + mSegmentSize);
+    }
+
+    synchronized long getPosition(int segment) {
+        return mPositions[segment];
+    }
+
+    synchronized long getDownloadedBytes() {
+        long downloaded = 0;
+        for (int i = 0; i < mSegmentCount; i++) {
+            downloaded += mPositions[i] - getStart(i);
+        }
+        return downloaded;
+    }
+
+    /**
+     * @return the end of the bytes written without gaps from position
+     */
+    synchronized long getWrittenEnd(long position) {
+        long end = position;
+        for (int i = (int) (position / mSegmentSize); i < mSegmentCount; i++) {
+            end = Math.max(end, mPositions[i]);
+            if (end < getEnd(i)) {
+                break;
+            }
+        }
+        return end;
+    }
+
+    synchronized int getPendingCount() {
+        return mSegmentCount - mDone.cardinality();
+    }
+
+    synchronized boolean isComplete() {
+        return mDone.cardinality() == mSegmentCount;
+    }
+
+    /**
+     * Reserve the next segment that is neither complete nor being downloaded.
+     *
+     * @return the index of the segment, or -1 if there's nothing left to reserve
+     */
+    synchronized int acquire() {
+        BitSet taken = (BitSet) mDone.clone();
+        taken.or(mActive);
+        int segment = taken.nextClearBit(0);
+        if (segment >= mSegmentCount) {
+            return -1;
+        }
+        mActive.set(segment);
+        return segment;
+    }
+
+    /**
+     * Record the bytes written to a segment being downloaded, so that they can be
+     * read before the segment is complete
+     */
+    synchronized void setPosition(int segment, long position) {
+        mPositions[segment] = position;
+    }
+
+    /**
+     * Give back a segment that could not be completed. The bytes written so far
+     * are kept, whoever acquires the segment next continues from position.
+     */
+    synchronized void release(int segment, long position) {
+        mActive.clear(segment);
+        mPositions[segment] = position;
+        if (mBudget != null) {
+            // The bytes of the segment were used even if it isn't complete
+            try {
+                save();
+            } catch (IOException e) {
+                Log.e(TAG, "Could not save " + mFile, e);
+            }
+        }
+    }
+
+    synchronized void setDone(int segment) throws IOException {
+        mActive.clear(segment);
+        mPositions[segment] = getEnd(segment);
+        mDone.set(segment);
+        save();
+    }
+
+    void delete() {
+        if (mFile.exists() && !mFile.delete()) {
+            Log.e(TAG, "Could not delete " + mFile);
+        }
+    }
+}
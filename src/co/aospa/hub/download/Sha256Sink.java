@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2026 Paranoid Android
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.aospa.hub.download;
+
+import co.aospa.hub.misc.BufferPool;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Computes the SHA-256 of a file while it's being downloaded. Bytes written right
+ * after the ones already digested are taken from the download buffers, bytes written
+ * further ahead (by other segments or before resuming) are read back from the file
+ * once everything before them has been written.
+ */
+class Sha256Sink {
+
+    private final FileChannel mChannel;
+    private final MessageDigest mDigest;
+    private long mPosition;
+
+    Sha256Sink(FileChannel channel) {
+        mChannel = channel;
+        try {
+            mDigest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return the number of bytes digested so far
+     */
+    synchronized long getPosition() {
+        return mPosition;
+    }
+
+    /**
+     * Digest bytes just written to the file. They're ignored unless they follow the
+     * bytes already digested, catchUp() reads them from the file later.
+     *
+     * @param position the position of the bytes in the file
+     * @param data the bytes written
+     */
+    synchronized void update(long position, ByteBuffer data) {
+        if (position == mPosition) {
+            mPosition += data.remaining();
+            mDigest.update(data);
+        }
+    }
+
+    /**
+     * Digest the bytes of the file up to end that update() didn't see
+     */
+    synchronized void catchUp(long end) throws IOException {
+        if (mPosition >= end) {
+            return;
+        }
+        ByteBuffer buffer = BufferPool.acquire(BufferPool.MAX_BUFFER_SIZE);
+        try {
+            while (mPosition < end) {
+                buffer.limit((int) Math.min(buffer.capacity(), end - mPosition));
+                int count = mChannel.read(buffer, mPosition);
+                if (count < 0) {
+                    throw new EOFException("The file ends at " + mPosition);
+                }
+                buffer.flip();
+                mDigest.update(buffer);
+                buffer.clear();
+                mPosition += count;
+            }
+        } finally {
+            BufferPool.release(buffer);
+        }
+    }
+
+    /**
+     * @param checksum the expected SHA-256, in hexadecimal
+     * @return whether the bytes digested match the checksum
+     */
+    synchronized boolean matches(String checksum) {
+        StringBuilder sb = new StringBuilder();
+        for (byte b : mDigest.digest()) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString().equalsIgnoreCase(checksum.trim());
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2026 Paranoid Android
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.aospa.hub.download;
+
+import android.os.SystemClock;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+
+/**
+ * Tells when a transfer stalled. A connection that sends nothing for the whole window
+ * is caught by the read timeout, this catches the ones that send too little.
+ */
+class StallDetector {
+
+    static class StallException extends IOException {
+        StallException(String message) {
+            super(message);
+        }
+    }
+
+    private final long mWindowMillis;
+    private final long mMinRate;
+    private final RateLimiter mRateLimiter;
+
+    private long mWindowStart;
+    private long mWindowBytes;
+
+    /**
+     * @param windowMillis the time over which the rate is measured
+     * @param minRate the minimum rate in bytes per second, 0 to only rely on timeouts
+     * @param rateLimiter the limiter of the transfer, the rate isn't checked while it
+     *                    throttles the transfer
+     */
+    StallDetector(long windowMillis, long minRate, RateLimiter rateLimiter) {
+        mWindowMillis = windowMillis;
+        mMinRate = minRate;
+        mRateLimiter = rateLimiter;
+        mWindowStart = SystemClock.elapsedRealtime();
+    }
+
+    static boolean isStall(IOException e) {
+        return e instanceof StallException || e instanceof SocketTimeoutException;
+    }
+
+    void onBytesRead(long count) throws StallException {
+        if (mWindowMillis <= 0 || mMinRate <= 0) {
+            return;
+        }
+        mWindowBytes += count;
+        long now = SystemClock.elapsedRealtime();
+        long elapsed = now - mWindowStart;
+        if (elapsed < mWindowMillis) {
+            return;
+        }
+        long rate = mWindowBytes * 1000 / elapsed;
+        mWindowStart = now;
+        mWindowBytes = 0;
+        if (rate < mMinRate && (mRateLimiter == null || mRateLimiter.getRate() == 0)) {
+            throw new StallException("Only " + rate + " B/s in the last " + elapsed + " ms");
+        }
+    }
+}
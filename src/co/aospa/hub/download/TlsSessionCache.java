@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2026 Paranoid Android
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.aospa.hub.download;
+
+import android.content.Context;
+import android.net.SSLSessionCache;
+import android.util.Log;
+
+import java.net.HttpURLConnection;
+import java.security.GeneralSecurityException;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * TLS sessions of the connections of all the downloads, kept on disk once installed so
+ * that new connections, mirrors and later processes included, resume them instead of
+ * going through a full handshake. Counts how many handshakes were resumed.
+ */
+public class TlsSessionCache {
+
+    private static final String TAG = "TlsSessionCache";
+
+    private static SSLSocketFactory sSocketFactory;
+    private static long sResumedCount;
+    private static long sFullCount;
+
+    private TlsSessionCache() {
+    }
+
+    /**
+     * Keep the sessions in the cache directory of the app. Does nothing if already done.
+     */
+    public static synchronized void install(Context context) {
+        if (sSocketFactory != null) {
+            return;
+        }
+        try {
+            SSLContext sslContext = SSLContext.getInstance("TLS");
+            sslContext.init(null, null, null);
+            SSLSessionCache.install(new SSLSessionCache(context), sslContext);
+            sSocketFactory = sslContext.getSocketFactory();
+        } catch (GeneralSecurityException e) {
+            Log.e(TAG, "Could not set up the TLS session cache", e);
+        }
+    }
+
+    static synchronized SSLSocketFactory getSocketFactory() {
+        return sSocketFactory != null ?
+                sSocketFactory : HttpsURLConnection.getDefaultSSLSocketFactory();
+    }
+
+    /**
+     * Make a connection opened by the platform resume the cached sessions too, the pooled
+     * ones use them already
+     */
+    public static HttpURLConnection useCachedSessions(HttpURLConnection connection) {
+        if (connection instanceof HttpsURLConnection) {
+            ((HttpsURLConnection) connection).setSSLSocketFactory(getSocketFactory());
+        }
+        return connection;
+    }
+
+    /**
+     * Count a handshake, which was resumed if its session is older than the handshake
+     *
+     * @param startMillis the wall clock time when the handshake started
+     */
+    static synchronized void onHandshake(SSLSession session, long startMillis) {
+        if (session.getCreationTime() < startMillis) {
+            sResumedCount++;
+        } else {
+            sFullCount++;
+        }
+    }
+
+    /**
+     * @return the number of handshakes that resumed a session
+     */
+    public static synchronized long getResumedCount() {
+        return sResumedCount;
+    }
+
+    /**
+     * @return the number of full handshakes
+     */
+    public static synchronized long getFullCount() {
+        return sFullCount;
+    }
+}
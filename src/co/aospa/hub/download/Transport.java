@@ -0,0 +1,35 @@
+/*
+ * Copyright (C) 2026 Paranoid Android
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.aospa.hub.download;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/**
+ * Opens the connections of a DownloadClient, so that the way requests reach the
+ * server can be chosen for each download.
+ */
+public interface Transport {
+
+    /**
+     * The connections of the platform, which follow the proxy settings
+     */
+    Transport PLATFORM = url -> TlsSessionCache.useCachedSessions(
+            (HttpURLConnection) url.openConnection());
+
+    HttpURLConnection openConnection(URL url) throws IOException;
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2026 Paranoid Android
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.aospa.hub.misc;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Buffers reused by the code that moves updates around, so that copying a file of
+ * several GB doesn't allocate for every chunk. Buffer sizes are powers of two and
+ * follow the throughput of the transfer using them.
+ */
+public class BufferPool {
+
+    public static final int MIN_BUFFER_SIZE = 64 * 1024;
+    public static final int MAX_BUFFER_SIZE = 1024 * 1024;
+
+    // Slow transfers get smaller buffers, so that the data still reaches the disk regularly
+    private static final long BUFFER_MILLIS = 250;
+    private static final long MAX_POOLED_BYTES = 8 * MAX_BUFFER_SIZE;
+
+    private static final Map<Integer, ArrayDeque<ByteBuffer>> sFreeBuffers = new HashMap<>();
+    private static long sPooledBytes;
+
+    private BufferPool() {
+    }
+
+    private static int getSizeClass(int size) {
+        int sizeClass = MIN_BUFFER_SIZE;
+        while (sizeClass < size && sizeClass < MAX_BUFFER_SIZE) {
+            sizeClass <<= 1;
+        }
+        return sizeClass;
+    }
+
+    /**
+     * Get an empty buffer backed by an array
+     *
+     * @param size the minimum capacity, capped to MAX_BUFFER_SIZE
+     */
+    public static ByteBuffer acquire(int size) {
+        int sizeClass = getSizeClass(size);
+        synchronized (sFreeBuffers) {
+            ArrayDeque<ByteBuffer> buffers = sFreeBuffers.get(sizeClass);
+            if (buffers != null && !buffers.isEmpty()) {
+                sPooledBytes -= sizeClass;
+                return buffers.pop();
+            }
+        }
+        return ByteBuffer.allocate(sizeClass);
+    }
+
+    /**
+     * Give back a buffer obtained with acquire(). The buffer must not be used afterwards.
+     */
+    public static void release(ByteBuffer buffer) {
+        buffer.clear();
+        int sizeClass = buffer.capacity();
+        synchronized (sFreeBuffers) {
+            if (sPooledBytes + sizeClass > MAX_POOLED_BYTES) {
+                return;
+            }
+            ArrayDeque<ByteBuffer> buffers = sFreeBuffers.get(sizeClass);
+            if (buffers == null) {
+                buffers = new ArrayDeque<>();
+                sFreeBuffers.put(sizeClass, buffers);
+            }
+            buffers.push(buffer);
+            sPooledBytes += sizeClass;
+        }
+    }
+
+    /**
+     * @param bytesPerSecond the throughput of the transfer, or -1 if unknown
+     * @return the size of the buffers to use for the transfer
+     */
+    public static int getBufferSize(long bytesPerSecond) {
+        if (bytesPerSecond <= 0) {
+            return MIN_BUFFER_SIZE;
+        }
+        return getSizeClass((int) Math.min(MAX_BUFFER_SIZE,
+                bytesPerSecond * BUFFER_MILLIS / 1000));
+    }
+
+    /**
+     * Swap an empty buffer for one that suits the throughput of the transfer.
+     *
+     * @return the new buffer, or the given one if its size is already right
+     */
+    public static ByteBuffer resize(ByteBuffer buffer, long bytesPerSecond) {
+        int size = getBufferSize(bytesPerSecond);
+        if (size == buffer.capacity()) {
+            return buffer;
+        }
+        release(buffer);
+        return acquire(size);
+    }
+}
@@ -22,6 +22,7 @@ public final class Constants {
 
     public static final String AB_PAYLOAD_BIN_PATH = "payload.bin";
     public static final String AB_PAYLOAD_PROPERTIES_PATH = "payload_properties.txt";
+    public static final String OTA_METADATA_PATH = "META-INF/com/android/metadata";
 
     public static final int AUTO_UPDATES_CHECK_INTERVAL_NEVER = 0;
     public static final int AUTO_UPDATES_CHECK_INTERVAL_DAILY = 1;
@@ -31,16 +32,21 @@ public final class Constants {
     public static final String PREF_LAST_UPDATE_CHECK = "last_update_check";
     public static final String PREF_AUTO_UPDATES_CHECK_INTERVAL = "auto_updates_check_interval";
     public static final String PREF_AB_PERF_MODE = "ab_perf_mode";
+    public static final String PREF_AB_STREAMING = "ab_streaming";
+    public static final String PREF_AB_INSTALL_WHILE_DOWNLOADING = "ab_install_while_downloading";
     public static final String PREF_MOBILE_DATA_WARNING = "pref_mobile_data_warning";
+    public static final String PREF_MULTIPATH_DOWNLOADS = "multipath_downloads";
     public static final String PREF_NEEDS_REBOOT_ID = "needs_reboot_id";
 
     public static final String UNCRYPT_FILE_EXT = ".uncrypt";
 
     public static final String PROP_AB_DEVICE = "ro.build.ab_update";
     public static final String PROP_BUILD_DATE = "ro.build.date.utc";
+    public static final String PROP_BUILD_FINGERPRINT = "ro.build.fingerprint";
     public static final String PROP_BUILD_VERSION = "ro.pa.version.flavor";
     public static final String PROP_BUILD_VERSION_INCREMENTAL = "ro.build.version.incremental";
     public static final String PROP_DEVICE = "ro.pa.device";
+    public static final String PROP_PRODUCT_DEVICE = "ro.product.device";
     public static final String PROP_RELEASE_TYPE = "ro.pa.build.variant";
     public static final String PROP_VERSION_CODE = "ro.pa.version.code";
     public static final String PROP_UPDATER_ALLOW_DOWNGRADING = "aospa.updater.allow_downgrading";
@@ -52,6 +58,17 @@ public final class Constants {
     public static final String PREF_INSTALL_AGAIN = "install_again";
     public static final String PREF_INSTALL_NOTIFIED = "install_notified";
 
+    public static final String PREF_DOWNLOAD_RUNS = "download_runs";
+    public static final String PREF_DOWNLOAD_ERRORS = "download_errors";
+    public static final String PREF_DOWNLOAD_STALLS = "download_stalls";
+    public static final String PREF_DOWNLOAD_COMPLETIONS = "download_completions";
+    public static final String PREF_DOWNLOAD_COMPLETION_MILLIS = "download_completion_millis";
+    // Followed by the socket options the bytes were downloaded with
+    public static final String PREF_DOWNLOAD_SOCKET_BYTES = "download_socket_bytes_";
+    public static final String PREF_DOWNLOAD_SOCKET_MILLIS = "download_socket_millis_";
+
+    public static final int TRAFFIC_STATS_TAG_DOWNLOADS = 1;
+
     public static final String UPDATE_RECOVERY_EXEC = "/vendor/bin/install-recovery.sh";
     public static final String UPDATE_RECOVERY_PROPERTY = "persist.vendor.recovery_update";
 }
@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2026 Paranoid Android
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.aospa.hub.misc;
+
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.StructStat;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Objects;
+
+/**
+ * Identifies a file as it is now without reading it: its path, size, modification
+ * time, device and inode. Replacing the file or writing to it changes at least one
+ * of them, the content itself isn't looked at.
+ */
+public class FileFingerprint {
+
+    private static final String SEPARATOR = ":";
+
+    private final long mSize;
+    private final long mLastModified;
+    private final long mDevice;
+    private final long mInode;
+    private final String mPath;
+
+    private FileFingerprint(long size, long lastModified, long device, long inode,
+            String path) {
+        mSize = size;
+        mLastModified = lastModified;
+        mDevice = device;
+        mInode = inode;
+        mPath = path;
+    }
+
+    public static FileFingerprint of(File file) throws IOException {
+        String path = file.getAbsolutePath();
+        StructStat stat;
+        try {
+            stat = Os.stat(path);
+        } catch (ErrnoException e) {
+            throw e.rethrowAsIOException();
+        }
+        return new FileFingerprint(stat.st_size, file.lastModified(), stat.st_dev,
+                stat.st_ino, path);
+    }
+
+    /**
+     * @return the fingerprint returned by toString(), null if value isn't one
+     */
+    public static FileFingerprint parse(String value) {
+        if (value == null) {
+            return null;
+        }
+        // The path goes last, it may contain anything
+        String[] fields = value.split(SEPARATOR, 5);
+        if (fields.length != 5) {
+            return null;
+        }
+        try {
+            return new FileFingerprint(Long.parseLong(fields[0]), Long.parseLong(fields[1]),
+                    Long.parseLong(fields[2]), Long.parseLong(fields[3]), fields[4]);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return mSize + SEPARATOR + mLastModified + SEPARATOR + mDevice + SEPARATOR +
+                mInode + SEPARATOR + mPath;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof FileFingerprint)) {
+            return false;
+        }
+        FileFingerprint other = (FileFingerprint) o;
+        return mSize == other.mSize && mLastModified == other.mLastModified &&
+                mDevice == other.mDevice && mInode == other.mInode &&
+                mPath.equals(other.mPath);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(mSize, mLastModified, mDevice, mInode, mPath);
+    }
+}
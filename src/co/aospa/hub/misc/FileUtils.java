@@ -15,15 +15,18 @@
  */
 package co.aospa.hub.misc;
 
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
 import android.util.Log;
 
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
-import java.nio.channels.ReadableByteChannel;
 
 public class FileUtils {
 
@@ -33,43 +36,57 @@ public class FileUtils {
         void update(int progress);
     }
 
-    private static class CallbackByteChannel implements ReadableByteChannel {
-        private ProgressCallBack mCallback;
-        private long mSize;
-        private ReadableByteChannel mReadableByteChannel;
-        private long mSizeRead;
-        private int mProgress;
-
-        private CallbackByteChannel(ReadableByteChannel readableByteChannel, long expectedSize,
-                ProgressCallBack callback) {
-            this.mCallback = callback;
-            this.mSize = expectedSize;
-            this.mReadableByteChannel = readableByteChannel;
-        }
-
-        @Override
-        public void close() throws IOException {
-            mReadableByteChannel.close();
+    /**
+     * Write the content of the buffer at the given position of the channel and clear
+     * the buffer.
+     *
+     * @return the position after the last byte written
+     */
+    public static long write(FileChannel channel, ByteBuffer buffer, long position)
+            throws IOException {
+        buffer.flip();
+        try {
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+        } finally {
+            buffer.clear();
         }
+        return position;
+    }
 
-        @Override
-        public boolean isOpen() {
-            return mReadableByteChannel.isOpen();
+    /**
+     * Reserve the space needed for the file to grow up to the given length, so that
+     * it doesn't run out of space halfway or get fragmented while it's written. The
+     * file is resized to the given length, the content up to there is kept.
+     *
+     * @return false if there isn't enough space for the file
+     */
+    public static boolean preallocate(RandomAccessFile file, File path, long length)
+            throws IOException {
+        long currentLength = file.length();
+        if (currentLength >= length) {
+            file.setLength(length);
+            return true;
         }
-
-        @Override
-        public int read(ByteBuffer bb) throws IOException {
-            int read;
-            if ((read = mReadableByteChannel.read(bb)) > 0) {
-                mSizeRead += read;
-                int progress = mSize > 0 ? Math.round(mSizeRead * 100.f / mSize) : -1;
-                if (mProgress != progress) {
-                    mCallback.update(progress);
-                    mProgress = progress;
-                }
+        try {
+            Os.posix_fallocate(file.getFD(), 0, length);
+            return true;
+        } catch (ErrnoException e) {
+            if (e.errno == OsConstants.ENOSPC) {
+                // Give back what might have been allocated
+                file.setLength(currentLength);
+                return false;
+            } else if (e.errno != OsConstants.EOPNOTSUPP && e.errno != OsConstants.ENOSYS) {
+                throw e.rethrowAsIOException();
             }
-            return read;
         }
+        Log.d(TAG, "Could not preallocate " + path + ", checking the free space");
+        if (path.getUsableSpace() < length - currentLength) {
+            return false;
+        }
+        file.setLength(length);
+        return true;
     }
 
     public static void copyFile(File sourceFile, File destFile, ProgressCallBack progressCallBack)
@@ -77,9 +94,22 @@ public class FileUtils {
         try (FileChannel sourceChannel = new FileInputStream(sourceFile).getChannel();
              FileChannel destChannel = new FileOutputStream(destFile).getChannel()) {
             if (progressCallBack != null) {
-                ReadableByteChannel readableByteChannel = new CallbackByteChannel(sourceChannel,
-                        sourceFile.length(), progressCallBack);
-                destChannel.transferFrom(readableByteChannel, 0, sourceChannel.size());
+                long size = sourceChannel.size();
+                long position = 0;
+                int progress = 0;
+                ByteBuffer buffer = BufferPool.acquire(BufferPool.MAX_BUFFER_SIZE);
+                try {
+                    while (sourceChannel.read(buffer) > 0) {
+                        position = write(destChannel, buffer, position);
+                        int newProgress = size > 0 ? Math.round(position * 100.f / size) : -1;
+                        if (progress != newProgress) {
+                            progressCallBack.update(newProgress);
+                            progress = newProgress;
+                        }
+                    }
+                } finally {
+                    BufferPool.release(buffer);
+                }
             } else {
                 destChannel.transferFrom(sourceChannel, 0, sourceChannel.size());
             }
@@ -0,0 +1,301 @@
+/*
+ * Copyright (C) 2026 Paranoid Android
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.aospa.hub.misc;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads a zip file through memory maps of its central directory and local headers.
+ * Entries are looked up in place, without creating an object for each of them, and
+ * data offsets come from the local headers since their extra fields can differ from
+ * the central directory ones, e.g. when the entries are aligned.
+ */
+public class MappedZip implements Closeable {
+
+    private static final int EOCD_SIGNATURE = 0x06054b50;
+    private static final int EOCD_SIZE = 22;
+    private static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+    private static final int ZIP64_LOCATOR_SIZE = 20;
+    private static final int ZIP64_EOCD_SIGNATURE = 0x06064b50;
+    private static final int ZIP64_EOCD_SIZE = 56;
+    private static final int CD_SIGNATURE = 0x02014b50;
+    private static final int CD_HEADER_SIZE = 46;
+    private static final int LOCAL_SIGNATURE = 0x04034b50;
+    private static final int LOCAL_HEADER_SIZE = 30;
+    private static final int ZIP64_EXTRA_ID = 0x0001;
+    private static final long ZIP64_MAGIC = 0xffffffffL;
+
+    private static final int MAX_TAIL_SIZE = EOCD_SIZE + 0xffff;
+    private static final int MAX_ENTRY_SIZE = 1024 * 1024;
+
+    private final RandomAccessFile mFile;
+    private final FileChannel mChannel;
+    private final long mLength;
+    private ByteBuffer mCentralDirectory;
+    private long mEntryCount;
+
+    private MappedZip(File file) throws IOException {
+        mFile = new RandomAccessFile(file, "r");
+        mChannel = mFile.getChannel();
+        mLength = mChannel.size();
+    }
+
+    public static MappedZip open(File file) throws IOException {
+        MappedZip zip = new MappedZip(file);
+        try {
+            zip.mapCentralDirectory();
+        } catch (IOException | RuntimeException e) {
+            zip.close();
+            throw e;
+        }
+        return zip;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mFile.close();
+    }
+
+    public boolean hasEntry(String name) {
+        return find(name) != -1;
+    }
+
+    /**
+     * @return the offset of the data of an entry in the file
+     * @throws IllegalArgumentException if there's no such entry
+     */
+    public long getDataOffset(String name) throws IOException {
+        int pos = getEntry(name);
+        long localHeaderOffset = getLocalHeaderOffset(pos);
+        if (localHeaderOffset < 0 || localHeaderOffset + LOCAL_HEADER_SIZE > mLength) {
+            throw new IOException("Invalid local header offset for " + name);
+        }
+        ByteBuffer header = map(localHeaderOffset, LOCAL_HEADER_SIZE);
+        if (header.getInt(0) != LOCAL_SIGNATURE) {
+            throw new IOException("Invalid local header for " + name);
+        }
+        return localHeaderOffset + LOCAL_HEADER_SIZE + getShort(header, 26) +
+                getShort(header, 28);
+    }
+
+    /**
+     * @return the uncompressed size of an entry
+     * @throws IllegalArgumentException if there's no such entry
+     */
+    public long getSize(String name) {
+        return getZip64Values(getEntry(name))[0];
+    }
+
+    /**
+     * Read and uncompress a small entry
+     *
+     * @throws IllegalArgumentException if there's no such entry
+     */
+    public byte[] read(String name) throws IOException {
+        int pos = getEntry(name);
+        int method = getShort(mCentralDirectory, pos + 10);
+        long[] values = getZip64Values(pos);
+        long size = values[0];
+        long compressedSize = values[1];
+        if (size > MAX_ENTRY_SIZE || compressedSize > MAX_ENTRY_SIZE) {
+            throw new IOException(name + " is too large to be read");
+        }
+        long offset = getDataOffset(name);
+        if (offset + compressedSize > mLength) {
+            throw new IOException("Truncated entry " + name);
+        }
+        byte[] data = new byte[(int) compressedSize];
+        map(offset, (int) compressedSize).get(data);
+        switch (method) {
+            case 0:
+                return data;
+            case 8:
+                return inflate(data, (int) size);
+            default:
+                throw new IOException("Unsupported compression method " + method +
+                        " for " + name);
+        }
+    }
+
+    private void mapCentralDirectory() throws IOException {
+        int tailSize = (int) Math.min(mLength, MAX_TAIL_SIZE);
+        long tailOffset = mLength - tailSize;
+        ByteBuffer tail = map(tailOffset, tailSize);
+
+        int eocd = -1;
+        for (int i = tailSize - EOCD_SIZE; i >= 0; i--) {
+            if (tail.getInt(i) == EOCD_SIGNATURE &&
+                    i + EOCD_SIZE + getShort(tail, i + 20) == tailSize) {
+                eocd = i;
+                break;
+            }
+        }
+        if (eocd == -1) {
+            throw new IOException("End of central directory not found");
+        }
+        long entries = getShort(tail, eocd + 10);
+        long cdSize = getUnsignedInt(tail, eocd + 12);
+        long cdOffset = getUnsignedInt(tail, eocd + 16);
+
+        if (entries == 0xffff || cdSize == ZIP64_MAGIC || cdOffset == ZIP64_MAGIC) {
+            int locator = eocd - ZIP64_LOCATOR_SIZE;
+            if (locator < 0 || tail.getInt(locator) != ZIP64_LOCATOR_SIGNATURE) {
+                throw new IOException("ZIP64 end of central directory locator not found");
+            }
+            long zip64Offset = tail.getLong(locator + 8);
+            if (zip64Offset < 0 || zip64Offset + ZIP64_EOCD_SIZE > mLength) {
+                throw new IOException("Invalid ZIP64 end of central directory offset");
+            }
+            ByteBuffer zip64 = map(zip64Offset, ZIP64_EOCD_SIZE);
+            if (zip64.getInt(0) != ZIP64_EOCD_SIGNATURE) {
+                throw new IOException("Invalid ZIP64 end of central directory");
+            }
+            entries = zip64.getLong(32);
+            cdSize = zip64.getLong(40);
+            cdOffset = zip64.getLong(48);
+        }
+
+        if (cdSize > Integer.MAX_VALUE || cdOffset < 0 || cdOffset + cdSize > mLength) {
+            throw new IOException("Invalid central directory, offset=" + cdOffset +
+                    " size=" + cdSize);
+        }
+        mCentralDirectory = map(cdOffset, (int) cdSize);
+        mEntryCount = entries;
+    }
+
+    private ByteBuffer map(long offset, int size) throws IOException {
+        return mChannel.map(FileChannel.MapMode.READ_ONLY, offset, size)
+                .order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private int getEntry(String name) {
+        int pos = find(name);
+        if (pos == -1) {
+            throw new IllegalArgumentException("Entry " + name + " not found");
+        }
+        return pos;
+    }
+
+    /**
+     * @return the position of the central directory header of an entry, -1 if none
+     */
+    private int find(String name) {
+        byte[] target = name.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer cd = mCentralDirectory;
+        int limit = cd.limit();
+        int pos = 0;
+        for (long i = 0; i < mEntryCount && pos + CD_HEADER_SIZE <= limit; i++) {
+            if (cd.getInt(pos) != CD_SIGNATURE) {
+                return -1;
+            }
+            int nameLength = getShort(cd, pos + 28);
+            if (nameLength == target.length && pos + CD_HEADER_SIZE + nameLength <= limit &&
+                    nameEquals(cd, pos + CD_HEADER_SIZE, target)) {
+                return pos;
+            }
+            pos += CD_HEADER_SIZE + nameLength + getShort(cd, pos + 30) +
+                    getShort(cd, pos + 32);
+        }
+        return -1;
+    }
+
+    private static boolean nameEquals(ByteBuffer cd, int pos, byte[] target) {
+        for (int i = 0; i < target.length; i++) {
+            if (cd.get(pos + i) != target[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the uncompressed size, compressed size and local header offset of the
+     * entry at pos, taken from the ZIP64 extra field when they don't fit
+     */
+    private long[] getZip64Values(int pos) {
+        ByteBuffer cd = mCentralDirectory;
+        long[] values = {
+                getUnsignedInt(cd, pos + 24),
+                getUnsignedInt(cd, pos + 20),
+                getUnsignedInt(cd, pos + 42),
+        };
+        int nameLength = getShort(cd, pos + 28);
+        int extra = pos + CD_HEADER_SIZE + nameLength;
+        int extraEnd = Math.min(cd.limit(), extra + getShort(cd, pos + 30));
+        while (extra + 4 <= extraEnd) {
+            int id = getShort(cd, extra);
+            int length = getShort(cd, extra + 2);
+            int field = extra + 4;
+            if (id == ZIP64_EXTRA_ID) {
+                for (int i = 0; i < values.length; i++) {
+                    if (values[i] == ZIP64_MAGIC && field + 8 <= extraEnd) {
+                        values[i] = cd.getLong(field);
+                        field += 8;
+                    }
+                }
+                break;
+            }
+            extra = field + length;
+        }
+        return values;
+    }
+
+    private long getLocalHeaderOffset(int pos) {
+        return getZip64Values(pos)[2];
+    }
+
+    private static byte[] inflate(byte[] data, int size) throws IOException {
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(data);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(size);
+            byte[] buf = new byte[8192];
+            while (!inflater.finished()) {
+                int count = inflater.inflate(buf);
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("Truncated compressed data");
+                }
+                out.write(buf, 0, count);
+                if (out.size() > MAX_ENTRY_SIZE) {
+                    throw new IOException("Entry larger than declared");
+                }
+            }
+            return out.toByteArray();
+        } catch (DataFormatException e) {
+            throw new IOException("Invalid compressed data", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static int getShort(ByteBuffer buf, int pos) {
+        return buf.getShort(pos) & 0xffff;
+    }
+
+    private static long getUnsignedInt(ByteBuffer buf, int pos) {
+        return buf.getInt(pos) & 0xffffffffL;
+    }
+}
@@ -24,6 +24,9 @@ import android.content.IntentFilter;
 import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
 import android.net.ConnectivityManager;
+import android.net.LinkProperties;
+import android.net.Network;
+import android.net.NetworkCapabilities;
 import android.net.NetworkInfo;
 import android.os.BatteryManager;
 import android.os.Environment;
@@ -40,7 +43,12 @@ import org.json.JSONObject;
 import co.aospa.hub.R;
 import co.aospa.hub.UpdatesDbHelper;
 import co.aospa.hub.controller.UpdaterService;
+import co.aospa.hub.download.ConnectionPool;
 import co.aospa.hub.download.DownloadClient;
+import co.aospa.hub.download.DownloadSocketFactory;
+import co.aospa.hub.download.RemoteZip;
+import co.aospa.hub.download.TlsSessionCache;
+import co.aospa.hub.download.Transport;
 import co.aospa.hub.model.Update;
 import co.aospa.hub.model.UpdateBaseInfo;
 import co.aospa.hub.model.UpdateInfo;
@@ -50,21 +58,30 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Enumeration;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipFile;
 
 public class Utils {
 
     private static final String TAG = "Utils";
 
+    private static final int WARM_UP_TIMEOUT_MS = 10 * 1000;
+
+    private static DownloadSocketFactory sDownloadSocketFactory;
+
+    // The servers being connected to ahead of time, so that each is connected to once
+    private static final Set<String> sWarmingUp = new HashSet<>();
+
     private static final int BATTERY_PLUGGED_ANY = BatteryManager.BATTERY_PLUGGED_AC
             | BatteryManager.BATTERY_PLUGGED_USB
             | BatteryManager.BATTERY_PLUGGED_WIRELESS;
@@ -91,6 +108,9 @@ public class Utils {
         update.setFileSize(object.getLong("size"));
         update.setDownloadUrl(object.getString("url"));
         update.setVersion(object.getString("version"));
+        if (!object.isNull("sha256")) {
+            update.setSha256(object.getString("sha256"));
+        }
         return update;
     }
 
@@ -200,6 +220,120 @@ public class Utils {
         context.startService(intent);
     }
 
+    public static ConnectionPool getConnectionPool(Context context) {
+        TlsSessionCache.install(context);
+        ConnectionPool pool = context.getResources().getBoolean(R.bool.config_useHttp2) ?
+                ConnectionPool.getHttp2Instance() : ConnectionPool.getInstance();
+        pool.setSocketFactory(getDownloadSocketFactory(context));
+        return pool;
+    }
+
+    /**
+     * @return the factory of the download sockets, with the options of the device
+     */
+    public static synchronized DownloadSocketFactory getDownloadSocketFactory(
+            Context context) {
+        if (sDownloadSocketFactory == null) {
+            sDownloadSocketFactory = new DownloadSocketFactory(
+                    context.getResources().getInteger(R.integer.download_receive_buffer) * 1024,
+                    context.getResources().getBoolean(R.bool.config_downloadTcpNoDelay),
+                    Constants.TRAFFIC_STATS_TAG_DOWNLOADS);
+        }
+        return sDownloadSocketFactory;
+    }
+
+    /**
+     * @param network the network to download from, null for the default one
+     * @return the transport of the update downloads. The connection pool doesn't
+     * know about proxies, the platform connections are used when there's one.
+     */
+    public static Transport getDownloadTransport(Context context, Network network) {
+        if (hasProxy(context, network)) {
+            TlsSessionCache.install(context);
+            return network != null ? url -> TlsSessionCache.useCachedSessions(
+                    (HttpURLConnection) network.openConnection(url)) : Transport.PLATFORM;
+        }
+        ConnectionPool pool = getConnectionPool(context);
+        return network != null ? pool.getTransport(network) : pool;
+    }
+
+    private static boolean hasProxy(Context context, Network network) {
+        ConnectivityManager cm = (ConnectivityManager) context.getSystemService(
+                Context.CONNECTIVITY_SERVICE);
+        // The global proxy, or the one of the default network
+        if (cm.getDefaultProxy() != null) {
+            return true;
+        }
+        LinkProperties linkProperties = network != null ? cm.getLinkProperties(network) : null;
+        return linkProperties != null && linkProperties.getHttpProxy() != null;
+    }
+
+    /**
+     * Connect to the update server and to the changelog server in the background, so
+     * that fetching the list and the changelog skips DNS, TCP and TLS setup
+     */
+    public static void warmUpConnections(Context context) {
+        // The fetches go through getDownloadTransport(context, null)
+        if (!isNetworkAvailable(context) || hasProxy(context, null)) {
+            return;
+        }
+        ConnectionPool pool = getConnectionPool(context);
+        preconnectAsync(pool, getServerURL(context), null);
+        preconnectAsync(pool, context.getString(R.string.menu_changelog_url), null);
+    }
+
+    /**
+     * Connect to the server of an update in the background, on the network and through
+     * the transport its download will use, so that starting the download skips DNS,
+     * TCP and TLS setup
+     */
+    public static void warmUpConnections(Context context, String url) {
+        ConnectivityManager cm = (ConnectivityManager) context.getSystemService(
+                Context.CONNECTIVITY_SERVICE);
+        Network network = cm.getActiveNetwork();
+        if (network == null || hasProxy(context, network)) {
+            // Downloads through a proxy use the platform connections
+            return;
+        }
+        preconnectAsync(getConnectionPool(context), url, network);
+    }
+
+    private static void preconnectAsync(ConnectionPool pool, String url, Network network) {
+        String key = network != null ? url + "@" + network : url;
+        synchronized (sWarmingUp) {
+            if (!sWarmingUp.add(key)) {
+                return;
+            }
+        }
+        new Thread(() -> {
+            try {
+                pool.preconnect(new URL(url), network, WARM_UP_TIMEOUT_MS);
+            } catch (IOException e) {
+                Log.d(TAG, "Could not connect to " + url + " ahead of time", e);
+            } finally {
+                synchronized (sWarmingUp) {
+                    sWarmingUp.remove(key);
+                }
+            }
+        }).start();
+    }
+
+    /**
+     * @return whether downloads can use the given network without asking the user
+     */
+    public static boolean isDownloadAllowed(Context context, Network network) {
+        ConnectivityManager cm = (ConnectivityManager) context.getSystemService(
+                Context.CONNECTIVITY_SERVICE);
+        NetworkCapabilities capabilities = network != null ?
+                cm.getNetworkCapabilities(network) : null;
+        if (capabilities != null &&
+                capabilities.hasCapability(NetworkCapabilities.NET_CAPABILITY_NOT_METERED)) {
+            return true;
+        }
+        SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(context);
+        return !preferences.getBoolean(Constants.PREF_MOBILE_DATA_WARNING, true);
+    }
+
     public static boolean isNetworkAvailable(Context context) {
         ConnectivityManager cm = (ConnectivityManager) context.getSystemService(
                 Context.CONNECTIVITY_SERVICE);
@@ -242,36 +376,6 @@ public class Utils {
         return false;
     }
 
-    /**
-     * Get the offset to the compressed data of a file inside the given zip
-     *
-     * @param zipFile input zip file
-     * @param entryPath full path of the entry
-     * @return the offset of the compressed, or -1 if not found
-     * @throws IllegalArgumentException if the given entry is not found
-     */
-    public static long getZipEntryOffset(ZipFile zipFile, String entryPath) {
-        // Each entry has an header of (30 + n + m) bytes
-        // 'n' is the length of the file name
-        // 'm' is the length of the extra field
-        final int FIXED_HEADER_SIZE = 30;
-        Enumeration<? extends ZipEntry> zipEntries = zipFile.entries();
-        long offset = 0;
-        while (zipEntries.hasMoreElements()) {
-            ZipEntry entry = zipEntries.nextElement();
-            int n = entry.getName().length();
-            int m = entry.getExtra() == null ? 0 : entry.getExtra().length;
-            int headerSize = FIXED_HEADER_SIZE + n + m;
-            offset += headerSize;
-            if (entry.getName().equals(entryPath)) {
-                return offset;
-            }
-            offset += entry.getCompressedSize();
-        }
-        Log.e(TAG, "Entry " + entryPath + " not found");
-        throw new IllegalArgumentException("The given entry was not found");
-    }
-
     public static void removeUncryptFiles(File downloadPath) {
         File[] uncryptFiles = downloadPath.listFiles(
                 (dir, name) -> name.endsWith(Constants.UNCRYPT_FILE_EXT));
@@ -365,16 +469,79 @@ public class Utils {
         return SystemProperties.getBoolean(Constants.PROP_AB_DEVICE, false);
     }
 
-    public static boolean isABUpdate(ZipFile zipFile) {
-        return zipFile.getEntry(Constants.AB_PAYLOAD_BIN_PATH) != null &&
-                zipFile.getEntry(Constants.AB_PAYLOAD_PROPERTIES_PATH) != null;
+    public static boolean isABUpdate(RemoteZip zip) {
+        return zip.getEntry(Constants.AB_PAYLOAD_BIN_PATH) != null &&
+                zip.getEntry(Constants.AB_PAYLOAD_PROPERTIES_PATH) != null;
+    }
+
+    /**
+     * Read the OTA metadata of a package on the server, without downloading it
+     *
+     * @return the properties of META-INF/com/android/metadata
+     */
+    public static Map<String, String> readOtaMetadata(RemoteZip zip) throws IOException {
+        Map<String, String> metadata = new HashMap<>();
+        RemoteZip.Entry entry = zip.getEntry(Constants.OTA_METADATA_PATH);
+        if (entry == null) {
+            throw new IOException("No " + Constants.OTA_METADATA_PATH + " in the package");
+        }
+        String content = new String(zip.readEntry(entry), StandardCharsets.UTF_8);
+        for (String line : content.split("\n")) {
+            int index = line.indexOf('=');
+            if (index > 0) {
+                metadata.put(line.substring(0, index).trim(), line.substring(index + 1).trim());
+            }
+        }
+        return metadata;
     }
 
-    public static boolean isABUpdate(File file) throws IOException {
-        ZipFile zipFile = new ZipFile(file);
-        boolean isAB = isABUpdate(zipFile);
-        zipFile.close();
-        return isAB;
+    /**
+     * Check that a package can be installed on this device from its central directory
+     * and OTA metadata
+     *
+     * @return why the package can't be installed, or null if it can
+     */
+    public static String getIncompatibility(RemoteZip zip) throws IOException {
+        Map<String, String> metadata = readOtaMetadata(zip);
+        boolean isAB = isABUpdate(zip);
+        if (isAB != isABDevice()) {
+            return isAB ? "A/B package, the device isn't A/B" :
+                    "Non-A/B package, the device is A/B";
+        }
+        if (isAB) {
+            RemoteZip.Entry properties = zip.getEntry(Constants.AB_PAYLOAD_PROPERTIES_PATH);
+            if (zip.readEntry(properties).length == 0) {
+                return "Empty " + Constants.AB_PAYLOAD_PROPERTIES_PATH;
+            }
+        }
+        String otaType = metadata.get("ota-type");
+        if (otaType != null && !otaType.equals(isAB ? "AB" : "BLOCK")) {
+            return "Unsupported package type " + otaType;
+        }
+        String preDevice = metadata.get("pre-device");
+        String device = SystemProperties.get(Constants.PROP_PRODUCT_DEVICE);
+        if (preDevice != null && !Arrays.asList(preDevice.split("\\|")).contains(device)) {
+            return "Package for " + preDevice + ", not " + device;
+        }
+        // Only incremental packages have a pre-build
+        String preBuild = metadata.get("pre-build");
+        String fingerprint = SystemProperties.get(Constants.PROP_BUILD_FINGERPRINT);
+        if (preBuild != null && !Arrays.asList(preBuild.split("\\|")).contains(fingerprint)) {
+            return "Package for build " + preBuild + ", not " + fingerprint;
+        }
+        String postTimestamp = metadata.get("post-timestamp");
+        if (postTimestamp != null &&
+                !SystemProperties.getBoolean(Constants.PROP_UPDATER_ALLOW_DOWNGRADING, false)) {
+            try {
+                if (Long.parseLong(postTimestamp) <
+                        SystemProperties.getLong(Constants.PROP_BUILD_DATE, 0)) {
+                    return "Package older than the current build";
+                }
+            } catch (NumberFormatException e) {
+                Log.e(TAG, "Invalid post-timestamp " + postTimestamp);
+            }
+        }
+        return null;
     }
 
     public static boolean hasTouchscreen(Context context) {
@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2026 Paranoid Android
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.aospa.hub.model;
+
+import java.io.File;
+
+/**
+ * What the installers need to know about a downloaded package, read once from the
+ * zip and valid as long as the file keeps the size and modification time it had.
+ */
+public class PackageMetadata {
+
+    private final long mFileSize;
+    private final long mLastModified;
+    private final boolean mAB;
+    private final long mPayloadOffset;
+    private final String[] mPayloadProperties;
+
+    public PackageMetadata(long fileSize, long lastModified, boolean ab, long payloadOffset,
+            String[] payloadProperties) {
+        mFileSize = fileSize;
+        mLastModified = lastModified;
+        mAB = ab;
+        mPayloadOffset = payloadOffset;
+        mPayloadProperties = payloadProperties;
+    }
+
+    public long getFileSize() {
+        return mFileSize;
+    }
+
+    public long getLastModified() {
+        return mLastModified;
+    }
+
+    public boolean isAB() {
+        return mAB;
+    }
+
+    /**
+     * @return the offset of payload.bin in the package, -1 if it's not an A/B package
+     */
+    public long getPayloadOffset() {
+        return mPayloadOffset;
+    }
+
+    /**
+     * @return the lines of payload_properties.txt, null if it's not an A/B package
+     */
+    public String[] getPayloadProperties() {
+        return mPayloadProperties;
+    }
+
+    /**
+     * @return whether this was read from the given file as it is now
+     */
+    public boolean matches(File file) {
+        return file.length() == mFileSize && file.lastModified() == mLastModified;
+    }
+}
@@ -28,6 +28,9 @@ public class Update extends UpdateBase implements UpdateInfo {
     private int mInstallProgress;
     private boolean mAvailableOnline;
     private boolean mIsFinalizing;
+    private String mETag;
+    private String mLastModified;
+    private String mValidatorUrl;
 
     public Update() {
     }
@@ -47,6 +50,9 @@ public class Update extends UpdateBase implements UpdateInfo {
         mInstallProgress = update.getInstallProgress();
         mAvailableOnline = update.getAvailableOnline();
         mIsFinalizing = update.getFinalizing();
+        mETag = update.getETag();
+        mLastModified = update.getLastModified();
+        mValidatorUrl = update.getValidatorUrl();
     }
 
     @Override
@@ -129,4 +135,34 @@ public class Update extends UpdateBase implements UpdateInfo {
     public void setFinalizing(boolean finalizing) {
         mIsFinalizing = finalizing;
     }
+
+    @Override
+    public String getETag() {
+        return mETag;
+    }
+
+    public void setETag(String eTag) {
+        mETag = eTag;
+    }
+
+    @Override
+    public String getLastModified() {
+        return mLastModified;
+    }
+
+    public void setLastModified(String lastModified) {
+        mLastModified = lastModified;
+    }
+
+    /**
+     * @return the url of the response the ETag and Last-Modified come from
+     */
+    @Override
+    public String getValidatorUrl() {
+        return mValidatorUrl;
+    }
+
+    public void setValidatorUrl(String validatorUrl) {
+        mValidatorUrl = validatorUrl;
+    }
 }
@@ -37,4 +37,10 @@ public interface UpdateInfo extends UpdateBaseInfo {
     boolean getAvailableOnline();
 
     boolean getFinalizing();
+
+    String getETag();
+
+    String getLastModified();
+
+    String getValidatorUrl();
 }
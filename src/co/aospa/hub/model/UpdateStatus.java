@@ -22,6 +22,7 @@ public enum UpdateStatus {
     DOWNLOADED,
     PAUSED,
     PAUSED_ERROR,
+    PAUSED_NO_SPACE,
     DELETED,
     VERIFYING,
     VERIFIED,
@@ -0,0 +1,211 @@
+/*
+ * Copyright (C) 2026 Paranoid Android
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.aospa.hub.controller;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.anyLong;
+import static org.mockito.Mockito.anyString;
+import static org.mockito.Mockito.aryEq;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import android.content.Context;
+import android.os.ServiceSpecificException;
+import android.os.UpdateEngine;
+import android.os.UpdateEngineCallback;
+
+import androidx.preference.PreferenceManager;
+
+import co.aospa.hub.download.RemoteZip;
+import co.aospa.hub.download.Transport;
+import co.aospa.hub.model.Update;
+import co.aospa.hub.model.UpdateStatus;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+@RunWith(RobolectricTestRunner.class)
+public class ABUpdateInstallerTest {
+
+    private static final String DOWNLOAD_ID = "update";
+    private static final String URL = "https://example.com/ota-package.zip";
+    private static final long LENGTH = 4096;
+    private static final long OFFSET = 1024;
+    private static final long SIZE = 2048;
+    private static final String[] HEADERS = {"FILE_HASH=abc", "FILE_SIZE=2048"};
+
+    private Context mContext;
+    private Update mUpdate;
+    private UpdateEngine mUpdateEngine;
+    private ABUpdateInstaller mInstaller;
+
+    @Before
+    public void setUp() {
+        mContext = RuntimeEnvironment.application;
+        PreferenceManager.getDefaultSharedPreferences(mContext).edit().clear().commit();
+
+        mUpdate = new Update();
+        mUpdate.setDownloadId(DOWNLOAD_ID);
+        mUpdate.setStatus(UpdateStatus.STARTING);
+        UpdaterController updaterController = mock(UpdaterController.class);
+        when(updaterController.getActualUpdate(DOWNLOAD_ID)).thenReturn(mUpdate);
+
+        mUpdateEngine = mock(UpdateEngine.class);
+        when(mUpdateEngine.bind(any(UpdateEngineCallback.class))).thenReturn(true);
+        mInstaller = new ABUpdateInstaller(mContext, updaterController, mUpdateEngine);
+    }
+
+    @Test
+    public void streamedPayloadAccepted() {
+        ABUpdateInstaller.RemotePayload payload =
+                new ABUpdateInstaller.RemotePayload(URL, LENGTH, OFFSET, SIZE, HEADERS);
+
+        assertTrue(mInstaller.install(DOWNLOAD_ID, payload, null));
+
+        verify(mUpdateEngine).applyPayload(URL, OFFSET, SIZE, HEADERS);
+        assertEquals(UpdateStatus.INSTALLING, mUpdate.getStatus());
+        assertTrue(ABUpdateInstaller.isInstallingUpdate(mContext, DOWNLOAD_ID));
+    }
+
+    @Test
+    public void streamedPayloadRefused() {
+        doThrow(new ServiceSpecificException(1, "Refused"))
+                .when(mUpdateEngine).applyPayload(anyString(), anyLong(), anyLong(), any());
+        ABUpdateInstaller.RemotePayload payload =
+                new ABUpdateInstaller.RemotePayload(URL, LENGTH, OFFSET, SIZE, HEADERS);
+
+        // The caller downloads the update instead
+        assertFalse(mInstaller.install(DOWNLOAD_ID, payload, null));
+
+        assertEquals(UpdateStatus.INSTALLATION_FAILED, mUpdate.getStatus());
+        assertFalse(ABUpdateInstaller.isInstallingUpdate(mContext));
+    }
+
+    @Test
+    public void payloadOfServedPackage() throws IOException {
+        byte[] payload = new byte[64 * 1024];
+        new Random(0).nextBytes(payload);
+        String[] properties = {"FILE_HASH=abc", "FILE_SIZE=65536", "METADATA_HASH=def",
+                "METADATA_SIZE=1234"};
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        long payloadOffset;
+        try (ZipOutputStream out = new ZipOutputStream(bytes)) {
+            out.putNextEntry(new ZipEntry("META-INF/com/android/metadata"));
+            out.write("ota-type=AB\n".getBytes(StandardCharsets.UTF_8));
+            CRC32 crc = new CRC32();
+            crc.update(payload);
+            ZipEntry entry = new ZipEntry("payload.bin");
+            entry.setMethod(ZipEntry.STORED);
+            entry.setSize(payload.length);
+            entry.setCrc(crc.getValue());
+            // Moves the data, like the alignment of signed packages
+            entry.setExtra(new byte[] {(byte) 0xfe, (byte) 0xca, 4, 0, 0, 0, 0, 0});
+            out.putNextEntry(entry);
+            // The local header of a stored entry is written right away
+            payloadOffset = bytes.size();
+            out.write(payload);
+            out.putNextEntry(new ZipEntry("payload_properties.txt"));
+            out.write((String.join("\n", properties) + "\n").getBytes(
+                    StandardCharsets.UTF_8));
+        }
+        byte[] zip = bytes.toByteArray();
+
+        try (ServerSocket serverSocket = new ServerSocket(0, 0,
+                InetAddress.getLoopbackAddress())) {
+            new Thread(() -> serve(serverSocket, zip)).start();
+            String url = "http://127.0.0.1:" + serverSocket.getLocalPort() + "/update.zip";
+
+            ABUpdateInstaller.RemotePayload remotePayload = ABUpdateInstaller.getRemotePayload(
+                    RemoteZip.open(Transport.PLATFORM, url), url);
+            assertTrue(mInstaller.install(DOWNLOAD_ID, remotePayload, null));
+
+            verify(mUpdateEngine).applyPayload(eq(url), eq(payloadOffset),
+                    eq((long) payload.length), aryEq(properties));
+        }
+        // The expected offset is the one of the payload in the package
+        byte[] served = new byte[payload.length];
+        System.arraycopy(zip, (int) payloadOffset, served, 0, served.length);
+        assertArrayEquals(payload, served);
+    }
+
+    /**
+     * Answer the range requests for the given file, one per connection
+     */
+    private static void serve(ServerSocket serverSocket, byte[] file) {
+        while (true) {
+            Socket client;
+            try {
+                client = serverSocket.accept();
+            } catch (IOException e) {
+                // Closed by the test
+                return;
+            }
+            try (Socket c = client) {
+                BufferedReader reader = new BufferedReader(new InputStreamReader(
+                        c.getInputStream(), StandardCharsets.ISO_8859_1));
+                int first = 0;
+                int last = file.length - 1;
+                for (String line; (line = reader.readLine()) != null && !line.isEmpty();) {
+                    if (line.toLowerCase().startsWith("range: bytes=")) {
+                        String[] range = line.substring(13).split("-", -1);
+                        if (range[0].isEmpty()) {
+                            first = Math.max(0, file.length - Integer.parseInt(range[1]));
+                        } else {
+                            first = Integer.parseInt(range[0]);
+                            if (!range[1].isEmpty()) {
+                                last = Math.min(last, Integer.parseInt(range[1]));
+                            }
+                        }
+                    }
+                }
+                String headers = "HTTP/1.1 206 Partial Content\r\n" +
+                        "Content-Range: bytes " + first + "-" + last + "/" + file.length +
+                        "\r\nAccept-Ranges: bytes\r\nContent-Length: " + (last - first + 1) +
+                        "\r\nConnection: close\r\n\r\n";
+                OutputStream out = c.getOutputStream();
+                out.write(headers.getBytes(StandardCharsets.ISO_8859_1));
+                out.write(file, first, last - first + 1);
+                out.flush();
+            } catch (IOException e) {
+                // Closed by the client
+            }
+        }
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2026 Paranoid Android
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.aospa.hub.download;
+
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+@RunWith(RobolectricTestRunner.class)
+public class HttpURLConnectionClientTest {
+
+    private static final int LENGTH = 16 * 1024 * 1024;
+    // Sent before the server stalls
+    private static final int SENT = 256 * 1024;
+    private static final long MAX_CANCEL_MILLIS = 1000;
+
+    private ServerSocket mServerSocket;
+    private final List<Socket> mClients = new ArrayList<>();
+    private File mDestination;
+
+    @Before
+    public void setUp() throws IOException {
+        mServerSocket = new ServerSocket(0, 0, InetAddress.getLoopbackAddress());
+        new Thread(this::serve).start();
+        mDestination = File.createTempFile("update", ".zip");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mServerSocket.close();
+        synchronized (mClients) {
+            for (Socket client : mClients) {
+                client.close();
+            }
+        }
+        mDestination.delete();
+        new File(mDestination.getPath() + ".segments").delete();
+    }
+
+    /**
+     * Send the headers and the start of the requested range, then nothing until closed
+     */
+    private void serve() {
+        while (true) {
+            Socket client;
+            try {
+                client = mServerSocket.accept();
+            } catch (IOException e) {
+                return;
+            }
+            synchronized (mClients) {
+                mClients.add(client);
+            }
+            new Thread(() -> {
+                try {
+                    BufferedReader reader = new BufferedReader(new InputStreamReader(
+                            client.getInputStream(), StandardCharsets.ISO_8859_1));
+                    long first = 0;
+                    long last = LENGTH - 1;
+                    for (String line; (line = reader.readLine()) != null && !line.isEmpty();) {
+                        if (line.toLowerCase().startsWith("range: bytes=")) {
+                            String[] range = line.substring(13).split("-");
+                            first = Long.parseLong(range[0]);
+                            if (range.length > 1) {
+                                last = Long.parseLong(range[1]);
+                            }
+                        }
+                    }
+                    String headers = first == 0 && last == LENGTH - 1 ?
+                            "HTTP/1.1 200 OK\r\n" :
+                            "HTTP/1.1 206 Partial Content\r\nContent-Range: bytes " + first +
+                                    "-" + last + "/" + LENGTH + "\r\n";
+                    headers += "Accept-Ranges: bytes\r\nContent-Length: " + (last - first + 1) +
+                            "\r\n\r\n";
+                    OutputStream out = client.getOutputStream();
+                    out.write(headers.getBytes(StandardCharsets.ISO_8859_1));
+                    out.write(new byte[(int) Math.min(SENT, last - first + 1)]);
+                    out.flush();
+                } catch (IOException e) {
+                    // Closed by the client
+                }
+            }).start();
+        }
+    }
+
+    private String getUrl() {
+        return "http://127.0.0.1:" + mServerSocket.getLocalPort() + "/update.zip";
+    }
+
+    private void assertCancelledQuickly(DownloadClient.Builder builder) throws Exception {
+        CountDownLatch receiving = new CountDownLatch(1);
+        CountDownLatch cancelled = new CountDownLatch(1);
+        DownloadClient client = builder
+                .setUrl(getUrl())
+                .setDestination(mDestination)
+                // Long enough for the stall detection not to end the download
+                .setStallDetection(60 * 1000, 0)
+                .setDownloadCallback(new DownloadClient.DownloadCallback() {
+                    @Override
+                    public void onResponse(int statusCode, String url,
+                            DownloadClient.Headers headers) {
+                    }
+
+                    @Override
+                    public void onSuccess(File destination) {
+                    }
+
+                    @Override
+                    public void onFailure(boolean wasCancelled) {
+                        if (wasCancelled) {
+                            cancelled.countDown();
+                        }
+                    }
+                })
+                .setProgressListener((bytesRead, contentLength, speed, eta, done) -> {
+                    if (bytesRead >= SENT) {
+                        receiving.countDown();
+                    }
+                })
+                .build();
+        client.start();
+        assertTrue("No data received", receiving.await(10, TimeUnit.SECONDS));
+        // Let the download block in a read
+        Thread.sleep(200);
+
+        long start = System.nanoTime();
+        client.cancel();
+        assertTrue("Not cancelled", cancelled.await(10, TimeUnit.SECONDS));
+        long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue("Cancelling took " + millis + " ms", millis < MAX_CANCEL_MILLIS);
+    }
+
+    // The update downloads go through the connection pool, the JDK connections used
+    // by these tests don't unblock reads on disconnect() like the platform ones do
+
+    @Test
+    public void cancelStalledDownload() throws Exception {
+        assertCancelledQuickly(new DownloadClient.Builder()
+                .setTransport(ConnectionPool.getInstance()));
+    }
+
+    @Test
+    public void cancelStalledSegmentedDownload() throws Exception {
+        assertCancelledQuickly(new DownloadClient.Builder()
+                .setTransport(ConnectionPool.getInstance())
+                .setSegmentCount(4));
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2026 Paranoid Android
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.aospa.hub.download;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Random;
+
+@RunWith(RobolectricTestRunner.class)
+public class LocalFileServerTest {
+
+    private static final int LENGTH = 256 * 1024;
+
+    private final byte[] mContent = new byte[LENGTH];
+    private File mFile;
+    private volatile long mWrittenEnd;
+    private LocalFileServer mServer;
+    private String mUrl;
+
+    @Before
+    public void setUp() throws IOException {
+        new Random(0).nextBytes(mContent);
+        mFile = File.createTempFile("update", ".zip");
+        try (FileOutputStream out = new FileOutputStream(mFile)) {
+            out.write(mContent);
+        }
+        mWrittenEnd = LENGTH;
+        mServer = new LocalFileServer(mFile, LENGTH, position -> mWrittenEnd);
+        mUrl = mServer.start();
+    }
+
+    @After
+    public void tearDown() {
+        mServer.stop();
+        mFile.delete();
+    }
+
+    private HttpURLConnection request(String range) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(mUrl).openConnection();
+        if (range != null) {
+            connection.setRequestProperty("Range", range);
+        }
+        return connection;
+    }
+
+    private static byte[] readAll(HttpURLConnection connection) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (InputStream in = connection.getInputStream()) {
+            byte[] buffer = new byte[8192];
+            for (int count; (count = in.read(buffer)) != -1;) {
+                bytes.write(buffer, 0, count);
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    @Test
+    public void closedRange() throws IOException {
+        HttpURLConnection connection = request("bytes=100-199");
+        assertEquals(206, connection.getResponseCode());
+        assertArrayEquals(Arrays.copyOfRange(mContent, 100, 200), readAll(connection));
+    }
+
+    @Test
+    public void suffixRange() throws IOException {
+        HttpURLConnection connection = request("bytes=-1000");
+        assertEquals(206, connection.getResponseCode());
+        assertArrayEquals(Arrays.copyOfRange(mContent, LENGTH - 1000, LENGTH),
+                readAll(connection));
+    }
+
+    @Test
+    public void suffixRangeLongerThanFile() throws IOException {
+        HttpURLConnection connection = request("bytes=-" + (LENGTH * 2));
+        assertEquals(206, connection.getResponseCode());
+        assertArrayEquals(mContent, readAll(connection));
+    }
+
+    @Test
+    public void unsatisfiableRanges() throws IOException {
+        assertEquals(416, request("bytes=-0").getResponseCode());
+        assertEquals(416, request("bytes=" + LENGTH + "-").getResponseCode());
+    }
+
+    @Test
+    public void malformedRange() throws IOException {
+        assertEquals(400, request("bytes=a-b").getResponseCode());
+    }
+
+    @Test
+    public void waitsForTheDownload() throws Exception {
+        mWrittenEnd = 0;
+        new Thread(() -> {
+            try {
+                Thread.sleep(300);
+            } catch (InterruptedException e) {
+                return;
+            }
+            mWrittenEnd = LENGTH;
+        }).start();
+        HttpURLConnection connection = request("bytes=-1000");
+        assertArrayEquals(Arrays.copyOfRange(mContent, LENGTH - 1000, LENGTH),
+                readAll(connection));
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2026 Paranoid Android
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.aospa.hub.misc;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Enumeration;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Compares the time it takes to locate payload.bin and to read payload_properties.txt
+ * with MappedZip and with ZipFile, the way they were read before. Not run with the
+ * tests, run it with:
+ *
+ *   java -cp <test classpath> co.aospa.hub.misc.MappedZipBenchmark [entries]
+ */
+public class MappedZipBenchmark {
+
+    private static final String PAYLOAD = "payload.bin";
+    private static final String PROPERTIES = "payload_properties.txt";
+    private static final int PAYLOAD_SIZE = 8 * 1024 * 1024;
+    private static final int WARM_UP_ITERATIONS = 500;
+    private static final int ITERATIONS = 2000;
+
+    public static void main(String[] args) throws IOException {
+        int entryCount = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        File file = File.createTempFile("update", ".zip");
+        try {
+            writePackage(file, entryCount);
+            for (int i = 0; i < WARM_UP_ITERATIONS; i++) {
+                readWithZipFile(file);
+                readWithMappedZip(file);
+            }
+            long zipFileNanos = 0;
+            long mappedZipNanos = 0;
+            for (int i = 0; i < ITERATIONS; i++) {
+                long start = System.nanoTime();
+                long expected = readWithZipFile(file);
+                zipFileNanos += System.nanoTime() - start;
+                start = System.nanoTime();
+                long offset = readWithMappedZip(file);
+                mappedZipNanos += System.nanoTime() - start;
+                if (offset != expected) {
+                    throw new IllegalStateException("Offset " + offset + ", expected " +
+                            expected);
+                }
+            }
+            System.out.println(entryCount + " entries: ZipFile " +
+                    zipFileNanos / ITERATIONS / 1000 + " us, MappedZip " +
+                    mappedZipNanos / ITERATIONS / 1000 + " us");
+        } finally {
+            file.delete();
+        }
+    }
+
+    private static void writePackage(File file, int entryCount) throws IOException {
+        byte[] payload = new byte[PAYLOAD_SIZE];
+        new Random(0).nextBytes(payload);
+        // Stored, so that there are no data descriptors ZipFile can't account for
+        try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(file))) {
+            for (int i = 0; i < entryCount; i++) {
+                putStored(out, "META-INF/files/" + i,
+                        ("file " + i + "\n").getBytes(StandardCharsets.UTF_8));
+            }
+            putStored(out, PAYLOAD, payload);
+            putStored(out, PROPERTIES,
+                    "FILE_HASH=abc\nFILE_SIZE=1\n".getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    private static void putStored(ZipOutputStream out, String name, byte[] data)
+            throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        ZipEntry entry = new ZipEntry(name);
+        entry.setMethod(ZipEntry.STORED);
+        entry.setSize(data.length);
+        entry.setCrc(crc.getValue());
+        out.putNextEntry(entry);
+        out.write(data);
+    }
+
+    /**
+     * Add up the headers and the data of the entries before payload.bin, the offset
+     * isn't exposed by ZipFile
+     */
+    private static long readWithZipFile(File file) throws IOException {
+        long offset = -1;
+        try (ZipFile zip = new ZipFile(file)) {
+            long position = 0;
+            Enumeration<? extends ZipEntry> entries = zip.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                position += 30 + entry.getName().length() +
+                        (entry.getExtra() != null ? entry.getExtra().length : 0);
+                if (entry.getName().equals(PAYLOAD)) {
+                    offset = position;
+                    break;
+                }
+                position += entry.getCompressedSize();
+            }
+            try (InputStream in = zip.getInputStream(zip.getEntry(PROPERTIES))) {
+                while (in.read() != -1) {
+                    // Read it all, like the installer does
+                }
+            }
+        }
+        if (offset < 0) {
+            throw new IOException(PAYLOAD + " not found");
+        }
+        return offset;
+    }
+
+    private static long readWithMappedZip(File file) throws IOException {
+        try (MappedZip zip = MappedZip.open(file)) {
+            long offset = zip.getDataOffset(PAYLOAD);
+            zip.read(PROPERTIES);
+            return offset;
+        }
+    }
+}
@@ -0,0 +1,224 @@
+/*
+ * Copyright (C) 2026 Paranoid Android
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.aospa.hub.misc;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+public class MappedZipTest {
+
+    private static final String PAYLOAD = "payload.bin";
+    private static final String PROPERTIES = "payload_properties.txt";
+    private static final byte[] PROPERTIES_DATA =
+            "FILE_HASH=abc\nFILE_SIZE=65536\nMETADATA_HASH=def\nMETADATA_SIZE=1234\n"
+                    .getBytes(StandardCharsets.UTF_8);
+
+    private final byte[] mPayload = new byte[64 * 1024];
+    private File mFile;
+
+    @Before
+    public void setUp() throws IOException {
+        new Random(0).nextBytes(mPayload);
+        mFile = File.createTempFile("update", ".zip");
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    @Test
+    public void storedPayloadOffset() throws IOException {
+        try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(mFile))) {
+            out.putNextEntry(new ZipEntry("META-INF/com/android/metadata"));
+            out.write("ota-type=AB\n".getBytes(StandardCharsets.UTF_8));
+            ZipEntry payload = new ZipEntry(PAYLOAD);
+            payload.setMethod(ZipEntry.STORED);
+            payload.setSize(mPayload.length);
+            payload.setCrc(crc(mPayload));
+            out.putNextEntry(payload);
+            out.write(mPayload);
+            out.putNextEntry(new ZipEntry(PROPERTIES));
+            out.write(PROPERTIES_DATA);
+        }
+
+        try (MappedZip zip = MappedZip.open(mFile)) {
+            assertPayloadAt(zip.getDataOffset(PAYLOAD));
+            assertEquals(mPayload.length, zip.getSize(PAYLOAD));
+            assertArrayEquals(PROPERTIES_DATA, zip.read(PROPERTIES));
+        }
+    }
+
+    @Test
+    public void zip64StoredPayloadOffset() throws IOException {
+        writeZip64();
+
+        try (MappedZip zip = MappedZip.open(mFile)) {
+            assertTrue(zip.hasEntry(PAYLOAD));
+            assertPayloadAt(zip.getDataOffset(PAYLOAD));
+            assertEquals(mPayload.length, zip.getSize(PAYLOAD));
+            assertArrayEquals(PROPERTIES_DATA, zip.read(PROPERTIES));
+        }
+    }
+
+    @Test
+    public void missingEntry() throws IOException {
+        writeZip64();
+
+        try (MappedZip zip = MappedZip.open(mFile)) {
+            assertFalse(zip.hasEntry("payload"));
+            zip.getDataOffset("payload");
+            fail("No exception for a missing entry");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void notZip() throws IOException {
+        try (FileOutputStream out = new FileOutputStream(mFile)) {
+            out.write(mPayload);
+        }
+        MappedZip.open(mFile).close();
+    }
+
+    private void assertPayloadAt(long offset) throws IOException {
+        byte[] data = new byte[mPayload.length];
+        try (RandomAccessFile file = new RandomAccessFile(mFile, "r")) {
+            file.seek(offset);
+            file.readFully(data);
+        }
+        assertArrayEquals(mPayload, data);
+    }
+
+    private static long crc(byte[] data) {
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        return crc.getValue();
+    }
+
+    private static byte[] deflate(byte[] data) {
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        deflater.setInput(data);
+        deflater.finish();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        while (!deflater.finished()) {
+            out.write(buffer, 0, deflater.deflate(buffer));
+        }
+        deflater.end();
+        return out.toByteArray();
+    }
+
+    /**
+     * Write a zip the way packages over 4 GB are written: the sizes and the offsets are
+     * in ZIP64 extra fields and the central directory is found through the ZIP64 end
+     * record. The local header of the payload also has an alignment field that the
+     * central directory doesn't have.
+     */
+    private void writeZip64() throws IOException {
+        String[] names = {"META-INF/com/android/metadata", PAYLOAD, PROPERTIES};
+        byte[][] contents = {"ota-type=AB\n".getBytes(StandardCharsets.UTF_8), mPayload,
+                PROPERTIES_DATA};
+        boolean[] stored = {false, true, false};
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        List<byte[]> centralDirectory = new ArrayList<>();
+        for (int i = 0; i < names.length; i++) {
+            byte[] name = names[i].getBytes(StandardCharsets.UTF_8);
+            byte[] data = stored[i] ? contents[i] : deflate(contents[i]);
+            long offset = out.size();
+
+            ByteBuffer localExtra = buffer(20 + (stored[i] ? 8 : 0));
+            localExtra.putShort((short) 0x0001).putShort((short) 16)
+                    .putLong(contents[i].length).putLong(data.length);
+            if (stored[i]) {
+                localExtra.putShort((short) 0xd935).putShort((short) 4).putInt(0);
+            }
+            ByteBuffer local = buffer(30);
+            local.putInt(0x04034b50).putShort((short) 45).putShort((short) 0)
+                    .putShort((short) (stored[i] ? 0 : 8)).putInt(0)
+                    .putInt((int) crc(contents[i])).putInt(-1).putInt(-1)
+                    .putShort((short) name.length).putShort((short) localExtra.capacity());
+            out.write(local.array());
+            out.write(name);
+            out.write(localExtra.array());
+            out.write(data);
+
+            ByteBuffer extra = buffer(28);
+            extra.putShort((short) 0x0001).putShort((short) 24)
+                    .putLong(contents[i].length).putLong(data.length).putLong(offset);
+            ByteBuffer header = buffer(46 + name.length + extra.capacity());
+            header.putInt(0x02014b50).putShort((short) 45).putShort((short) 45)
+                    .putShort((short) 0).putShort((short) (stored[i] ? 0 : 8)).putInt(0)
+                    .putInt((int) crc(contents[i])).putInt(-1).putInt(-1)
+                    .putShort((short) name.length).putShort((short) extra.capacity())
+                    .putShort((short) 0).putShort((short) 0).putShort((short) 0).putInt(0)
+                    .putInt(-1).put(name).put(extra.array());
+            centralDirectory.add(header.array());
+        }
+
+        long cdOffset = out.size();
+        for (byte[] header : centralDirectory) {
+            out.write(header);
+        }
+        long cdSize = out.size() - cdOffset;
+        long zip64EndOffset = out.size();
+        ByteBuffer zip64End = buffer(56);
+        zip64End.putInt(0x06064b50).putLong(44).putShort((short) 45).putShort((short) 45)
+                .putInt(0).putInt(0).putLong(names.length).putLong(names.length)
+                .putLong(cdSize).putLong(cdOffset);
+        out.write(zip64End.array());
+        ByteBuffer locator = buffer(20);
+        locator.putInt(0x07064b50).putInt(0).putLong(zip64EndOffset).putInt(1);
+        out.write(locator.array());
+        ByteBuffer end = buffer(22);
+        end.putInt(0x06054b50).putShort((short) 0).putShort((short) 0)
+                .putShort((short) -1).putShort((short) -1).putInt(-1).putInt(-1)
+                .putShort((short) 0);
+        out.write(end.array());
+
+        try (FileOutputStream file = new FileOutputStream(mFile)) {
+            out.writeTo(file);
+        }
+    }
+
+    private static ByteBuffer buffer(int size) {
+        return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+}